@@ -16,8 +16,14 @@
  */
 package org.apache.commons.transaction.file;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -27,20 +33,42 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Iterator;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import org.apache.commons.transaction.locking.GenericLock;
 import org.apache.commons.transaction.locking.GenericLockManager;
 import org.apache.commons.transaction.locking.LockException;
+import org.apache.commons.transaction.locking.LockListener;
 import org.apache.commons.transaction.locking.LockManager2;
+import org.apache.commons.transaction.locking.MultiLevelLock;
+import org.apache.commons.transaction.util.DirectoryIterator;
 import org.apache.commons.transaction.util.FileHelper;
 import org.apache.commons.transaction.util.LoggerFacade;
+import org.apache.commons.transaction.util.WorkerPool;
 
 /**
  * A resource manager for streamable objects stored in a file system.
@@ -138,6 +166,72 @@ public class FileResourceManager implements ResourceManager, ResourceManagerErro
     protected static final String WORK_DELETE_DIR = "delete";
 
     protected static final String CONTEXT_FILE = "transaction.log";
+    protected static final String MANIFEST_FILE = "manifest";
+
+    /** Minimum number of files each commit thread should apply. */
+    protected static final int MIN_FILES_PER_COMMIT_THREAD = 16;
+
+    /**
+     * Nothing is forced to disk, data and transaction states are left to the
+     * operating system. This is the default.
+     */
+    public static final int DURABILITY_NONE = 0;
+
+    /**
+     * Transaction states are forced to disk when a transaction is prepared and
+     * before a commit is applied, data is left to the operating system.
+     */
+    public static final int DURABILITY_FLUSH = 1;
+
+    /**
+     * Like {@link #DURABILITY_FLUSH}, but also all changed data and meta data is forced
+     * to disk before the transaction is prepared or committed and all
+     * directories changed by a commit are forced afterwards.
+     */
+    public static final int DURABILITY_FSYNC = 2;
+
+    /**
+     * Like {@link #DURABILITY_FSYNC}, but transaction states of concurrent
+     * commits share a single force of the journal as configured by
+     * {@link #setGroupCommit(int, long)}. Only differs from
+     * {@link #DURABILITY_FSYNC} when the journal is enabled.
+     */
+    public static final int DURABILITY_GROUP_FSYNC = 3;
+
+    /** Default maximum number of entries in the metadata cache. */
+    public static final int DEFAULT_METADATA_CACHE_SIZE = 1000;
+
+    /** Digest used to compute {@link #getResourceVersion(Object, Object) resource versions}. */
+    protected static final String VERSION_DIGEST_ALGORITHM = "MD5";
+
+    /**
+     * Number of remembered last changes in optimistic mode above which
+     * changes no running transaction can conflict with are forgotten.
+     */
+    protected static final int LAST_CHANGES_CLEANUP_SIZE = 1024;
+
+    /** Name of the journal in the work directory, no transaction may be mapped to a path starting with it. */
+    protected static final String JOURNAL_FILE = ".journal";
+
+    /**
+     * Name of the file in the work directory marking a clean shutdown, no
+     * transaction may be mapped to it.
+     */
+    protected static final String CHECKPOINT_FILE = ".checkpoint";
+
+    /**
+     * Name of the directory in the work directory holding work directories of
+     * finished transactions until they are removed, no transaction may be
+     * mapped to it.
+     */
+    protected static final String TRASH_DIR = ".trash";
+
+    /**
+     * Name of the directory in the work directory holding versions of
+     * resources replaced or deleted while snapshots still need them, no
+     * transaction may be mapped to it.
+     */
+    protected static final String VERSIONS_DIR = ".versions";
 
     /*
      * --- Static helper methods ---
@@ -145,6 +239,22 @@ public class FileResourceManager implements ResourceManager, ResourceManagerErro
      *  
      */
 
+    /**
+     * Collects all directories below the target that correspond to
+     * directories below the source, including the target itself.
+     */
+    protected static void collectTargetDirs(File sourceDir, File targetDir, List targetDirs) {
+        if (sourceDir.isDirectory()) {
+            targetDirs.add(targetDir);
+            File[] files = sourceDir.listFiles();
+            for (int i = 0; i < files.length; i++) {
+                if (files[i].isDirectory()) {
+                    collectTargetDirs(files[i], new File(targetDir, files[i].getName()), targetDirs);
+                }
+            }
+        }
+    }
+
     protected static void applyDeletes(File removeDir, File targetDir, File rootDir)
             throws IOException {
         if (removeDir.isDirectory() && targetDir.isDirectory()) {
@@ -181,7 +291,8 @@ public class FileResourceManager implements ResourceManager, ResourceManagerErro
     protected String workDir;
     protected String storeDir;
     protected boolean cleanUp = true;
-    protected boolean dirty = false;
+    // also set by committing threads and the background recovery thread
+    protected volatile boolean dirty = false;
     protected int operationMode = OPERATION_MODE_STOPPED;
     protected long defaultTimeout = DEFAULT_TIMEOUT_MSECS;
     protected boolean debug;
@@ -191,6 +302,52 @@ public class FileResourceManager implements ResourceManager, ResourceManagerErro
     protected Map globalTransactions;
     protected List globalOpenResources;
     protected LockManager2 lockManager;
+    protected LockManager2 customLockManager = null;
+    protected long lockTimeout = Long.MAX_VALUE;
+    protected long deadlockCheckThreshhold = GenericLockManager.DEFAULT_CHECK_THRESHHOLD;
+    protected LockListener lockListener = null;
+    protected TransactionListener transactionListener = null;
+    protected boolean journalEnabled = false;
+    protected int journalCheckpointInterval = TransactionJournal.DEFAULT_CHECKPOINT_INTERVAL;
+    protected TransactionJournal journal = null;
+    // transaction.log files of an earlier run may still need recovery
+    protected boolean journalCreated = false;
+    protected int durability = DURABILITY_NONE;
+    protected int groupCommitSize = TransactionJournal.DEFAULT_GROUP_COMMIT_SIZE;
+    protected long groupCommitWaitMSecs = TransactionJournal.DEFAULT_GROUP_COMMIT_WAIT_MSECS;
+    protected boolean atomicCommit = false;
+    protected boolean directReads = false;
+    protected boolean manifestEnabled = false;
+    protected int commitThreads = 1;
+    protected WorkerPool commitWorkers = null;
+    protected int recoveryThreads = 1;
+    protected boolean backgroundRecovery = false;
+    protected Thread recoveryThread = null;
+    protected Map inDoubtResources = Collections.synchronizedMap(new HashMap());
+    protected volatile boolean recoveryPending = false;
+    protected boolean fastStart = false;
+    protected boolean asyncCleanup = false;
+    protected int cleanupRate = 0;
+    protected Thread cleanupThread = null;
+    protected Object trashLock = new Object();
+    protected boolean trashPending = false;
+    protected boolean cleanupStopping = false;
+    protected int trashCnt = 0;
+    protected boolean snapshotIsolation = false;
+    protected Object versionLock = new Object();
+    protected Object publishLock = new Object();
+    protected long publishedVersion = 0;
+    protected SortedMap activeSnapshots = new TreeMap();
+    protected Map versionChains = new HashMap();
+    protected LinkedList versionLog = new LinkedList();
+    protected boolean optimistic = false;
+    protected long commitSequence = 0;
+    protected Map lastChanges = new HashMap();
+    protected int metadataCacheSize = DEFAULT_METADATA_CACHE_SIZE;
+    protected Object metadataLock = new Object();
+    protected Map metadataCache = null;
+    protected long metadataGeneration = 0;
+    protected boolean collectionLocking = false;
 
     protected ResourceIdToPathMapper idMapper = null;
     protected TransactionIdToPathMapper txIdMapper = null;
@@ -268,6 +425,36 @@ public class FileResourceManager implements ResourceManager, ResourceManagerErro
         TransactionIdToPathMapper txIdMapper,
         LoggerFacade logger,
         boolean debug) {
+        this(storeDir, workDir, idMapper, txIdMapper, null, logger, debug);
+    }
+
+    /**
+     * Creates a new resource manager operation on the specified directories
+     * using the given lock manager. The lock manager must support lock levels
+     * up to <code>4</code>, where <code>1</code> is used for access,
+     * <code>2</code> for shared, <code>3</code> for exclusive and
+     * <code>4</code> for commit locks. As with {@link GenericLockManager},
+     * a lock level must conflict with all levels that sum up with it to more
+     * than the maximum level.
+     * 
+     * @param storeDir directory where main data should go after commit
+     * @param workDir directory where transactions store temporary data 
+     * @param idMapper mapper for resourceId to path
+     * @param txIdMapper mapper for transaction id to path
+     * @param lockManager the lock manager to use or <code>null</code> to create a {@link GenericLockManager} upon start
+     * @param logger the logger to be used by this store
+     * @param debug if set to <code>true</code> logs all locking information to "transaction.log" for debugging inspection 
+     * @since 1.3
+     */
+    public FileResourceManager(
+        String storeDir,
+        String workDir,
+        ResourceIdToPathMapper idMapper,
+        TransactionIdToPathMapper txIdMapper,
+        LockManager2 lockManager,
+        LoggerFacade logger,
+        boolean debug) {
+        this.customLockManager = lockManager;
         this.workDir = workDir;
         this.storeDir = storeDir;
         this.idMapper = idMapper;
@@ -307,252 +494,2582 @@ public class FileResourceManager implements ResourceManager, ResourceManagerErro
         return logger;
     }
 
-    /*
-     * --- public methods of interface ResourceManager ---
-     *
-     *  
+    /**
+     * Sets a listener to be informed about lock waits, grants, timeouts and
+     * deadlocks. Takes effect upon the next {@link #start()}.
+     * 
+     * @param lockListener the listener or <code>null</code> for none
+     * @since 1.3
      */
-
-    public boolean lockResource(Object resourceId, Object txId) throws ResourceManagerException {
-        lockResource(resourceId, txId, false);
-        // XXX will never return false as it will either throw or return true
-        return true;
+    public void setLockListener(LockListener lockListener) {
+        this.lockListener = lockListener;
     }
 
-    public boolean lockResource(Object resourceId, Object txId, boolean shared) throws ResourceManagerException {
-        lockResource(resourceId, txId, shared, true, Long.MAX_VALUE, true);
-        // XXX will never return false as it will either throw or return true
-        return true;
+    /**
+     * Sets the maximum time to wait for a single lock. By default a lock
+     * request waits as long as the transaction timeout allows.
+     * 
+     * @param mSecs lock timeout in milliseconds
+     * @since 1.3
+     */
+    public void setLockTimeout(long mSecs) {
+        this.lockTimeout = mSecs;
     }
 
-    public boolean lockResource(
-        Object resourceId,
-        Object txId,
-        boolean shared,
-        boolean wait,
-        long timeoutMSecs,
-        boolean reentrant)
-        throws ResourceManagerException {
-
-        TransactionContext context = (shared ? txInitialSaneCheck(txId) : txInitialSaneCheckForWriting(txId));
-        assureNotMarkedForRollback(context);
-        fileInitialSaneCheck(txId, resourceId);
-
-        // XXX allows locking of non existent resources (e.g. to prepare a create)
-        int level = (shared ? getSharedLockLevel(context) : LOCK_EXCLUSIVE);
-        try {
-            lockManager.lock(txId, resourceId, level, reentrant, Math.min(timeoutMSecs,
-                    context.timeoutMSecs));
-            // XXX will never return false as it will either throw or return true
-            return true;
-        } catch (LockException e) {
-            switch (e.getCode()) {
-            case LockException.CODE_INTERRUPTED:
-                throw new ResourceManagerException("Could not get lock for resource at '"
-                        + resourceId + "'", ERR_NO_LOCK, txId);
-            case LockException.CODE_TIMED_OUT:
-                throw new ResourceManagerException("Lock timed out for resource at '" + resourceId
-                        + "'", ERR_NO_LOCK, txId);
-            case LockException.CODE_DEADLOCK_VICTIM:
-                throw new ResourceManagerException("Deadlock victim resource at '" + resourceId
-                        + "'", ERR_DEAD_LOCK, txId);
-            default :
-                throw new ResourceManagerException("Locking exception for resource at '" + resourceId
-                        + "'", ERR_DEAD_LOCK, txId);
-            }
-        }
+    /**
+     * Gets the maximum time to wait for a single lock.
+     * 
+     * @return lock timeout in milliseconds
+     * @since 1.3
+     */
+    public long getLockTimeout() {
+        return lockTimeout;
     }
 
-    public int getDefaultIsolationLevel() {
-        return DEFAULT_ISOLATION_LEVEL;
+    /**
+     * Sets the time a lock request waits before deadlock detection comes
+     * into play. This is only used when no lock manager has been passed to
+     * the constructor and takes effect upon the next {@link #start()}.
+     * 
+     * @param mSecs threshhold in milliseconds or <code>-1</code> to check for deadlocks directly
+     * @see GenericLockManager#GenericLockManager(int, LoggerFacade, long, long)
+     * @since 1.3
+     */
+    public void setDeadlockCheckThreshhold(long mSecs) {
+        this.deadlockCheckThreshhold = mSecs;
     }
 
-    public int[] getSupportedIsolationLevels() throws ResourceManagerException {
-        return new int[] { ISOLATION_LEVEL_READ_COMMITTED, ISOLATION_LEVEL_REPEATABLE_READ };
+    /**
+     * Gets the time a lock request waits before deadlock detection comes
+     * into play.
+     * 
+     * @return threshhold in milliseconds
+     * @since 1.3
+     */
+    public long getDeadlockCheckThreshhold() {
+        return deadlockCheckThreshhold;
     }
 
-    public boolean isIsolationLevelSupported(int level) throws ResourceManagerException {
-        return (level == ISOLATION_LEVEL_READ_COMMITTED || level == ISOLATION_LEVEL_REPEATABLE_READ);
+    /**
+     * Switches between a single journal shared by all transactions and a
+     * <code>transaction.log</code> file in the work directory of each
+     * transaction to record transaction states. The journal only appends a
+     * short binary record for every state transition and recovery only needs
+     * to read a single file. It is off by default and takes effect upon the
+     * next {@link #start()}. Transactions recorded in <code>transaction.log</code>
+     * files are still recovered when the journal is enabled. Disabling it
+     * only takes effect upon a start that finds no pending transactions in an
+     * existing journal; until then the journal is still used, so switching
+     * after a crash does not lose the states of in-flight transactions.
+     * 
+     * @param journalEnabled <code>true</code> to use the journal
+     * @since 1.3
+     */
+    public void setJournalEnabled(boolean journalEnabled) {
+        this.journalEnabled = journalEnabled;
     }
 
     /**
-     * Gets the default transaction timeout in <em>milliseconds</em>.
+     * Checks if transaction states are recorded in a shared journal.
+     * 
+     * @return <code>true</code> if the journal is used
+     * @since 1.3
      */
-    public long getDefaultTransactionTimeout() {
-        return defaultTimeout;
+    public boolean isJournalEnabled() {
+        return journalEnabled;
     }
 
     /**
-     * Sets the default transaction timeout.
+     * Sets the number of records after which the journal is compacted.
      * 
-     * @param timeout timeout in <em>milliseconds</em>
+     * @param interval number of records or <code>0</code> to compact upon stop only
+     * @see TransactionJournal#setCheckpointInterval(int)
+     * @since 1.3
      */
-    public void setDefaultTransactionTimeout(long timeout) {
-        defaultTimeout = timeout;
+    public void setJournalCheckpointInterval(int interval) {
+        this.journalCheckpointInterval = interval;
     }
 
-    public long getTransactionTimeout(Object txId) throws ResourceManagerException {
-        assureRMReady();
-        long msecs = 0;
-        TransactionContext context = getContext(txId);
-        if (context == null) {
-            msecs = getDefaultTransactionTimeout();
-        } else {
-            msecs = context.timeoutMSecs;
+    /**
+     * Sets what is forced to disk when transactions are prepared and
+     * committed, trading speed for safety against power loss. Changes to the
+     * group commit level take effect upon the next {@link #start()}.
+     * 
+     * @param durability one of {@link #DURABILITY_NONE},
+     *            {@link #DURABILITY_FLUSH}, {@link #DURABILITY_FSYNC} or
+     *            {@link #DURABILITY_GROUP_FSYNC}
+     * @since 1.3
+     */
+    public void setDurability(int durability) {
+        if (durability < DURABILITY_NONE || durability > DURABILITY_GROUP_FSYNC) {
+            throw new IllegalArgumentException("Unknown durability level " + durability);
         }
-        return msecs;
+        this.durability = durability;
     }
 
-    public void setTransactionTimeout(Object txId, long mSecs) throws ResourceManagerException {
-        assureRMReady();
-        TransactionContext context = getContext(txId);
-        if (context != null) {
-            context.timeoutMSecs = mSecs;
-        } else {
-            throw new ResourceManagerException(ERR_NO_TX, txId);
-        }
+    /**
+     * Gets what is forced to disk when transactions are prepared and committed.
+     * 
+     * @return the durability level
+     * @since 1.3
+     */
+    public int getDurability() {
+        return durability;
     }
 
-    public int getIsolationLevel(Object txId) throws ResourceManagerException {
-        assureRMReady();
-        TransactionContext context = getContext(txId);
-        if (context == null) {
-            return DEFAULT_ISOLATION_LEVEL;
-        } else {
-            return context.isolationLevel;
-        }
+    /**
+     * Configures how committing transactions are grouped to share a single
+     * force of the journal with {@link #DURABILITY_GROUP_FSYNC}. Takes effect
+     * upon the next {@link #start()}.
+     * 
+     * @param size number of transactions after which a batch is forced at once
+     * @param maxWaitMSecs maximum time in milliseconds to wait for a batch to fill
+     * @see TransactionJournal#setGroupCommit(int, long)
+     * @since 1.3
+     */
+    public void setGroupCommit(int size, long maxWaitMSecs) {
+        this.groupCommitSize = size;
+        this.groupCommitWaitMSecs = maxWaitMSecs;
     }
 
-    public void setIsolationLevel(Object txId, int level) throws ResourceManagerException {
-        assureRMReady();
-        TransactionContext context = getContext(txId);
-        if (context != null) {
-            if (level != ISOLATION_LEVEL_READ_COMMITTED || level != ISOLATION_LEVEL_REPEATABLE_READ) {
-                context.isolationLevel = level;
-            } else {
-                throw new ResourceManagerException(ERR_ISOLATION_LEVEL_UNSUPPORTED, txId);
-            }
-        } else {
-            throw new ResourceManagerException(ERR_NO_TX, txId);
-        }
+    /**
+     * Switches to commits that only atomically rename files and whole
+     * directories from the work directory into the store directory. When
+     * disabled, files that can not be renamed are copied, which is slow for
+     * large files and leaves partially written files on a crash. Atomic
+     * commits require the work directory to reside on the same file system
+     * as the store directory, which is checked by {@link #start()}.
+     * 
+     * @param atomicCommit <code>true</code> to commit by atomic renames only
+     * @since 1.3
+     */
+    public void setAtomicCommit(boolean atomicCommit) {
+        this.atomicCommit = atomicCommit;
     }
 
-    public synchronized void start() throws ResourceManagerSystemException {
-
-        logger.logInfo("Starting RM at '" + storeDir + "' / '" + workDir + "'");
+    /**
+     * Checks if commits only atomically rename files and directories.
+     * 
+     * @return <code>true</code> if commits never copy data
+     * @since 1.3
+     */
+    public boolean isAtomicCommit() {
+        return atomicCommit;
+    }
 
-        operationMode = OPERATION_MODE_STARTING;
+    /**
+     * Lets {@link #readResource(Object)}, {@link #readResourceChannel(Object)}
+     * and {@link #resourceExists(Object)} read the store directory directly
+     * instead of creating a light weight transaction and acquiring a lock.
+     * This only takes effect together with {@link #setAtomicCommit(boolean)
+     * atomic commits}, as then every resource in the store is either
+     * replaced as a whole or not at all. Reads are still read committed, but
+     * do not wait for commits in progress and may see some of the changes of
+     * a transaction committed while they are issued.
+     * 
+     * @param directReads <code>true</code> to read outside transactions without locking
+     * @since 1.3
+     */
+    public void setDirectReads(boolean directReads) {
+        this.directReads = directReads;
+    }
 
-        globalTransactions = Collections.synchronizedMap(new HashMap());
-        lockManager = new GenericLockManager(LOCK_COMMIT, logger);
-        globalOpenResources = Collections.synchronizedList(new ArrayList());
+    /**
+     * Checks if reads outside transactions go to the store directory
+     * directly.
+     * 
+     * @return <code>true</code> if direct reads are enabled
+     * @since 1.3
+     */
+    public boolean isDirectReads() {
+        return directReads;
+    }
 
-        recover();
-        sync();
+    /**
+     * Switches to commits driven by a manifest of all changed and deleted
+     * resources, which is written once when a transaction is prepared or
+     * about to be committed. Commits and roll forwards then apply exactly
+     * the listed operations, instead of walking the directory trees of the
+     * transaction. Deletes are no longer recorded as marker files either.
+     * Transactions without a manifest, e.g. written by earlier versions, are
+     * still committed by walking their directories.
+     * 
+     * @param manifestEnabled <code>true</code> to commit using manifests
+     * @since 1.3
+     */
+    public void setManifestEnabled(boolean manifestEnabled) {
+        this.manifestEnabled = manifestEnabled;
+    }
 
-        operationMode = OPERATION_MODE_STARTED;
+    /**
+     * Checks if commits are driven by manifests.
+     * 
+     * @return <code>true</code> if manifests are written and used
+     * @since 1.3
+     */
+    public boolean isManifestEnabled() {
+        return manifestEnabled;
+    }
 
-        if (dirty) {
-            logger.logWarning("Started RM, but in dirty mode only (Recovery of pending transactions failed)");
-        } else {
-            logger.logInfo("Started RM");
+    /**
+     * Sets the number of threads that apply the changes and deletes of a
+     * single transaction upon commit. Large transactions are committed
+     * faster by several threads, as file system operations often wait for
+     * the disk. All deletes are done before the first change is moved and
+     * missing directories are created before any file is moved into them.
+     * A commit that fails halfway is rolled forward upon recovery like a
+     * serial one. Small transactions are always committed by the calling
+     * thread. The committing thread is helped by a pool of threads shared by
+     * all commits, which is created upon start, so this has to be set before.
+     * 
+     * @param commitThreads number of threads, <code>1</code> for serial commits
+     * @since 1.3
+     */
+    public void setCommitThreads(int commitThreads) {
+        if (commitThreads < 1) {
+            throw new IllegalArgumentException("At least one commit thread is needed");
         }
+        this.commitThreads = commitThreads;
+    }
 
+    /**
+     * Gets the number of threads that apply the changes of a single
+     * transaction upon commit.
+     * 
+     * @return number of commit threads
+     * @since 1.3
+     */
+    public int getCommitThreads() {
+        return commitThreads;
     }
 
-    public synchronized boolean stop(int mode) throws ResourceManagerSystemException {
-        return stop(mode, getDefaultTransactionTimeout() * DEFAULT_COMMIT_TIMEOUT_FACTOR);
+    /**
+     * Sets the number of threads that recover pending transactions upon
+     * start. Each transaction is read and rolled forward or back by a
+     * single thread, but different transactions are recovered concurrently.
+     * 
+     * @param recoveryThreads maximum number of threads, <code>1</code> for serial recovery
+     * @since 1.3
+     */
+    public void setRecoveryThreads(int recoveryThreads) {
+        if (recoveryThreads < 1) {
+            throw new IllegalArgumentException("At least one recovery thread is needed");
+        }
+        this.recoveryThreads = recoveryThreads;
     }
 
-    public synchronized boolean stop(int mode, long timeOut) throws ResourceManagerSystemException {
+    /**
+     * Gets the maximum number of threads that recover pending transactions.
+     * 
+     * @return number of recovery threads
+     * @since 1.3
+     */
+    public int getRecoveryThreads() {
+        return recoveryThreads;
+    }
 
-        logger.logInfo("Stopping RM at '" + storeDir + "' / '" + workDir + "'");
+    /**
+     * Sets if pending transactions are rolled forward or back in the
+     * background. If so, {@link #start()} returns as soon as the states of
+     * all pending transactions have been read. New transactions may then
+     * access all resources except the ones changed or deleted by pending
+     * transactions, which block until their transaction has been recovered.
+     * Failures of background recovery set the resource manager to dirty
+     * mode later on.
+     * 
+     * @param backgroundRecovery <code>true</code> to start before recovery has finished
+     * @since 1.3
+     */
+    public void setBackgroundRecovery(boolean backgroundRecovery) {
+        this.backgroundRecovery = backgroundRecovery;
+    }
 
-        operationMode = OPERATION_MODE_STOPPING;
+    /**
+     * Checks if pending transactions are recovered in the background.
+     * 
+     * @return <code>true</code> if recovery continues after start
+     * @since 1.3
+     */
+    public boolean isBackgroundRecovery() {
+        return backgroundRecovery;
+    }
 
-        sync();
-        boolean success = shutdown(mode, timeOut);
+    /**
+     * Sets if starting should avoid looking at all entries of the work
+     * directory. If so, a successful {@link #stop(int)} without pending
+     * transactions leaves a checkpoint in the work directory and the next
+     * {@link #start()} skips recovery entirely. After a crash, the
+     * {@link #setJournalEnabled(boolean) journal} tells which transactions
+     * need recovery: as it is compacted at every checkpoint, only
+     * transactions recorded since then are examined. Without journal, or
+     * when it has just been enabled, the work directory still has to be
+     * scanned after a crash. <br>
+     * <br>
+     * A transaction is recorded in the journal before its work directory is
+     * created, so every work directory left by a crash is found. Where the
+     * journal is not forced to disk, an operating system crash may still
+     * leave a directory without record; it is removed when a transaction
+     * with the same identifier is started.
+     * 
+     * @param fastStart <code>true</code> to skip scanning the work directory on start
+     * @since 1.3
+     */
+    public void setFastStart(boolean fastStart) {
+        this.fastStart = fastStart;
+    }
 
-        releaseGlobalOpenResources();
+    /**
+     * Checks if starting avoids scanning the work directory.
+     * 
+     * @return <code>true</code> if a checkpoint is used on start
+     * @since 1.3
+     */
+    public boolean isFastStart() {
+        return fastStart;
+    }
 
-        if (success) {
-            operationMode = OPERATION_MODE_STOPPED;
-            logger.logInfo("Stopped RM");
+    /**
+     * Sets if work directories of finished transactions are removed in the
+     * background. If so, committing and rolling back only rename the work
+     * directory of the transaction to a trash directory, which is emptied by
+     * a separate thread. Whatever has not been removed when the resource
+     * manager is stopped is removed after the next start.
+     * 
+     * @param asyncCleanup <code>true</code> to remove work directories in the background
+     * @since 1.3
+     */
+    public void setAsyncCleanup(boolean asyncCleanup) {
+        this.asyncCleanup = asyncCleanup;
+    }
+
+    /**
+     * Checks if work directories of finished transactions are removed in the
+     * background.
+     * 
+     * @return <code>true</code> if work directories are removed in the background
+     * @since 1.3
+     */
+    public boolean isAsyncCleanup() {
+        return asyncCleanup;
+    }
+
+    /**
+     * Sets the maximum number of files and directories removed per second
+     * by {@link #setAsyncCleanup(boolean) background cleanup}, so it does not
+     * compete with transactions for the disk.
+     * 
+     * @param cleanupRate maximum number of deletes per second, <code>0</code> for no limit
+     * @since 1.3
+     */
+    public void setCleanupRate(int cleanupRate) {
+        if (cleanupRate < 0) {
+            throw new IllegalArgumentException("Cleanup rate must not be negative");
+        }
+        this.cleanupRate = cleanupRate;
+    }
+
+    /**
+     * Gets the maximum number of files and directories removed per second
+     * by background cleanup.
+     * 
+     * @return maximum number of deletes per second, <code>0</code> for no limit
+     * @since 1.3
+     */
+    public int getCleanupRate() {
+        return cleanupRate;
+    }
+
+    /**
+     * Switches to multi version storage. Every transaction then reads a
+     * consistent snapshot of the store as of its start and does not acquire
+     * locks for reading, so readers never block writers or vice versa. Each
+     * commit publishes a new version of the store. Versions of files it
+     * replaces or deletes are kept in the work directory as long as
+     * transactions started before the commit are still running. <br>
+     * <br>
+     * Writes still acquire exclusive locks. A transaction that locks a
+     * resource for writing which has been changed by a transaction committed
+     * after its snapshot has been taken fails with
+     * {@link ResourceManagerErrorCodes#ERR_CONFLICT} (first committer wins).
+     * Only files are versioned, directories are always read as committed
+     * last. Light weight transactions outside of explicit transactions keep
+     * reading the latest committed version. This must be set before the
+     * resource manager is started.
+     * 
+     * @param snapshotIsolation <code>true</code> to read snapshots
+     * @since 1.3
+     */
+    public void setSnapshotIsolation(boolean snapshotIsolation) {
+        this.snapshotIsolation = snapshotIsolation;
+    }
+
+    /**
+     * Checks if transactions read snapshots of multi version storage.
+     * 
+     * @return <code>true</code> if snapshot isolation is enabled
+     * @since 1.3
+     */
+    public boolean isSnapshotIsolation() {
+        return snapshotIsolation;
+    }
+
+    /**
+     * Switches to optimistic concurrency control. Transactions then do not
+     * acquire any locks while they are running, but remember which
+     * resources they read and write and when they first accessed them. When
+     * a transaction is prepared or committed, it locks these resources,
+     * waiting at most for the {@link #setLockTimeout(long) lock timeout}, and
+     * validates that none of them has been changed by a transaction
+     * committed since. Otherwise it fails with
+     * {@link ResourceManagerErrorCodes#ERR_CONFLICT} and is rolled back.
+     * This pays off when transactions rarely access the same resources.
+     * Read only transactions are validated as well. This must be set before
+     * the resource manager is started.
+     * 
+     * @param optimistic <code>true</code> for optimistic transactions
+     * @since 1.3
+     */
+    public void setOptimistic(boolean optimistic) {
+        this.optimistic = optimistic;
+    }
+
+    /**
+     * Checks if transactions are optimistic.
+     * 
+     * @return <code>true</code> if optimistic concurrency control is used
+     * @since 1.3
+     */
+    public boolean isOptimistic() {
+        return optimistic;
+    }
+
+    /**
+     * Sets the maximum number of committed resources whose
+     * {@link #getResourceMetadata(Object, Object) metadata} is cached. The
+     * least recently used entries are evicted first. Commits invalidate the
+     * entries of all resources they change. Changes made to the store
+     * directory bypassing this resource manager are not noticed.
+     * 
+     * @param size maximum number of entries, <code>0</code> to disable caching
+     * @since 1.3
+     */
+    public void setMetadataCacheSize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Cache size must not be negative");
+        }
+        synchronized (metadataLock) {
+            metadataCacheSize = size;
+            if (metadataCache != null) {
+                metadataCache.clear();
+            }
+        }
+    }
+
+    /**
+     * Gets the maximum number of cached metadata entries.
+     * 
+     * @return maximum number of entries
+     * @since 1.3
+     */
+    public int getMetadataCacheSize() {
+        return metadataCacheSize;
+    }
+
+    /**
+     * Enables locks on collections, i.e. directories. Transactions then lock
+     * the parent collection of every resource they create or delete
+     * exclusively, so they have to wait for transactions
+     * {@link #listResources(Object, Object) listing} this collection and vice
+     * versa. This protects listings from phantoms, but serializes all
+     * transactions creating or deleting resources in the same collection.
+     * Without collection locking, listings only lock the collection itself.
+     * 
+     * @param collectionLocking <code>true</code> to lock collections
+     * @since 1.3
+     */
+    public void setCollectionLocking(boolean collectionLocking) {
+        this.collectionLocking = collectionLocking;
+    }
+
+    /**
+     * Checks if creates and deletes lock their collections.
+     * 
+     * @return <code>true</code> if collections are locked
+     * @since 1.3
+     */
+    public boolean isCollectionLocking() {
+        return collectionLocking;
+    }
+
+    /**
+     * Checks if background recovery is still running.
+     * 
+     * @return <code>true</code> if there still are pending transactions to recover
+     * @since 1.3
+     */
+    public boolean isRecovering() {
+        return recoveryPending;
+    }
+
+    /**
+     * Checks if recovery of pending transactions or a commit or rollback has
+     * failed, so no modifications are allowed until recovery has been run
+     * successfully.
+     * 
+     * @return <code>true</code> if the resource manager is in dirty mode
+     * @since 1.3
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Gets the journal used to record transaction states. It also provides
+     * metrics about group commits.
+     * 
+     * @return the journal or <code>null</code> if it is not enabled or the resource manager is not started
+     * @since 1.3
+     */
+    public TransactionJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Gets the lock manager used by this resource manager.
+     * 
+     * @return the lock manager or <code>null</code> if it has not been started, yet
+     * @since 1.3
+     */
+    public LockManager2 getLockManager() {
+        return lockManager;
+    }
+
+    /**
+     * Sets a listener to be informed about prepared, committed and rolled
+     * back transactions.
+     * 
+     * @param transactionListener the listener or <code>null</code> for none
+     * @since 1.3
+     */
+    public void setTransactionListener(TransactionListener transactionListener) {
+        this.transactionListener = transactionListener;
+    }
+
+    /*
+     * --- public methods of interface ResourceManager ---
+     *
+     *  
+     */
+
+    public boolean lockResource(Object resourceId, Object txId) throws ResourceManagerException {
+        lockResource(resourceId, txId, false);
+        // XXX will never return false as it will either throw or return true
+        return true;
+    }
+
+    public boolean lockResource(Object resourceId, Object txId, boolean shared) throws ResourceManagerException {
+        lockResource(resourceId, txId, shared, true, lockTimeout, true);
+        // XXX will never return false as it will either throw or return true
+        return true;
+    }
+
+    public boolean lockResource(
+        Object resourceId,
+        Object txId,
+        boolean shared,
+        boolean wait,
+        long timeoutMSecs,
+        boolean reentrant)
+        throws ResourceManagerException {
+
+        TransactionContext context = (shared ? txInitialSaneCheck(txId) : txInitialSaneCheckForWriting(txId));
+        assureNotMarkedForRollback(context);
+        fileInitialSaneCheck(txId, resourceId);
+        if (recoveryPending) {
+            waitForRecovery(txId, resourceId, Math.min(timeoutMSecs, context.timeoutMSecs));
+        }
+
+        if (optimistic) {
+            // locks are only acquired for validation
+            context.recordAccess(getIndexKey(resourceId), !shared);
+            if (!shared) {
+                context.assureWorkDir();
+            }
+            return true;
+        }
+        if (shared && context.snapshotVersion != -1) {
+            // the snapshot can not change
+            return true;
+        }
+
+        // XXX allows locking of non existent resources (e.g. to prepare a create)
+        int level = (shared ? getSharedLockLevel(context) : LOCK_EXCLUSIVE);
+        try {
+            lockManager.lock(txId, resourceId, level, reentrant, Math.min(timeoutMSecs,
+                    context.timeoutMSecs));
+            if (!shared) {
+                if (context.snapshotVersion != -1) {
+                    checkConflict(context, resourceId);
+                }
+                // write intent, from now on this tx needs to be recoverable
+                context.assureWorkDir();
+            }
+            // XXX will never return false as it will either throw or return true
+            return true;
+        } catch (LockException e) {
+            switch (e.getCode()) {
+            case LockException.CODE_INTERRUPTED:
+                throw new ResourceManagerException("Could not get lock for resource at '"
+                        + resourceId + "'", ERR_NO_LOCK, txId);
+            case LockException.CODE_TIMED_OUT:
+                throw new ResourceManagerException("Lock timed out for resource at '" + resourceId
+                        + "'", ERR_NO_LOCK, txId);
+            case LockException.CODE_DEADLOCK_VICTIM:
+                throw new ResourceManagerException("Deadlock victim resource at '" + resourceId
+                        + "'", ERR_DEAD_LOCK, txId);
+            default :
+                throw new ResourceManagerException("Locking exception for resource at '" + resourceId
+                        + "'", ERR_DEAD_LOCK, txId);
+            }
+        }
+    }
+
+    public int getDefaultIsolationLevel() {
+        return DEFAULT_ISOLATION_LEVEL;
+    }
+
+    public int[] getSupportedIsolationLevels() throws ResourceManagerException {
+        return new int[] { ISOLATION_LEVEL_READ_COMMITTED, ISOLATION_LEVEL_REPEATABLE_READ };
+    }
+
+    public boolean isIsolationLevelSupported(int level) throws ResourceManagerException {
+        return (level == ISOLATION_LEVEL_READ_COMMITTED || level == ISOLATION_LEVEL_REPEATABLE_READ);
+    }
+
+    /**
+     * Gets the default transaction timeout in <em>milliseconds</em>.
+     */
+    public long getDefaultTransactionTimeout() {
+        return defaultTimeout;
+    }
+
+    /**
+     * Sets the default transaction timeout.
+     * 
+     * @param timeout timeout in <em>milliseconds</em>
+     */
+    public void setDefaultTransactionTimeout(long timeout) {
+        defaultTimeout = timeout;
+    }
+
+    public long getTransactionTimeout(Object txId) throws ResourceManagerException {
+        assureRMReady();
+        long msecs = 0;
+        TransactionContext context = getContext(txId);
+        if (context == null) {
+            msecs = getDefaultTransactionTimeout();
         } else {
-            logger.logWarning("Failed to stop RM");
+            msecs = context.timeoutMSecs;
+        }
+        return msecs;
+    }
+
+    public void setTransactionTimeout(Object txId, long mSecs) throws ResourceManagerException {
+        assureRMReady();
+        TransactionContext context = getContext(txId);
+        if (context != null) {
+            context.timeoutMSecs = mSecs;
+        } else {
+            throw new ResourceManagerException(ERR_NO_TX, txId);
+        }
+    }
+
+    public int getIsolationLevel(Object txId) throws ResourceManagerException {
+        assureRMReady();
+        TransactionContext context = getContext(txId);
+        if (context == null) {
+            return DEFAULT_ISOLATION_LEVEL;
+        } else {
+            return context.isolationLevel;
+        }
+    }
+
+    public void setIsolationLevel(Object txId, int level) throws ResourceManagerException {
+        assureRMReady();
+        TransactionContext context = getContext(txId);
+        if (context != null) {
+            if (level != ISOLATION_LEVEL_READ_COMMITTED || level != ISOLATION_LEVEL_REPEATABLE_READ) {
+                context.isolationLevel = level;
+            } else {
+                throw new ResourceManagerException(ERR_ISOLATION_LEVEL_UNSUPPORTED, txId);
+            }
+        } else {
+            throw new ResourceManagerException(ERR_NO_TX, txId);
+        }
+    }
+
+    public synchronized void start() throws ResourceManagerSystemException {
+
+        logger.logInfo("Starting RM at '" + storeDir + "' / '" + workDir + "'");
+
+        checkFileSystems();
+
+        operationMode = OPERATION_MODE_STARTING;
+
+        globalTransactions = Collections.synchronizedMap(new HashMap());
+        lockManager = (customLockManager != null ? customLockManager : createLockManager());
+        globalOpenResources = Collections.synchronizedList(new ArrayList());
+
+        openJournal();
+        startCommitWorkers();
+        synchronized (metadataLock) {
+            // the store may have been changed while we were stopped
+            metadataCache = createMetadataCache();
+        }
+        if (readCheckpoint()) {
+            logger.logInfo("Skipping recovery after clean shutdown");
+        } else {
+            recover();
+        }
+        startCleanup();
+        resetVersions();
+        sync();
+
+        operationMode = OPERATION_MODE_STARTED;
+
+        if (dirty) {
+            logger.logWarning("Started RM, but in dirty mode only (Recovery of pending transactions failed)");
+        } else {
+            logger.logInfo("Started RM");
+        }
+
+    }
+
+    /**
+     * Checks if files can be renamed from the work directory to the store
+     * directory. If not, commits have to copy all data, which is reported
+     * as a warning or fails when {@link #setAtomicCommit(boolean) atomic
+     * commits} are required.
+     * 
+     * @throws ResourceManagerSystemException if atomic commits are required,
+     *             but not possible
+     * @since 1.3
+     */
+    protected void checkFileSystems() throws ResourceManagerSystemException {
+        boolean possible;
+        try {
+            possible = FileHelper.isAtomicMovePossible(new File(workDir), new File(storeDir));
+        } catch (IOException e) {
+            String msg = "Could not check file systems of '" + workDir + "' and '" + storeDir + "'";
+            logger.logWarning(msg, e);
+            if (atomicCommit) {
+                throw new ResourceManagerSystemException(msg, ERR_SYSTEM, null, e);
+            }
+            return;
+        }
+        if (!possible) {
+            String msg = "Work directory '" + workDir + "' and store directory '" + storeDir
+                    + "' are not on the same file system, commits have to copy data";
+            if (atomicCommit) {
+                logger.logSevere(msg);
+                throw new ResourceManagerSystemException(msg, ERR_SYSTEM, null);
+            }
+            logger.logWarning(msg);
+        }
+    }
+
+    /**
+     * Creates the lock manager used when none has been passed to the
+     * constructor. Subclasses may override this to use a different
+     * implementation.
+     * 
+     * @return a new lock manager
+     * @since 1.3
+     */
+    protected LockManager2 createLockManager() {
+        GenericLockManager genericLockManager = new GenericLockManager(LOCK_COMMIT, logger,
+                GenericLockManager.DEFAULT_TIMEOUT, deadlockCheckThreshhold);
+        genericLockManager.setLockListener(lockListener);
+        return genericLockManager;
+    }
+
+    /**
+     * Creates the journal used when {@link #setJournalEnabled(boolean)
+     * enabled}.
+     * 
+     * @return a new, not yet opened journal
+     * @since 1.3
+     */
+    protected TransactionJournal createJournal() {
+        TransactionJournal journal = new TransactionJournal(new File(workDir, JOURNAL_FILE), logger);
+        journal.setCheckpointInterval(journalCheckpointInterval);
+        if (durability == DURABILITY_GROUP_FSYNC) {
+            journal.setGroupCommit(groupCommitSize, groupCommitWaitMSecs);
+        } else {
+            // concurrent committers still share a force, but nobody waits for others to join
+            journal.setGroupCommit(1, 0);
+        }
+        return journal;
+    }
+
+    protected void openJournal() throws ResourceManagerSystemException {
+        journal = null;
+        TransactionJournal journal = createJournal();
+        journalCreated = !journal.getFile().exists() && !journal.getBackupFile().exists();
+        if (!journalEnabled && journalCreated) {
+            return;
+        }
+        try {
+            journal.open();
+            if (!journalEnabled) {
+                if (journal.getRecords().isEmpty()) {
+                    // nothing pending, we can switch to transaction.log files now
+                    journal.close();
+                    if (!journal.getFile().delete()) {
+                        logger.logWarning("Could not remove disabled journal '" + journal.getFile() + "'");
+                    }
+                    return;
+                }
+                logger.logWarning("Journal '" + journal.getFile()
+                        + "' still records pending transactions, using it although it is disabled");
+            }
+        } catch (IOException e) {
+            String msg = "Opening journal '" + journal.getFile() + "' failed";
+            logger.logSevere(msg, e);
+            throw new ResourceManagerSystemException(msg, ERR_SYSTEM, null, e);
+        }
+        this.journal = journal;
+    }
+
+    /**
+     * Starts the threads helping to commit large transactions if there is
+     * more than one {@link #setCommitThreads(int) commit thread}.
+     * 
+     * @since 1.3
+     */
+    protected void startCommitWorkers() {
+        if (commitThreads > 1 && commitWorkers == null) {
+            // the committing thread does its share itself
+            commitWorkers = new WorkerPool("Commit of " + storeDir, commitThreads - 1, logger);
+            commitWorkers.start();
+        }
+    }
+
+    /**
+     * Stops the threads helping to commit large transactions. Commits still
+     * running afterwards do all their work themselves.
+     * 
+     * @since 1.3
+     */
+    protected void stopCommitWorkers() {
+        WorkerPool workers = commitWorkers;
+        if (workers != null) {
+            workers.stop();
+            commitWorkers = null;
+        }
+    }
+
+    /**
+     * Starts the thread removing work directories of finished transactions
+     * if {@link #setAsyncCleanup(boolean) enabled}. Otherwise leftovers of
+     * earlier background cleanups are removed at once.
+     * 
+     * @since 1.3
+     */
+    protected void startCleanup() {
+        File trash = new File(workDir, TRASH_DIR);
+        if (!asyncCleanup) {
+            if (trash.exists()) {
+                FileHelper.removeRec(trash);
+            }
+            return;
+        }
+        trash.mkdirs();
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    cleanUpTrash();
+                } catch (InterruptedException e) {
+                    // stopped
+                }
+            }
+        }, "Cleanup of " + workDir);
+        thread.setDaemon(true);
+        synchronized (trashLock) {
+            // leftovers of the last run
+            trashPending = true;
+            cleanupStopping = false;
+            cleanupThread = thread;
+        }
+        thread.start();
+    }
+
+    /**
+     * Stops background cleanup, leaving what has not been removed yet for
+     * the next start.
+     * 
+     * @since 1.3
+     */
+    protected void stopCleanup() {
+        Thread thread;
+        synchronized (trashLock) {
+            thread = cleanupThread;
+            if (thread == null) {
+                return;
+            }
+            cleanupStopping = true;
+            trashLock.notifyAll();
+        }
+        thread.interrupt();
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        synchronized (trashLock) {
+            cleanupThread = null;
+        }
+        // do not leave an empty trash behind
+        new File(workDir, TRASH_DIR).delete();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Moves a directory to the trash to have it removed in the background.
+     * 
+     * @param dir the directory to remove
+     * @return <code>false</code> if it could not be moved and still needs to be removed
+     * @since 1.3
+     */
+    protected boolean moveToTrash(File dir) {
+        File target;
+        synchronized (trashLock) {
+            if (cleanupThread == null || cleanupStopping) {
+                return false;
+            }
+            target = new File(new File(workDir, TRASH_DIR), dir.getName() + "." + trashCnt++);
+        }
+        if (!dir.renameTo(target)) {
+            return false;
+        }
+        synchronized (trashLock) {
+            trashPending = true;
+            trashLock.notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Empties the trash whenever something has been moved to it, until
+     * cleanup is stopped.
+     * 
+     * @throws InterruptedException if cleanup has been stopped
+     * @since 1.3
+     */
+    protected void cleanUpTrash() throws InterruptedException {
+        File trash = new File(workDir, TRASH_DIR);
+        long[] window = new long[] { System.currentTimeMillis(), 0 };
+        while (true) {
+            synchronized (trashLock) {
+                while (!trashPending && !cleanupStopping) {
+                    trashLock.wait();
+                }
+                if (cleanupStopping) {
+                    return;
+                }
+                trashPending = false;
+            }
+            File[] files = trash.listFiles();
+            if (files != null) {
+                for (int i = 0; i < files.length; i++) {
+                    removeThrottled(files[i], window);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes a file or directory tree, sleeping whenever the
+     * {@link #setCleanupRate(int) cleanup rate} has been reached.
+     * 
+     * @param file file or directory to remove
+     * @param window start of the current second and number of deletes in it
+     * @throws InterruptedException if cleanup has been stopped
+     * @since 1.3
+     */
+    protected void removeThrottled(File file, long[] window) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (int i = 0; i < children.length; i++) {
+                    removeThrottled(children[i], window);
+                }
+            }
+        }
+        file.delete();
+        if (cleanupRate > 0 && ++window[1] >= cleanupRate) {
+            long remaining = window[0] + 1000 - System.currentTimeMillis();
+            if (remaining > 0) {
+                Thread.sleep(remaining);
+            }
+            window[0] = System.currentTimeMillis();
+            window[1] = 0;
+        }
+    }
+
+    /**
+     * Consumes the checkpoint left by a clean shutdown.
+     * 
+     * @return <code>true</code> if there is nothing to recover
+     * @throws ResourceManagerSystemException if the removal of the checkpoint can not be made durable
+     * @since 1.3
+     */
+    protected boolean readCheckpoint() throws ResourceManagerSystemException {
+        File checkpoint = new File(workDir, CHECKPOINT_FILE);
+        if (!checkpoint.exists()) {
+            return false;
+        }
+        // it only holds for the shutdown it was written by
+        if (!checkpoint.delete()) {
+            logger.logWarning("Could not remove checkpoint '" + checkpoint + "', ignoring it");
+            return false;
+        }
+        if (durability >= DURABILITY_FSYNC) {
+            try {
+                FileHelper.syncDirectory(new File(workDir));
+            } catch (IOException e) {
+                // otherwise the checkpoint might be back after a crash
+                String msg = "Removal of checkpoint '" + checkpoint + "' could not be synced";
+                logger.logSevere(msg, e);
+                throw new ResourceManagerSystemException(msg, ERR_SYSTEM, null, e);
+            }
+        }
+        if (!fastStart || (journal != null && journal.getRecords().size() > 0)) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Leaves a checkpoint telling the next start there is nothing to recover,
+     * provided no transaction is pending.
+     * 
+     * @since 1.3
+     */
+    protected void writeCheckpoint() {
+        if (!fastStart || dirty || globalTransactions.size() > 0) {
+            return;
+        }
+        File checkpoint = new File(workDir, CHECKPOINT_FILE);
+        try {
+            FileOutputStream os = new FileOutputStream(checkpoint);
+            try {
+                if (durability >= DURABILITY_FSYNC) {
+                    os.getFD().sync();
+                }
+            } finally {
+                os.close();
+            }
+            if (durability >= DURABILITY_FSYNC) {
+                FileHelper.syncDirectory(new File(workDir));
+            }
+        } catch (IOException e) {
+            // next start will scan the work directory
+            logger.logWarning("Could not write checkpoint '" + checkpoint + "'", e);
+            checkpoint.delete();
+        }
+    }
+
+    protected void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                logger.logWarning("Closing journal '" + journal.getFile() + "' failed", e);
+            }
+            journal = null;
+        }
+    }
+
+    public synchronized boolean stop(int mode) throws ResourceManagerSystemException {
+        return stop(mode, getDefaultTransactionTimeout() * DEFAULT_COMMIT_TIMEOUT_FACTOR);
+    }
+
+    public synchronized boolean stop(int mode, long timeOut) throws ResourceManagerSystemException {
+
+        logger.logInfo("Stopping RM at '" + storeDir + "' / '" + workDir + "'");
+
+        operationMode = OPERATION_MODE_STOPPING;
+
+        waitForRecovery();
+        sync();
+        boolean success = shutdown(mode, timeOut);
+
+        releaseGlobalOpenResources();
+        stopCleanup();
+        stopCommitWorkers();
+
+        if (success) {
+            closeJournal();
+            writeCheckpoint();
+            operationMode = OPERATION_MODE_STOPPED;
+            logger.logInfo("Stopped RM");
+        } else {
+            logger.logWarning("Failed to stop RM");
+        }
+
+        return success;
+    }
+
+    /**
+     * Rolls all pending transactions forward or back. When called by
+     * {@link #start()} with background recovery enabled, the pending
+     * transactions are only blocked and handed to the recovery thread, so
+     * the returned value does not reflect their outcome yet. Use
+     * {@link #isRecovering()} to find out whether recovery is still running
+     * and {@link #isDirty()} for its result afterwards.
+     * 
+     * @return <code>true</code> if the resource manager is dirty, i.e. some
+     *         pending transactions could not be recovered
+     * @see #setBackgroundRecovery(boolean)
+     */
+    public synchronized boolean recover() throws ResourceManagerSystemException {
+        if (operationMode != OPERATION_MODE_STARTED && operationMode != OPERATION_MODE_STARTING) {
+            throw new ResourceManagerSystemException(
+                ERR_SYSTEM,
+                "Recovery is possible in started or starting resource manager only");
+        }
+        int oldMode = operationMode;
+        operationMode = OPERATION_MODE_RECOVERING;
+
+        waitForRecovery();
+        recoverContexts();
+        if (globalTransactions.size() > 0) {
+            logger.logInfo("Recovering pending transactions");
+        }
+
+        if (backgroundRecovery && oldMode == OPERATION_MODE_STARTING && globalTransactions.size() > 0) {
+            startBackgroundRecovery();
+        } else {
+            dirty = !rollBackOrForward();
+        }
+
+        operationMode = oldMode;
+        return dirty;
+    }
+
+    /**
+     * Blocks the resources of all pending transactions and starts a thread
+     * that rolls them forward or back.
+     * 
+     * @since 1.3
+     */
+    protected void startBackgroundRecovery() {
+        // new transactions will be registered as soon as we return, so
+        // settle which ones are to be recovered now
+        final ArrayList contexts;
+        synchronized (globalTransactions) {
+            contexts = new ArrayList(globalTransactions.values());
+        }
+        for (Iterator it = contexts.iterator(); it.hasNext();) {
+            TransactionContext context = (TransactionContext) it.next();
+            context.registerInDoubt();
+        }
+        recoveryPending = true;
+        recoveryThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    if (!rollBackOrForward(contexts)) {
+                        dirty = true;
+                        logger.logWarning("Recovery of pending transactions failed, setting database to dirty");
+                    } else {
+                        logger.logInfo("Finished recovery of pending transactions");
+                    }
+                } finally {
+                    inDoubtResources.clear();
+                    recoveryPending = false;
+                }
+            }
+        }, "Recovery of " + storeDir);
+        recoveryThread.start();
+    }
+
+    /**
+     * Waits until background recovery has finished.
+     * 
+     * @since 1.3
+     */
+    protected void waitForRecovery() {
+        Thread thread = recoveryThread;
+        if (thread == null) {
+            return;
+        }
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        recoveryThread = null;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits until a pending transaction that changed or deleted the resource
+     * has been recovered. Returns at once for all other resources.
+     * 
+     * @param txId transaction that wants to access the resource
+     * @param resourceId resource to be accessed
+     * @param timeoutMSecs maximum time to wait
+     * @throws ResourceManagerException if the transaction has not been
+     *             recovered in time
+     * @since 1.3
+     */
+    protected void waitForRecovery(Object txId, Object resourceId, long timeoutMSecs)
+            throws ResourceManagerException {
+        TransactionContext inDoubt = (TransactionContext) inDoubtResources.get(getIndexKey(resourceId));
+        if (inDoubt == null) {
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        synchronized (inDoubt) {
+            while (!inDoubt.finished) {
+                long remainingTimeout = startTime - System.currentTimeMillis() + timeoutMSecs;
+                if (remainingTimeout <= 0) {
+                    throw new ResourceManagerException("Resource at '" + resourceId
+                            + "' is still being recovered", ERR_NO_LOCK, txId);
+                }
+                try {
+                    inDoubt.wait(remainingTimeout);
+                } catch (InterruptedException e) {
+                    throw new ResourceManagerException("Could not get lock for resource at '"
+                            + resourceId + "'", ERR_NO_LOCK, txId);
+                }
+            }
+        }
+    }
+
+    public int getTransactionState(Object txId) throws ResourceManagerException {
+        TransactionContext context = getContext(txId);
+
+        if (context == null) {
+            return STATUS_NO_TRANSACTION;
+        } else {
+            return context.status;
+        }
+
+    }
+
+    public void startTransaction(Object txId) throws ResourceManagerException {
+
+        if (logger.isFineEnabled()) logger.logFine("Starting Tx " + txId);
+
+        assureStarted(); // can only start a new transaction when not already stopping
+        if (txId == null || txIdMapper.getPathForId(txId).length() == 0) {
+            throw new ResourceManagerException(ERR_TXID_INVALID, txId);
+        }
+
+        // a snapshot may have to wait for a commit, do not block others meanwhile
+        TransactionContext context = new TransactionContext(txId);
+        context.init();
+
+        // be sure we are the only ones who create this tx 
+        synchronized (globalTransactions) {
+            if (getContext(txId) != null) {
+                if (context.snapshotVersion != -1) {
+                    releaseSnapshot(context.snapshotVersion);
+                }
+                throw new ResourceManagerException(ERR_DUP_TX, txId);
+            }
+
+            globalTransactions.put(txId, context);
+
+        }
+    }
+
+    public void markTransactionForRollback(Object txId) throws ResourceManagerException {
+        assureRMReady();
+        TransactionContext context = txInitialSaneCheckForWriting(txId);
+        try {
+            context.status = STATUS_MARKED_ROLLBACK;
+            context.saveState();
+        } finally {
+            // be very sure to free locks and resources, as application might crash or otherwise forget to roll this tx back
+            context.finalCleanUp();
+        }
+    }
+
+    public int prepareTransaction(Object txId) throws ResourceManagerException {
+        assureRMReady();
+        // do not allow any further writing or commit or rollback when db is corrupt
+        if (dirty) {
+            throw new ResourceManagerSystemException(
+                "Database is set to dirty, this *may* mean it is corrupt. No modifications are allowed until a recovery run has been performed!",
+                ERR_SYSTEM,
+                txId);
+        }
+
+        if (txId == null) {
+            throw new ResourceManagerException(ERR_TXID_INVALID, txId);
+        }
+
+        TransactionContext context = getContext(txId);
+
+        if (context == null) {
+            return PREPARE_FAILURE;
+        }
+
+        synchronized (context) {
+
+            long started = System.currentTimeMillis();
+
+            sync();
+
+            if (context.status != STATUS_ACTIVE) {
+                context.status = STATUS_MARKED_ROLLBACK;
+                context.saveState();
+                return PREPARE_FAILURE;
+            }
+
+            if (logger.isFineEnabled()) logger.logFine("Preparing Tx " + txId);
+
+            int prepareStatus = PREPARE_FAILURE;
+
+            context.status = STATUS_PREPARING;
+            context.saveState();
+            // do all checks as early as possible
+            context.closeResources();
+            if (context.readOnly) {
+                if (optimistic) {
+                    // what has been read must still be valid
+                    try {
+                        context.validate();
+                    } catch (ResourceManagerException rme) {
+                        markTransactionForRollback(txId);
+                        throw rme;
+                    }
+                }
+                prepareStatus = PREPARE_SUCCESS_READONLY;
+            } else {
+                // do all checks as early as possible
+                try {
+                    context.upgradeLockToCommit();
+                } catch (ResourceManagerException rme) {
+                    // if this did not work, mark it for roll back as early as possible
+                    markTransactionForRollback(txId);
+                    throw rme;
+                }
+                context.syncChanges();
+                context.writeManifest();
+                prepareStatus = PREPARE_SUCCESS;
+            }
+            context.status = STATUS_PREPARED;
+            context.saveState();
+            if (logger.isFineEnabled()) logger.logFine("Prepared Tx " + txId);
+
+            if (transactionListener != null) {
+                transactionListener.transactionPrepared(txId, prepareStatus,
+                        System.currentTimeMillis() - started);
+            }
+
+            return prepareStatus;
+        }
+    }
+
+    public void rollbackTransaction(Object txId) throws ResourceManagerException {
+        assureRMReady();
+        TransactionContext context = txInitialSaneCheckForWriting(txId);
+        // needing synchronization in order not to interfer with shutdown thread
+        synchronized (context) {
+            long started = System.currentTimeMillis();
+            try {
+
+                if (logger.isFineEnabled()) logger.logFine("Rolling back Tx " + txId);
+
+                context.status = STATUS_ROLLING_BACK;
+                context.saveState();
+                context.rollback();
+                if (logger.isFineEnabled()) logger.logFine("All resources successfully removed for tx" + txId);
+                context.status = STATUS_ROLLEDBACK;
+                context.saveState();
+                globalTransactions.remove(txId);
+                context.cleanUp();
+
+                if (logger.isFineEnabled()) logger.logFine("Rolled back Tx " + txId);
+
+                if (transactionListener != null) {
+                    transactionListener.transactionRolledBack(txId, System.currentTimeMillis()
+                            - started);
+                }
+
+                // any system or runtime exceptions or errors thrown in rollback means we are in deep trouble, set the dirty flag
+            } catch (Error e) {
+                setDirty(txId, e);
+                throw e;
+            } catch (RuntimeException e) {
+                setDirty(txId, e);
+                throw e;
+            } catch (ResourceManagerSystemException e) {
+                setDirty(txId, e);
+                throw e;
+            } finally {
+                context.finalCleanUp();
+                // tell shutdown thread this tx is finished
+                context.notifyFinish();
+            }
+        }
+    }
+
+    public void commitTransaction(Object txId) throws ResourceManagerException {
+        assureRMReady();
+        TransactionContext context = txInitialSaneCheckForWriting(txId);
+        assureNotMarkedForRollback(context);
+
+        // needing synchronization in order not to interfer with shutdown thread
+        synchronized (context) {
+            long started = System.currentTimeMillis();
+            try {
+
+                if (logger.isFineEnabled()) logger.logFine("Committing Tx " + txId);
+
+                context.syncChanges();
+                context.writeManifest();
+                context.status = STATUS_COMMITTING;
+                context.saveState();
+                context.commit();
+                if (logger.isFineEnabled()) logger.logFine("All resources successfully moved for tx" + txId);
+                context.status = STATUS_COMMITTED;
+                context.saveState();
+                globalTransactions.remove(txId);
+                context.cleanUp();
+
+                if (logger.isFineEnabled()) logger.logFine("Committed Tx " + txId);
+
+                if (transactionListener != null) {
+                    transactionListener.transactionCommitted(txId, System.currentTimeMillis()
+                            - started);
+                }
+
+                // any system or runtime exceptions or errors thrown in rollback means we are in deep trouble, set the dirty flag
+            } catch (Error e) {
+                setDirty(txId, e);
+                throw e;
+            } catch (RuntimeException e) {
+                setDirty(txId, e);
+                throw e;
+            } catch (ResourceManagerSystemException e) {
+                setDirty(txId, e);
+                throw e;
+                // like "could not upgrade lock"
+            } catch (ResourceManagerException e) {
+                logger.logWarning("Could not commit tx " + txId + ", rolling back instead", e);
+                rollbackTransaction(txId);
+                if (e.getStatus() == ERR_CONFLICT) {
+                    // the caller has to retry
+                    throw e;
+                }
+            } finally {
+                context.finalCleanUp();
+                // tell shutdown thread this tx is finished
+                context.notifyFinish();
+            }
+        }
+    }
+
+    public boolean resourceExists(Object resourceId) throws ResourceManagerException {
+        if (isDirectReadPossible()) {
+            assureRMReady();
+            fileInitialSaneCheck(null, resourceId);
+            return new File(getMainPath(resourceId)).exists();
+        }
+
+        // create temporary light weight tx
+        Object txId;
+        TransactionContext context;
+        synchronized (globalTransactions) {
+            txId = generatedUniqueTxId();
+            if (logger.isFinerEnabled())
+                logger.logFiner("Creating temporary light weight tx " + txId + " to check for exists");
+            context = new TransactionContext(txId);
+            context.isLightWeight = true;
+            // XXX higher isolation might be needed to make sure upgrade to commit lock always works
+            context.isolationLevel = ISOLATION_LEVEL_READ_COMMITTED;
+            // context.isolationLevel = ISOLATION_LEVEL_REPEATABLE_READ;
+            globalTransactions.put(txId, context);
+        }
+
+        boolean exists = resourceExists(txId, resourceId);
+
+        context.freeLocks();
+        globalTransactions.remove(txId);
+        if (logger.isFinerEnabled())
+            logger.logFiner("Removing temporary light weight tx " + txId);
+
+        return exists;
+    }
+
+    /**
+     * Gets the version of a resource as seen by a transaction. Versions are
+     * opaque strings, which are equal if and only if the content of the
+     * resource is, for example suitable as an entity tag. They stay valid
+     * across restarts.
+     * 
+     * @param txId the transaction
+     * @param resourceId the resource
+     * @return the version or <code>null</code> if the resource does not exist or is a directory
+     * @throws ResourceManagerException if the resource can not be read
+     * @since 1.3
+     */
+    public String getResourceVersion(Object txId, Object resourceId) throws ResourceManagerException {
+        ResourceMetadata metadata = getResourceMetadata(txId, resourceId);
+        return (metadata != null ? metadata.getVersion() : null);
+    }
+
+    /**
+     * Gets size, modification time and version of a resource as seen by a
+     * transaction, including its own changes. Metadata of committed
+     * resources is taken from a cache whenever possible, so most calls do
+     * not need to open any file.
+     * 
+     * @param txId the transaction
+     * @param resourceId the resource
+     * @return the metadata or <code>null</code> if the resource does not exist
+     * @throws ResourceManagerException if the resource can not be read
+     * @see #setMetadataCacheSize(int)
+     * @since 1.3
+     */
+    public ResourceMetadata getResourceMetadata(Object txId, Object resourceId)
+            throws ResourceManagerException {
+        lockResource(resourceId, txId, true);
+
+        String resourcePath = getPathForRead(txId, resourceId);
+        if (resourcePath == null) {
+            return null;
+        }
+        String key = getIndexKey(resourceId);
+        TransactionContext context = getContext(txId);
+        File file = new File(resourcePath);
+        boolean committed = resourcePath.equals(getMainPath(resourceId));
+        long generation;
+        synchronized (metadataLock) {
+            // snapshots only share the cache as long as they see the current file
+            if (committed
+                    && (context.snapshotVersion == -1 || getSnapshotFile(key, file,
+                            context.snapshotVersion) == file)) {
+                ResourceMetadata metadata = (ResourceMetadata) metadataCache.get(key);
+                if (metadata != null) {
+                    return metadata;
+                }
+            }
+            generation = metadataGeneration;
+        }
+
+        if (file.isDirectory()) {
+            // not cached, as its modification time changes with its content
+            return new ResourceMetadata(0, file.lastModified(), true, null);
+        }
+        FileInputStream stream = null;
+        ResourceMetadata metadata;
+        long lastModified;
+        try {
+            if (committed && context.snapshotVersion != -1) {
+                // like openForRead, but we need to know which file has been opened
+                synchronized (versionLock) {
+                    File snapshotFile = getSnapshotFile(key, file, context.snapshotVersion);
+                    if (snapshotFile == null) {
+                        throw new FileNotFoundException(resourcePath);
+                    }
+                    if (snapshotFile != file) {
+                        // replaced after the snapshot, the old version is not cached
+                        committed = false;
+                        file = snapshotFile;
+                    }
+                    stream = new FileInputStream(file);
+                    lastModified = file.lastModified();
+                }
+            } else {
+                stream = new FileInputStream(file);
+                lastModified = file.lastModified();
+            }
+            long size = stream.getChannel().size();
+            metadata = new ResourceMetadata(size, lastModified, false, computeVersion(stream));
+        } catch (IOException e) {
+            throw new ResourceManagerSystemException("Can not read metadata of resource at '"
+                    + resourceId + "'", ERR_SYSTEM, txId, e);
+        } finally {
+            closeOpenResource(stream);
+        }
+
+        if (committed) {
+            synchronized (metadataLock) {
+                // a commit in the meantime may have changed it
+                if (generation == metadataGeneration && metadataCacheSize > 0) {
+                    metadataCache.put(key, metadata);
+                }
+            }
+        }
+        return metadata;
+    }
+
+    /**
+     * Creates the map caching metadata of committed resources, evicting the
+     * least recently used entry when it grows beyond the configured size.
+     * This is called upon every start.
+     * 
+     * @return an empty cache
+     * @since 1.3
+     */
+    protected Map createMetadataCache() {
+        return new LinkedHashMap(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry eldest) {
+                return size() > metadataCacheSize;
+            }
+        };
+    }
+
+    /**
+     * Removes cached metadata of resources changed or deleted by a commit.
+     * 
+     * @param changed index keys of the changed resources
+     * @param deleted index keys of the deleted resources
+     * @since 1.3
+     */
+    protected void invalidateMetadata(Collection changed, Collection deleted) {
+        if (changed.isEmpty() && deleted.isEmpty()) {
+            // nothing to do for read only transactions
+            return;
+        }
+        synchronized (metadataLock) {
+            // metadata read concurrently may already be outdated
+            metadataGeneration++;
+            for (Iterator it = changed.iterator(); it.hasNext();) {
+                metadataCache.remove(it.next());
+            }
+            for (Iterator it = deleted.iterator(); it.hasNext();) {
+                metadataCache.remove(it.next());
+            }
+        }
+    }
+
+    /**
+     * Fails unless a resource has the expected version.
+     * 
+     * @param txId the transaction
+     * @param resourceId the resource
+     * @param version expected version, <code>null</code> if the resource is expected not to exist
+     * @throws ResourceManagerException if the version is different
+     * @since 1.3
+     */
+    protected void checkResourceVersion(Object txId, Object resourceId, String version)
+            throws ResourceManagerException {
+        String current = getResourceVersion(txId, resourceId);
+        if (version == null ? current != null : !version.equals(current)) {
+            throw new ResourceManagerException("Resource at '" + resourceId + "' has version "
+                    + current + " instead of " + version, ERR_CONFLICT, txId);
+        }
+    }
+
+    /**
+     * Computes the version of content as the hex encoded digest of it.
+     * 
+     * @param in the content
+     * @return the version
+     * @throws IOException if the content can not be read
+     * @since 1.3
+     */
+    protected String computeVersion(InputStream in) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(VERSION_DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Digest " + VERSION_DIGEST_ALGORITHM + " is not available");
+        }
+        byte[] buffer = new byte[8192];
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            digest.update(buffer, 0, len);
+        }
+        byte[] hash = digest.digest();
+        StringBuffer buf = new StringBuffer(hash.length * 2);
+        for (int i = 0; i < hash.length; i++) {
+            int b = hash[i] & 0xff;
+            if (b < 0x10) {
+                buf.append('0');
+            }
+            buf.append(Integer.toHexString(b));
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Lists the members of a collection, i.e. the resources and collections
+     * directly contained in a directory, as seen by a transaction. Committed
+     * members are merged with the ones created and deleted by the
+     * transaction itself. The directory is read while iterating, so huge
+     * collections are not held in memory; only members created by the
+     * transaction are collected in advance. The listing must be consumed
+     * before the transaction ends and should not be used concurrently with
+     * changes in the same transaction.
+     * <br>
+     * The collection is locked like a resource being read. Members created or
+     * deleted by other transactions are only kept out while the listing
+     * transaction runs if {@link #setCollectionLocking(boolean) collection
+     * locking} is enabled. Listings assume resource identifiers to be paths,
+     * which is not the case with every {@link ResourceIdToPathMapper}.
+     * 
+     * @param txId the transaction
+     * @param prefix the collection to list
+     * @return iterator over the paths of the members as strings, in no
+     *         particular order
+     * @throws ResourceManagerException if the collection does not exist
+     * @since 1.3
+     */
+    public Iterator listResources(Object txId, Object prefix) throws ResourceManagerException {
+
+        if (logger.isFineEnabled()) logger.logFine(txId + " listing " + prefix);
+
+        String key = getIndexKey(prefix);
+        lockResource(key, txId, true);
+
+        TransactionContext context = getContext(txId);
+        File dir = new File(getMainPath(key));
+        Set added = new HashSet();
+        synchronized (context) {
+            collectMembers(key, context.changedFiles, added);
+            collectMembers(key, context.changedDirs, added);
+        }
+        if (context.snapshotVersion != -1) {
+            // resources deleted after the snapshot are only preserved as versions
+            synchronized (versionLock) {
+                Set preserved = new HashSet();
+                collectMembers(key, versionChains.keySet(), preserved);
+                for (Iterator it = preserved.iterator(); it.hasNext();) {
+                    String member = (String) it.next();
+                    if (!new File(storeDir, member).exists()
+                            && getSnapshotFile(member, null, context.snapshotVersion) != null) {
+                        added.add(member);
+                    }
+                }
+            }
+        }
+        if (!dir.isDirectory() && !context.isChangedDir(key) && added.isEmpty()) {
+            throw new ResourceManagerException("No such collection at '" + prefix + "'",
+                    ERR_NO_SUCH_RESOURCE, txId);
+        }
+
+        try {
+            DirectoryIterator names = new DirectoryIterator(dir);
+            context.registerResource(names);
+            return new ResourceListing(context, key, names, added);
+        } catch (IOException e) {
+            throw new ResourceManagerSystemException("Can not list collection at '" + prefix
+                    + "'", ERR_SYSTEM, txId, e);
+        }
+    }
+
+    public boolean resourceExists(Object txId, Object resourceId) throws ResourceManagerException {
+        lockResource(resourceId, txId, true);
+        return (getPathForRead(txId, resourceId) != null);
+    }
+
+    public void deleteResource(Object txId, Object resourceId) throws ResourceManagerException {
+        deleteResource(txId, resourceId, true);
+    }
+
+    /**
+     * Deletes a resource only if it still has the given version. This allows
+     * read-modify-write cycles spanning several short transactions instead of
+     * holding a lock in between.
+     * 
+     * @param txId the transaction
+     * @param resourceId the resource to delete
+     * @param version the version it is expected to have as returned by
+     *            {@link #getResourceVersion(Object, Object)}
+     * @throws ResourceManagerException with
+     *             {@link ResourceManagerErrorCodes#ERR_CONFLICT} if the
+     *             resource has a different version or no longer exists
+     * @since 1.3
+     */
+    public void deleteResourceIfMatch(Object txId, Object resourceId, String version)
+            throws ResourceManagerException {
+        lockResource(resourceId, txId, false);
+        checkResourceVersion(txId, resourceId, version);
+        deleteResource(txId, resourceId, false);
+    }
+
+    public void deleteResource(Object txId, Object resourceId, boolean assureOnly) throws ResourceManagerException {
+
+        if (logger.isFineEnabled()) logger.logFine(txId + " deleting " + resourceId);
+
+        lockResource(resourceId, txId, false);
+
+        if (getPathForRead(txId, resourceId) == null) {
+            if (assureOnly) {
+                return;
+            }
+            throw new ResourceManagerException("No such resource at '" + resourceId + "'", ERR_NO_SUCH_RESOURCE, txId);
+        }
+        lockCollection(txId, resourceId);
+        String txDeletePath = getDeletePath(txId, resourceId);
+        String mainPath = getMainPath(resourceId);
+        try {
+            getContext(txId).readOnly = false;
+
+            // first undo change / create when there was one
+            undoScheduledChangeOrCreate(txId, resourceId);
+
+            // if there still is a file in main store, we need to schedule
+            // a delete additionally
+            if (FileHelper.fileExists(mainPath)) {
+                if (!manifestEnabled) {
+                    FileHelper.createFile(txDeletePath);
+                }
+                getContext(txId).indexDelete(getIndexKey(resourceId), true);
+            }
+        } catch (IOException e) {
+            throw new ResourceManagerSystemException(
+                "Can not delete resource at '" + resourceId + "'",
+                ERR_SYSTEM,
+                txId,
+                e);
+        }
+    }
+
+    public void createResource(Object txId, Object resourceId) throws ResourceManagerException {
+        createResource(txId, resourceId, true);
+    }
+
+    public void createResource(Object txId, Object resourceId, boolean assureOnly) throws ResourceManagerException {
+
+        if (logger.isFineEnabled()) logger.logFine(txId + " creating " + resourceId);
+
+        lockResource(resourceId, txId, false);
+
+        if (getPathForRead(txId, resourceId) != null) {
+            if (assureOnly) {
+                return;
+            }
+            throw new ResourceManagerException(
+                "Resource at '" + resourceId + "', already exists",
+                ERR_RESOURCE_EXISTS,
+                txId);
+        }
+        lockCollection(txId, resourceId);
+
+        String txChangePath = getChangePath(txId, resourceId);
+        try {
+            getContext(txId).readOnly = false;
+            
+            // creation means either undoing a delete or actually scheduling a create
+            if (!undoScheduledDelete(txId, resourceId)) {
+                FileHelper.createFile(txChangePath);
+                getContext(txId).indexChange(getIndexKey(resourceId), true);
+            }
+
+        } catch (IOException e) {
+            throw new ResourceManagerSystemException(
+                "Can not create resource at '" + resourceId + "'",
+                ERR_SYSTEM,
+                txId,
+                e);
+        }
+    }
+
+    public void copyResource(Object txId, Object fromResourceId, Object toResourceId, boolean overwrite) throws ResourceManagerException {
+        if (logger.isFineEnabled()) logger.logFine(txId + " copying " + fromResourceId + " to " + toResourceId);
+
+        lockResource(fromResourceId, txId, true);
+        lockResource(toResourceId, txId, false);
+
+        if (resourceExists(txId, toResourceId) && !overwrite) {
+            throw new ResourceManagerException(
+                "Resource at '" + toResourceId + "' already exists",
+                ERR_RESOURCE_EXISTS,
+                txId);
+        }
+
+        String fromPath = getPathForRead(txId, fromResourceId);
+        if (fromPath == null) {
+            throw new ResourceManagerException("No such resource at '" + fromResourceId + "'", ERR_NO_SUCH_RESOURCE, txId);
+        }
+        String toPath = getPathForWrite(txId, toResourceId);
+        getContext(txId).readOnly = false;
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        try {
+            // a snapshot must not copy a version committed after the path has been resolved
+            in = openForRead(txId, fromResourceId, fromPath);
+            out = new FileOutputStream(toPath);
+            // copy file to file, so the data does not have to pass the heap
+            FileHelper.copy(in.getChannel(), out.getChannel());
+        } catch (IOException e) {
+            throw new ResourceManagerException(ERR_SYSTEM, txId, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    public void moveResource(Object txId, Object fromResourceId, Object toResourceId, boolean overwrite) throws ResourceManagerException {
+        if (logger.isFineEnabled()) logger.logFine(txId + " moving " + fromResourceId + " to " + toResourceId);
+
+        lockResource(fromResourceId, txId, false);
+        lockResource(toResourceId, txId, false);
+
+        copyResource(txId, fromResourceId, toResourceId, overwrite);
+
+        deleteResource(txId, fromResourceId, false);
+    }
+
+    public InputStream readResource(Object resourceId) throws ResourceManagerException {
+        if (isDirectReadPossible()) {
+            return openCommitted(resourceId);
+        }
+
+        // create temporary light weight tx
+        Object txId;
+        synchronized (globalTransactions) {
+            txId = generatedUniqueTxId();
+            if (logger.isFinerEnabled())
+                logger.logFiner("Creating temporary light weight tx " + txId + " for reading");
+            TransactionContext context = new TransactionContext(txId);
+            context.isLightWeight = true;
+            // XXX higher isolation might be needed to make sure upgrade to commit lock always works
+            context.isolationLevel = ISOLATION_LEVEL_READ_COMMITTED;
+            // context.isolationLevel = ISOLATION_LEVEL_REPEATABLE_READ;
+            globalTransactions.put(txId, context);
+        }
+
+        InputStream is = readResource(txId, resourceId);
+        return is;
+    }
+
+    public InputStream readResource(Object txId, Object resourceId) throws ResourceManagerException {
+
+        if (logger.isFineEnabled()) logger.logFine(txId + " reading " + resourceId);
+
+        lockResource(resourceId, txId, true);
+
+        String resourcePath = getPathForRead(txId, resourceId);
+        if (resourcePath == null) {
+            throw new ResourceManagerException("No such resource at '" + resourceId + "'", ERR_NO_SUCH_RESOURCE, txId);
         }
 
-        return success;
+        try {
+            FileInputStream stream = openForRead(txId, resourceId, resourcePath);
+            getContext(txId).registerResource(stream);
+            return new InputStreamWrapper(stream, txId, resourceId);
+        } catch (FileNotFoundException e) {
+            throw new ResourceManagerSystemException("File '" + resourcePath + "' does not exist", ERR_SYSTEM, txId);
+        }
     }
 
-    public synchronized boolean recover() throws ResourceManagerSystemException {
-        if (operationMode != OPERATION_MODE_STARTED && operationMode != OPERATION_MODE_STARTING) {
-            throw new ResourceManagerSystemException(
-                ERR_SYSTEM,
-                "Recovery is possible in started or starting resource manager only");
+    public OutputStream writeResource(Object txId, Object resourceId) throws ResourceManagerException {
+        return writeResource(txId, resourceId, false);
+    }
+
+    /**
+     * Opens a stream to replace a resource only if it still has the given
+     * version. This allows read-modify-write cycles spanning several short
+     * transactions instead of holding a lock in between.
+     * 
+     * @param txId the transaction
+     * @param resourceId the resource to write
+     * @param version the version it is expected to have as returned by
+     *            {@link #getResourceVersion(Object, Object)}, or
+     *            <code>null</code> if it is expected not to exist
+     * @return a stream to write the new content to
+     * @throws ResourceManagerException with
+     *             {@link ResourceManagerErrorCodes#ERR_CONFLICT} if the
+     *             resource has a different version
+     * @since 1.3
+     */
+    public OutputStream writeResourceIfMatch(Object txId, Object resourceId, String version)
+            throws ResourceManagerException {
+        lockResource(resourceId, txId, false);
+        checkResourceVersion(txId, resourceId, version);
+        return writeResource(txId, resourceId, false);
+    }
+
+    public OutputStream writeResource(Object txId, Object resourceId, boolean append) throws ResourceManagerException {
+
+        if (logger.isFineEnabled()) logger.logFine(txId + " writing " + resourceId);
+
+        lockResource(resourceId, txId, false);
+
+        String resourcePath = getPathForWrite(txId, resourceId, append);
+
+        try {
+            FileOutputStream stream = new FileOutputStream(resourcePath, append);
+            TransactionContext context = getContext(txId);
+            context.registerResource(stream);
+            context.readOnly = false;
+            return stream;
+        } catch (FileNotFoundException e) {
+            throw new ResourceManagerSystemException("File '" + resourcePath + "' does not exist", ERR_SYSTEM, txId);
         }
-        int oldMode = operationMode;
-        operationMode = OPERATION_MODE_RECOVERING;
+    }
 
-        recoverContexts();
-        if (globalTransactions.size() > 0) {
-            logger.logInfo("Recovering pending transactions");
+    /**
+     * Opens a channel to read a resource outside of any transaction, like
+     * {@link #readResource(Object)}. The channel allows for positional reads
+     * and for {@link FileChannel#transferTo(long, long, WritableByteChannel)
+     * transfers} to other channels, e.g. sockets, without copying data
+     * through the Java heap. It is read only and must be closed.
+     * 
+     * @param resourceId identifier for the resource to read
+     * @return a read only channel on the resource
+     * @throws ResourceManagerException if the resource does not exist or can not be read
+     * @since 1.3
+     */
+    public FileChannel readResourceChannel(Object resourceId) throws ResourceManagerException {
+        if (isDirectReadPossible()) {
+            return openCommitted(resourceId).getChannel();
         }
 
-        dirty = !rollBackOrForward();
+        // create temporary light weight tx
+        Object txId;
+        TransactionContext context;
+        synchronized (globalTransactions) {
+            txId = generatedUniqueTxId();
+            if (logger.isFinerEnabled())
+                logger.logFiner("Creating temporary light weight tx " + txId + " for reading");
+            context = new TransactionContext(txId);
+            context.isLightWeight = true;
+            context.isolationLevel = ISOLATION_LEVEL_READ_COMMITTED;
+            globalTransactions.put(txId, context);
+        }
 
-        operationMode = oldMode;
-        return dirty;
+        try {
+            return readResourceChannel(txId, resourceId);
+        } catch (ResourceManagerException e) {
+            // nobody will close a channel, so the tx has to be removed right now
+            context.freeLocks();
+            globalTransactions.remove(txId);
+            throw e;
+        }
     }
 
-    public int getTransactionState(Object txId) throws ResourceManagerException {
+    /**
+     * Opens a channel to read a resource as seen by the specified
+     * transaction. Locking is the same as with
+     * {@link #readResource(Object, Object)}. The channel is read only and
+     * will be closed when the transaction ends, if not closed before.
+     * 
+     * @param txId identifier for the transaction
+     * @param resourceId identifier for the resource to read
+     * @return a read only channel on the resource
+     * @throws ResourceManagerException if the resource does not exist or can not be read
+     * @see #readResourceChannel(Object)
+     * @since 1.3
+     */
+    public FileChannel readResourceChannel(Object txId, Object resourceId) throws ResourceManagerException {
+
+        if (logger.isFineEnabled()) logger.logFine(txId + " reading " + resourceId + " through channel");
+
+        lockResource(resourceId, txId, true);
+
+        String resourcePath = getPathForRead(txId, resourceId);
+        if (resourcePath == null) {
+            throw new ResourceManagerException("No such resource at '" + resourceId + "'", ERR_NO_SUCH_RESOURCE, txId);
+        }
+
+        try {
+            FileChannel channel = openForRead(txId, resourceId, resourcePath).getChannel();
+            getContext(txId).registerResource(channel);
+            return new FileChannelWrapper(channel, txId, resourceId);
+        } catch (FileNotFoundException e) {
+            throw new ResourceManagerSystemException("File '" + resourcePath + "' does not exist", ERR_SYSTEM, txId);
+        }
+    }
+
+    /**
+     * Maps the complete content of a resource into memory.
+     * 
+     * @param txId identifier for the transaction
+     * @param resourceId identifier for the resource to map
+     * @return a read only buffer on the content of the resource
+     * @throws ResourceManagerException if the resource does not exist or can not be mapped
+     * @see #mapResource(Object, Object, long, long)
+     * @since 1.3
+     */
+    public MappedByteBuffer mapResource(Object txId, Object resourceId) throws ResourceManagerException {
+        return mapResource(txId, resourceId, 0, -1);
+    }
+
+    /**
+     * Maps a segment of a resource into memory as seen by the specified
+     * transaction. Repeated reads of the buffer need neither system calls nor
+     * copies into the Java heap. Other than with the streams and channels the
+     * lock acquired for reading is kept until the transaction ends, so the
+     * mapped file will not be replaced by commits of other transactions.
+     * The buffer must not be used after the transaction has been committed
+     * or rolled back, as its content is undefined then.
+     * 
+     * @param txId identifier for the transaction
+     * @param resourceId identifier for the resource to map
+     * @param position position in the resource at which the segment starts
+     * @param size size of the segment or <code>-1</code> for all content
+     *            from the position on
+     * @return a read only buffer on the segment
+     * @throws ResourceManagerException if the resource does not exist or can
+     *             not be mapped, e.g. because it is larger than 2 GB
+     * @since 1.3
+     */
+    public MappedByteBuffer mapResource(Object txId, Object resourceId, long position, long size)
+            throws ResourceManagerException {
+
+        if (logger.isFineEnabled()) logger.logFine(txId + " mapping " + resourceId);
+
+        lockResource(resourceId, txId, true);
+
+        String resourcePath = getPathForRead(txId, resourceId);
+        if (resourcePath == null) {
+            throw new ResourceManagerException("No such resource at '" + resourceId + "'", ERR_NO_SUCH_RESOURCE, txId);
+        }
+
+        FileInputStream stream = null;
+        try {
+            stream = openForRead(txId, resourceId, resourcePath);
+            FileChannel channel = stream.getChannel();
+            if (size == -1) {
+                size = Math.max(0, channel.size() - position);
+            }
+            // the mapping stays valid when the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        } catch (IOException e) {
+            throw new ResourceManagerSystemException("Can not map resource at '" + resourceId + "'", ERR_SYSTEM, txId, e);
+        } catch (IllegalArgumentException e) {
+            throw new ResourceManagerSystemException("Can not map resource at '" + resourceId + "'", ERR_SYSTEM, txId, e);
+        } finally {
+            closeOpenResource(stream);
+        }
+    }
+
+    /**
+     * Opens a channel to write a resource, truncating any existing content.
+     * 
+     * @param txId identifier for the transaction
+     * @param resourceId identifier for the resource to write
+     * @return a channel on the resource
+     * @throws ResourceManagerException if the resource can not be written
+     * @see #writeResourceChannel(Object, Object, boolean)
+     * @since 1.3
+     */
+    public FileChannel writeResourceChannel(Object txId, Object resourceId) throws ResourceManagerException {
+        return writeResourceChannel(txId, resourceId, false);
+    }
+
+    /**
+     * Opens a channel to write a resource as part of the specified
+     * transaction. Locking is the same as with
+     * {@link #writeResource(Object, Object, boolean)}. The channel allows to
+     * read and write at any position, e.g. for scatter / gather I/O or for
+     * {@link FileChannel#transferFrom(ReadableByteChannel, long, long)
+     * transfers} from other channels. It will be closed when the transaction
+     * ends, if not closed before.
+     * 
+     * @param txId identifier for the transaction
+     * @param resourceId identifier for the resource to write
+     * @param append if <code>true</code> the existing content is kept and the
+     *            channel is positioned at its end, otherwise the content is
+     *            truncated
+     * @return a channel on the resource
+     * @throws ResourceManagerException if the resource can not be written
+     * @since 1.3
+     */
+    public FileChannel writeResourceChannel(Object txId, Object resourceId, boolean append)
+            throws ResourceManagerException {
+
+        if (logger.isFineEnabled()) logger.logFine(txId + " writing " + resourceId + " through channel");
+
+        lockResource(resourceId, txId, false);
+
+        String resourcePath = getPathForWrite(txId, resourceId, append);
+
+        try {
+            FileChannel channel = new RandomAccessFile(resourcePath, "rw").getChannel();
+            TransactionContext context = getContext(txId);
+            context.registerResource(channel);
+            context.readOnly = false;
+            if (append) {
+                channel.position(channel.size());
+            } else {
+                channel.truncate(0);
+            }
+            return channel;
+        } catch (FileNotFoundException e) {
+            throw new ResourceManagerSystemException("File '" + resourcePath + "' does not exist", ERR_SYSTEM, txId);
+        } catch (IOException e) {
+            throw new ResourceManagerSystemException("Can not write to resource at '" + resourceId + "'", ERR_SYSTEM, txId, e);
+        }
+    }
+
+    /*
+     * --- additional public methods complementing implementation of interfaces ---
+     *
+     *  
+     */
+
+    /**
+     * Resets the store by deleting work <em>and</em> store directory.
+     */
+    public synchronized void reset() {
+        FileHelper.removeRec(new File(storeDir));
+        FileHelper.removeRec(new File(workDir));
+        new File(storeDir).mkdirs();
+        new File(workDir).mkdirs();
+    }
+
+    /**
+     * Synchronizes persistent data with caches. Is implemented with an empty
+     * body, but called by other methods relying on synchronization. Subclasses
+     * that utilize caching must implement this method reasonably.
+     * 
+     * @throws ResourceManagerSystemException if anything fatal hapened during synchonization
+     */
+    public synchronized void sync() throws ResourceManagerSystemException {
+    }
+
+    /**
+     * Generates a transaction identifier unique to this resource manager. To do so
+     * it requires this resource manager to be started.
+     * 
+     * @return generated transaction identifier
+     * @throws ResourceManagerSystemException if this resource manager has not been started, yet
+     */
+    public String generatedUniqueTxId() throws ResourceManagerSystemException {
+        assureRMReady();
+        String txId;
+        synchronized (globalTransactions) {
+            do {
+                txId = Long.toHexString(System.currentTimeMillis()) + "-"
+                        + Integer.toHexString(idCnt++);
+                // XXX busy loop
+            } while (getContext(txId) != null);
+        }
+        return txId;
+    }
+
+    /*
+     * --- sane checks ---
+     *
+     *  
+     */
+
+    /**
+     * Opens a file resolved by {@link #getPathForRead(Object, Object)}. If
+     * it is the committed version of a resource read by a snapshot, a commit
+     * may have replaced it since, so the snapshot is resolved again while
+     * commits can not move versions.
+     * 
+     * @param txId the transaction
+     * @param resourceId the resource
+     * @param resourcePath the resolved path
+     * @return a stream on the file
+     * @throws FileNotFoundException if the file does not exist
+     * @since 1.3
+     */
+    protected FileInputStream openForRead(Object txId, Object resourceId, String resourcePath)
+            throws FileNotFoundException {
         TransactionContext context = getContext(txId);
+        if (context.snapshotVersion == -1 || !resourcePath.equals(getMainPath(resourceId))) {
+            return new FileInputStream(resourcePath);
+        }
+        synchronized (versionLock) {
+            File file = getSnapshotFile(getIndexKey(resourceId), new File(resourcePath),
+                    context.snapshotVersion);
+            if (file == null) {
+                throw new FileNotFoundException(resourcePath);
+            }
+            return new FileInputStream(file);
+        }
+    }
+
+    /**
+     * Gets the file holding a resource as of a snapshot.
+     * 
+     * @param key index key of the resource
+     * @param current the file in the store
+     * @param snapshot the version of the snapshot
+     * @return the current file if the resource has not been changed since
+     *         the snapshot, a preserved version, or <code>null</code> if the
+     *         resource did not exist at that time
+     * @since 1.3
+     */
+    protected File getSnapshotFile(String key, File current, long snapshot) {
+        synchronized (versionLock) {
+            List chain = (List) versionChains.get(key);
+            if (chain != null) {
+                // the first version replaced after the snapshot is the one it saw
+                for (Iterator it = chain.iterator(); it.hasNext();) {
+                    Version version = (Version) it.next();
+                    if (version.version > snapshot) {
+                        return version.file;
+                    }
+                }
+            }
+            return current;
+        }
+    }
+
+    /**
+     * Fails if a resource has been changed by a transaction committed after
+     * the snapshot of the given one.
+     * 
+     * @param context the transaction about to write
+     * @param resourceId the resource to write
+     * @throws ResourceManagerException if there is a conflict
+     * @since 1.3
+     */
+    protected void checkConflict(TransactionContext context, Object resourceId)
+            throws ResourceManagerException {
+        synchronized (versionLock) {
+            List chain = (List) versionChains.get(getIndexKey(resourceId));
+            if (chain != null
+                    && ((Version) chain.get(chain.size() - 1)).version > context.snapshotVersion) {
+                throw new ResourceManagerException("Resource at '" + resourceId
+                        + "' has been changed since the transaction started", ERR_CONFLICT,
+                        context.txId);
+            }
+        }
+    }
+
+    /**
+     * Forgets last changes no running optimistic transaction can conflict
+     * with, as all of them started afterwards.
+     * 
+     * @since 1.3
+     */
+    protected void forgetLastChanges() {
+        long oldest;
+        synchronized (lastChanges) {
+            oldest = commitSequence;
+        }
+        synchronized (globalTransactions) {
+            for (Iterator it = globalTransactions.values().iterator(); it.hasNext();) {
+                TransactionContext context = (TransactionContext) it.next();
+                oldest = Math.min(oldest, context.startSequence);
+            }
+        }
+        synchronized (lastChanges) {
+            for (Iterator it = lastChanges.values().iterator(); it.hasNext();) {
+                if (((Long) it.next()).longValue() <= oldest) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers a snapshot of the latest published version. Waits for a
+     * commit being published, as it only preserves the files it replaces
+     * while there are snapshots.
+     * 
+     * @return version of the snapshot
+     * @since 1.3
+     */
+    protected long acquireSnapshot() {
+        synchronized (publishLock) {
+            synchronized (versionLock) {
+                Long version = new Long(publishedVersion);
+                Integer count = (Integer) activeSnapshots.get(version);
+                activeSnapshots.put(version, new Integer(count == null ? 1 : count.intValue() + 1));
+                return publishedVersion;
+            }
+        }
+    }
+
+    /**
+     * Unregisters a snapshot and removes all versions no longer needed by
+     * any other.
+     * 
+     * @param snapshot version of the snapshot
+     * @since 1.3
+     */
+    protected void releaseSnapshot(long snapshot) {
+        List garbage = new ArrayList();
+        synchronized (versionLock) {
+            Long version = new Long(snapshot);
+            Integer count = (Integer) activeSnapshots.get(version);
+            if (count == null) {
+                return;
+            }
+            if (count.intValue() > 1) {
+                activeSnapshots.put(version, new Integer(count.intValue() - 1));
+            } else {
+                activeSnapshots.remove(version);
+            }
+            long oldest = (activeSnapshots.isEmpty() ? Long.MAX_VALUE : ((Long) activeSnapshots
+                    .firstKey()).longValue());
+            // versions are only seen by snapshots older than themselves
+            while (!versionLog.isEmpty() && ((Version) versionLog.getFirst()).version <= oldest) {
+                Version garbageVersion = (Version) versionLog.removeFirst();
+                List chain = (List) versionChains.get(garbageVersion.key);
+                chain.remove(0);
+                if (chain.isEmpty()) {
+                    versionChains.remove(garbageVersion.key);
+                }
+                if (garbageVersion.file != null) {
+                    garbage.add(garbageVersion.file);
+                }
+            }
+        }
+        File versionsRoot = new File(workDir, VERSIONS_DIR);
+        for (Iterator it = garbage.iterator(); it.hasNext();) {
+            File file = (File) it.next();
+            file.delete();
+            File dir = file.getParentFile();
+            while (dir != null && dir.delete() && !dir.equals(versionsRoot)) {
+                dir = dir.getParentFile();
+            }
+        }
+    }
+
+    /**
+     * Keeps the current version of a file in the store before a commit
+     * replaces or deletes it, provided a running transaction may still read
+     * it.
+     * 
+     * @param key index key of the resource
+     * @param version version published by the commit
+     * @throws IOException if the file can not be preserved
+     * @since 1.3
+     */
+    protected void preserveVersion(String key, long version) throws IOException {
+        synchronized (versionLock) {
+            if (activeSnapshots.isEmpty()) {
+                // nobody can see it
+                return;
+            }
+            File current = new File(storeDir, key);
+            File preserved = null;
+            if (current.isFile()) {
+                preserved = new File(new File(workDir, VERSIONS_DIR), version + key);
+                File dir = preserved.getParentFile();
+                if (!dir.exists() && !dir.mkdirs()) {
+                    throw new IOException("Could not create version directory: " + dir);
+                }
+                if (!current.renameTo(preserved)) {
+                    FileHelper.copy(current, preserved);
+                }
+            }
+            Version entry = new Version(key, version, preserved);
+            List chain = (List) versionChains.get(key);
+            if (chain == null) {
+                chain = new ArrayList(2);
+                versionChains.put(key, chain);
+            }
+            chain.add(entry);
+            versionLog.add(entry);
+        }
+    }
 
-        if (context == null) {
-            return STATUS_NO_TRANSACTION;
-        } else {
-            return context.status;
+    /**
+     * Forgets all versions, which are of no use after a restart.
+     * 
+     * @since 1.3
+     */
+    protected void resetVersions() {
+        synchronized (versionLock) {
+            publishedVersion = 0;
+            activeSnapshots.clear();
+            versionChains.clear();
+            versionLog.clear();
+        }
+        File versionsRoot = new File(workDir, VERSIONS_DIR);
+        if (versionsRoot.exists()) {
+            FileHelper.removeRec(versionsRoot);
         }
+    }
 
+    /**
+     * Checks if reads outside of transactions may bypass transaction
+     * management. Resources of transactions still in doubt need to be
+     * waited for during background recovery.
+     * 
+     * @return <code>true</code> if the store directory may be read directly
+     * @since 1.3
+     */
+    protected boolean isDirectReadPossible() {
+        return directReads && atomicCommit && !recoveryPending;
     }
 
-    public void startTransaction(Object txId) throws ResourceManagerException {
+    /**
+     * Opens the committed version of a resource in the store directory
+     * without any transaction or lock.
+     * 
+     * @param resourceId the resource
+     * @return a stream on the resource
+     * @throws ResourceManagerException if the resource does not exist
+     * @since 1.3
+     */
+    protected FileInputStream openCommitted(Object resourceId) throws ResourceManagerException {
+        assureRMReady();
+        fileInitialSaneCheck(null, resourceId);
 
-        if (logger.isFineEnabled()) logger.logFine("Starting Tx " + txId);
+        if (logger.isFineEnabled()) logger.logFine("Directly reading " + resourceId);
 
-        assureStarted(); // can only start a new transaction when not already stopping
-        if (txId == null || txIdMapper.getPathForId(txId).length() == 0) {
-            throw new ResourceManagerException(ERR_TXID_INVALID, txId);
+        File file = new File(getMainPath(resourceId));
+        try {
+            // a commit renames the new version into place, the old one stays
+            // readable through a stream already opened on it
+            return new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            if (!file.exists()) {
+                throw new ResourceManagerException("No such resource at '" + resourceId + "'", ERR_NO_SUCH_RESOURCE, e);
+            }
+            throw new ResourceManagerSystemException("File '" + file + "' can not be read", ERR_SYSTEM, null, e);
         }
+    }
 
-        // be sure we are the only ones who create this tx 
-        synchronized (globalTransactions) {
-            TransactionContext context = getContext(txId);
-
-            if (context != null) {
-                throw new ResourceManagerException(ERR_DUP_TX, txId);
-            }
+    protected void fileInitialSaneCheck(Object txId, Object path) throws ResourceManagerException {
+        if (path == null || path.toString().length() == 0) {
+            throw new ResourceManagerException(ERR_RESOURCEID_INVALID, txId);
+        }
+    }
 
-            context = new TransactionContext(txId);
-            context.init();
-            globalTransactions.put(txId, context);
+    protected void assureStarted() throws ResourceManagerSystemException {
+        if (operationMode != OPERATION_MODE_STARTED) {
+            throw new ResourceManagerSystemException("Resource Manager Service not started", ERR_SYSTEM, null);
+        }
+    }
 
+    protected void assureRMReady() throws ResourceManagerSystemException {
+        if (operationMode != OPERATION_MODE_STARTED && operationMode != OPERATION_MODE_STOPPING) {
+            throw new ResourceManagerSystemException("Resource Manager Service not ready", ERR_SYSTEM, null);
         }
     }
 
-    public void markTransactionForRollback(Object txId) throws ResourceManagerException {
-        assureRMReady();
-        TransactionContext context = txInitialSaneCheckForWriting(txId);
-        try {
-            context.status = STATUS_MARKED_ROLLBACK;
-            context.saveState();
-        } finally {
-            // be very sure to free locks and resources, as application might crash or otherwise forget to roll this tx back
-            context.finalCleanUp();
+    protected void assureNotMarkedForRollback(TransactionContext context) throws ResourceManagerException {
+        if (context.status == STATUS_MARKED_ROLLBACK) {
+            throw new ResourceManagerException(ERR_MARKED_FOR_ROLLBACK, context.txId);
         }
     }
 
-    public int prepareTransaction(Object txId) throws ResourceManagerException {
+    protected TransactionContext txInitialSaneCheckForWriting(Object txId) throws ResourceManagerException {
         assureRMReady();
         // do not allow any further writing or commit or rollback when db is corrupt
         if (dirty) {
@@ -561,7 +3078,11 @@ public class FileResourceManager implements ResourceManager, ResourceManagerErro
                 ERR_SYSTEM,
                 txId);
         }
+        return txInitialSaneCheck(txId);
+    }
 
+    protected TransactionContext txInitialSaneCheck(Object txId) throws ResourceManagerException {
+        assureRMReady();
         if (txId == null) {
             throw new ResourceManagerException(ERR_TXID_INVALID, txId);
         }
@@ -569,876 +3090,1303 @@ public class FileResourceManager implements ResourceManager, ResourceManagerErro
         TransactionContext context = getContext(txId);
 
         if (context == null) {
-            return PREPARE_FAILURE;
+            throw new ResourceManagerException(ERR_NO_TX, txId);
         }
 
-        synchronized (context) {
-
-            sync();
-
-            if (context.status != STATUS_ACTIVE) {
-                context.status = STATUS_MARKED_ROLLBACK;
-                context.saveState();
-                return PREPARE_FAILURE;
-            }
-
-            if (logger.isFineEnabled()) logger.logFine("Preparing Tx " + txId);
-
-            int prepareStatus = PREPARE_FAILURE;
-
-            context.status = STATUS_PREPARING;
-            context.saveState();
-            // do all checks as early as possible
-            context.closeResources();
-            if (context.readOnly) {
-                prepareStatus = PREPARE_SUCCESS_READONLY;
-            } else {
-                // do all checks as early as possible
-                try {
-                    context.upgradeLockToCommit();
-                } catch (ResourceManagerException rme) {
-                    // if this did not work, mark it for roll back as early as possible
-                    markTransactionForRollback(txId);
-                    throw rme;
-                }
-                prepareStatus = PREPARE_SUCCESS;
-            }
-            context.status = STATUS_PREPARED;
-            context.saveState();
-            if (logger.isFineEnabled()) logger.logFine("Prepared Tx " + txId);
-
-            return prepareStatus;
-        }
+        return context;
     }
 
-    public void rollbackTransaction(Object txId) throws ResourceManagerException {
-        assureRMReady();
-        TransactionContext context = txInitialSaneCheckForWriting(txId);
-        // needing synchronization in order not to interfer with shutdown thread
-        synchronized (context) {
-            try {
-
-                if (logger.isFineEnabled()) logger.logFine("Rolling back Tx " + txId);
-
-                context.status = STATUS_ROLLING_BACK;
-                context.saveState();
-                context.rollback();
-                if (logger.isFineEnabled()) logger.logFine("All resources successfully removed for tx" + txId);
-                context.status = STATUS_ROLLEDBACK;
-                context.saveState();
-                globalTransactions.remove(txId);
-                context.cleanUp();
-
-                if (logger.isFineEnabled()) logger.logFine("Rolled back Tx " + txId);
+    /*
+     * --- General Helpers ---
+     *
+     *  
+     */
 
-                // any system or runtime exceptions or errors thrown in rollback means we are in deep trouble, set the dirty flag
-            } catch (Error e) {
-                setDirty(txId, e);
-                throw e;
-            } catch (RuntimeException e) {
-                setDirty(txId, e);
-                throw e;
-            } catch (ResourceManagerSystemException e) {
-                setDirty(txId, e);
-                throw e;
-            } finally {
-                context.finalCleanUp();
-                // tell shutdown thread this tx is finished
-                context.notifyFinish();
-            }
-        }
+    protected TransactionContext getContext(Object txId) {
+        return (TransactionContext) globalTransactions.get(txId);
     }
 
-    public void commitTransaction(Object txId) throws ResourceManagerException {
-        assureRMReady();
-        TransactionContext context = txInitialSaneCheckForWriting(txId);
-        assureNotMarkedForRollback(context);
-
-        // needing synchronization in order not to interfer with shutdown thread
-        synchronized (context) {
-            try {
-
-                if (logger.isFineEnabled()) logger.logFine("Committing Tx " + txId);
-
-                context.status = STATUS_COMMITTING;
-                context.saveState();
-                context.commit();
-                if (logger.isFineEnabled()) logger.logFine("All resources successfully moved for tx" + txId);
-                context.status = STATUS_COMMITTED;
-                context.saveState();
-                globalTransactions.remove(txId);
-                context.cleanUp();
-
-                if (logger.isFineEnabled()) logger.logFine("Committed Tx " + txId);
-
-                // any system or runtime exceptions or errors thrown in rollback means we are in deep trouble, set the dirty flag
-            } catch (Error e) {
-                setDirty(txId, e);
-                throw e;
-            } catch (RuntimeException e) {
-                setDirty(txId, e);
-                throw e;
-            } catch (ResourceManagerSystemException e) {
-                setDirty(txId, e);
-                throw e;
-                // like "could not upgrade lock"
-            } catch (ResourceManagerException e) {
-                logger.logWarning("Could not commit tx " + txId + ", rolling back instead", e);
-                rollbackTransaction(txId);
-            } finally {
-                context.finalCleanUp();
-                // tell shutdown thread this tx is finished
-                context.notifyFinish();
+    protected String assureLeadingSlash(Object pathObject) {
+        String path = "";
+        if (pathObject != null) {
+            if (idMapper != null) {
+                path = idMapper.getPathForId(pathObject);
+            } else {
+                path = pathObject.toString();
+            }
+            if (path.length() > 0 && path.charAt(0) != '/' && path.charAt(0) != '\\') {
+                path = "/" + path;
             }
         }
+        return path;
     }
 
-    public boolean resourceExists(Object resourceId) throws ResourceManagerException {
-        // create temporary light weight tx
-        Object txId;
-        TransactionContext context;
-        synchronized (globalTransactions) {
-            txId = generatedUniqueTxId();
-            if (logger.isFinerEnabled())
-                logger.logFiner("Creating temporary light weight tx " + txId + " to check for exists");
-            context = new TransactionContext(txId);
-            context.isLightWeight = true;
-            // XXX higher isolation might be needed to make sure upgrade to commit lock always works
-            context.isolationLevel = ISOLATION_LEVEL_READ_COMMITTED;
-            // context.isolationLevel = ISOLATION_LEVEL_REPEATABLE_READ;
-            globalTransactions.put(txId, context);
-        }
-
-        boolean exists = resourceExists(txId, resourceId);
-
-        context.freeLocks();
-        globalTransactions.remove(txId);
-        if (logger.isFinerEnabled())
-            logger.logFiner("Removing temporary light weight tx " + txId);
-
-        return exists;
-    }
-
-    public boolean resourceExists(Object txId, Object resourceId) throws ResourceManagerException {
-        lockResource(resourceId, txId, true);
-        return (getPathForRead(txId, resourceId) != null);
-    }
-
-    public void deleteResource(Object txId, Object resourceId) throws ResourceManagerException {
-        deleteResource(txId, resourceId, true);
+    /**
+     * Gets the key of a resource in the index of changes and deletes of a
+     * transaction. It is its path relative to the store directory in the
+     * notation of the platform.
+     */
+    protected String getIndexKey(Object resourceId) {
+        return new File(assureLeadingSlash(resourceId)).getPath();
     }
-
-    public void deleteResource(Object txId, Object resourceId, boolean assureOnly) throws ResourceManagerException {
-
-        if (logger.isFineEnabled()) logger.logFine(txId + " deleting " + resourceId);
-
-        lockResource(resourceId, txId, false);
-
-        if (getPathForRead(txId, resourceId) == null) {
-            if (assureOnly) {
-                return;
-            }
-            throw new ResourceManagerException("No such resource at '" + resourceId + "'", ERR_NO_SUCH_RESOURCE, txId);
-        }
-        String txDeletePath = getDeletePath(txId, resourceId);
-        String mainPath = getMainPath(resourceId);
-        try {
-            getContext(txId).readOnly = false;
-
-            // first undo change / create when there was one
-            undoScheduledChangeOrCreate(txId, resourceId);
-
-            // if there still is a file in main store, we need to schedule
-            // a delete additionally
-            if (FileHelper.fileExists(mainPath)) {
-                FileHelper.createFile(txDeletePath);
+
+    /**
+     * Adds all keys of direct members of a collection to a set.
+     * 
+     * @param collectionKey index key of the collection
+     * @param keys index keys of resources and collections
+     * @param members set to add the keys of the members to
+     * @since 1.3
+     */
+    protected void collectMembers(String collectionKey, Collection keys, Set members) {
+        for (Iterator it = keys.iterator(); it.hasNext();) {
+            String key = (String) it.next();
+            if (collectionKey.equals(new File(key).getParent())) {
+                members.add(key);
             }
-        } catch (IOException e) {
-            throw new ResourceManagerSystemException(
-                "Can not delete resource at '" + resourceId + "'",
-                ERR_SYSTEM,
-                txId,
-                e);
         }
     }
 
-    public void createResource(Object txId, Object resourceId) throws ResourceManagerException {
-        createResource(txId, resourceId, true);
+    /**
+     * Gets the index key of a member of a collection.
+     * 
+     * @param collectionKey index key of the collection
+     * @param name file name of the member
+     * @return index key of the member
+     * @since 1.3
+     */
+    protected String getMemberKey(String collectionKey, String name) {
+        if (collectionKey.endsWith(File.separator)) {
+            return collectionKey + name;
+        }
+        return collectionKey + File.separator + name;
     }
 
-    public void createResource(Object txId, Object resourceId, boolean assureOnly) throws ResourceManagerException {
+    protected String getMainPath(Object path) {
+        StringBuffer buf = new StringBuffer(storeDir.length() + path.toString().length() + 5);
+        buf.append(storeDir).append(assureLeadingSlash(path));
+        return buf.toString();
+    }
 
-        if (logger.isFineEnabled()) logger.logFine(txId + " creating " + resourceId);
+    protected String getTransactionBaseDir(Object txId) {
+        return workDir + '/' + txIdMapper.getPathForId(txId);
+    }
 
-        lockResource(resourceId, txId, false);
+    protected String getChangePath(Object txId, Object path) {
+        String txBaseDir = getTransactionBaseDir(txId);
+        StringBuffer buf = new StringBuffer(txBaseDir.length() + path.toString().length()
+                + WORK_CHANGE_DIR.length() + 5);
+        buf.append(txBaseDir).append('/').append(WORK_CHANGE_DIR).append(assureLeadingSlash(path));
+        return buf.toString();
+    }
 
-        if (getPathForRead(txId, resourceId) != null) {
-            if (assureOnly) {
-                return;
+    protected String getDeletePath(Object txId, Object path) {
+        String txBaseDir = getTransactionBaseDir(txId);
+        StringBuffer buf = new StringBuffer(txBaseDir.length() + path.toString().length()
+                + WORK_DELETE_DIR.length() + 5);
+        buf.append(txBaseDir).append('/').append(WORK_DELETE_DIR).append(assureLeadingSlash(path));
+        return buf.toString();
+    }
+
+    protected boolean undoScheduledDelete(Object txId, Object resourceId) throws ResourceManagerException {
+        TransactionContext context = getContext(txId);
+        String key = getIndexKey(resourceId);
+        if (context.isDeleted(key)) {
+            String txDeletePath = getDeletePath(txId, resourceId);
+            File deleteFile = new File(txDeletePath);
+            if (!deleteFile.delete() && deleteFile.exists()) {
+                throw new ResourceManagerSystemException(
+                    "Failed to undo delete of '" + resourceId + "'",
+                    ERR_SYSTEM,
+                    txId);
             }
-            throw new ResourceManagerException(
-                "Resource at '" + resourceId + "', already exists",
-                ERR_RESOURCE_EXISTS,
-                txId);
+            context.indexDelete(key, false);
+            return true;
         }
+        return false;
+    }
 
-        String txChangePath = getChangePath(txId, resourceId);
+    protected boolean undoScheduledChangeOrCreate(Object txId, Object resourceId) throws ResourceManagerException {
+        TransactionContext context = getContext(txId);
+        String key = getIndexKey(resourceId);
+        if (context.isChanged(key)) {
+            String txChangePath = getChangePath(txId, resourceId);
+            File changeFile = new File(txChangePath);
+            if (!changeFile.delete() && changeFile.exists()) {
+                throw new ResourceManagerSystemException(
+                    "Failed to undo change / create of '" + resourceId + "'",
+                    ERR_SYSTEM,
+                    txId);
+            }
+            context.indexChange(key, false);
+            return true;
+        }
+        return false;
+    }
+
+    protected String getPathForWrite(Object txId, Object resourceId) throws ResourceManagerException {
         try {
-            getContext(txId).readOnly = false;
-            
-            // creation means either undoing a delete or actually scheduling a create
-            if (!undoScheduledDelete(txId, resourceId)) {
+            // when we want to write, be sure to write to a local copy
+            String txChangePath = getChangePath(txId, resourceId);
+            TransactionContext context = getContext(txId);
+            String key = getIndexKey(resourceId);
+            if (!context.isChanged(key)) {
+                if (collectionLocking && getPathForRead(txId, resourceId) == null) {
+                    // this creates a new member
+                    lockCollection(txId, resourceId);
+                }
                 FileHelper.createFile(txChangePath);
+                context.indexChange(key, true);
             }
-
+            return txChangePath;
         } catch (IOException e) {
             throw new ResourceManagerSystemException(
-                "Can not create resource at '" + resourceId + "'",
+                "Can not write to resource at '" + resourceId + "'",
                 ERR_SYSTEM,
                 txId,
                 e);
         }
     }
 
-    public void copyResource(Object txId, Object fromResourceId, Object toResourceId, boolean overwrite) throws ResourceManagerException {
-        if (logger.isFineEnabled()) logger.logFine(txId + " copying " + fromResourceId + " to " + toResourceId);
-
-        lockResource(fromResourceId, txId, true);
-        lockResource(toResourceId, txId, false);
+    protected String getPathForWrite(Object txId, Object resourceId, boolean append) throws ResourceManagerException {
+        if (append) {
+            TransactionContext context = getContext(txId);
+            String key = getIndexKey(resourceId);
 
-        if (resourceExists(txId, toResourceId) && !overwrite) {
-            throw new ResourceManagerException(
-                "Resource at '" + toResourceId + "' already exists",
-                ERR_RESOURCE_EXISTS,
-                txId);
-        }
+            boolean changeExists = context.isChanged(key);
+            boolean deleteExists = context.isDeleted(key);
+            boolean mainExists = !changeExists && !deleteExists
+                    && FileHelper.fileExists(getMainPath(resourceId));
 
-        InputStream fromResourceStream = null;
-        OutputStream toResourceStream = null;
-        try {
-            fromResourceStream = readResource(txId, fromResourceId);
-            toResourceStream = writeResource(txId, toResourceId);
-            FileHelper.copy(fromResourceStream, toResourceStream);
-        } catch (IOException e) {
-            throw new ResourceManagerException(ERR_SYSTEM, txId, e);
-        } finally {
-            closeOpenResource(fromResourceStream);
-            closeOpenResource(toResourceStream);
+            if (mainExists && !changeExists && !deleteExists) {
+                // the read and the write path for resourceId will be different!
+                copyResource(txId, resourceId, resourceId, true);
+            }
         }
+        return getPathForWrite(txId, resourceId);
     }
 
-    public void moveResource(Object txId, Object fromResourceId, Object toResourceId, boolean overwrite) throws ResourceManagerException {
-        if (logger.isFineEnabled()) logger.logFine(txId + " moving " + fromResourceId + " to " + toResourceId);
-
-        lockResource(fromResourceId, txId, false);
-        lockResource(toResourceId, txId, false);
+    protected String getPathForRead(Object txId, Object resourceId) throws ResourceManagerException {
 
-        copyResource(txId, fromResourceId, toResourceId, overwrite);
+        String mainPath = getMainPath(resourceId);
+        TransactionContext context = getContext(txId);
+        String key = getIndexKey(resourceId);
 
-        deleteResource(txId, fromResourceId, false);
-    }
+        // now, this gets a bit complicated:
 
-    public InputStream readResource(Object resourceId) throws ResourceManagerException {
-        // create temporary light weight tx
-        Object txId;
-        synchronized (globalTransactions) {
-            txId = generatedUniqueTxId();
-            if (logger.isFinerEnabled())
-                logger.logFiner("Creating temporary light weight tx " + txId + " for reading");
-            TransactionContext context = new TransactionContext(txId);
-            context.isLightWeight = true;
-            // XXX higher isolation might be needed to make sure upgrade to commit lock always works
-            context.isolationLevel = ISOLATION_LEVEL_READ_COMMITTED;
-            // context.isolationLevel = ISOLATION_LEVEL_REPEATABLE_READ;
-            globalTransactions.put(txId, context);
+        // changes and deletes are looked up in the index, only the main store is asked
+        boolean changeExists = context.isChanged(key);
+        boolean deleteExists = context.isDeleted(key);
+        File mainFile = new File(mainPath);
+        if (context.snapshotVersion != -1) {
+            mainFile = getSnapshotFile(key, mainFile, context.snapshotVersion);
+        }
+        boolean mainExists = (mainFile != null && mainFile.exists());
+        boolean resourceIsDir =
+            ((mainExists && mainFile.isDirectory())
+                || (changeExists && context.isChangedDir(key)));
+        if (resourceIsDir) {
+            logger.logWarning("Resource at '" + resourceId + "' maps to directory");
         }
 
-        InputStream is = readResource(txId, resourceId);
-        return is;
-    }
-
-    public InputStream readResource(Object txId, Object resourceId) throws ResourceManagerException {
-
-        if (logger.isFineEnabled()) logger.logFine(txId + " reading " + resourceId);
+        // first do some sane checks
 
-        lockResource(resourceId, txId, true);
+        // this may never be, two cases are possible, both disallowing to have a delete together with a change
+        // 1. first there was a change, than a delete -> at least delete file exists (when there is a file in main store)
+        // 2. first there was a delete, than a change -> only change file exists
+        if (!resourceIsDir && changeExists && deleteExists) {
+            throw new ResourceManagerSystemException(
+                "Inconsistent delete and change combination for resource at '" + resourceId + "'",
+                ERR_TX_INCONSISTENT,
+                txId);
+        }
 
-        String resourcePath = getPathForRead(txId, resourceId);
-        if (resourcePath == null) {
-            throw new ResourceManagerException("No such resource at '" + resourceId + "'", ERR_NO_SUCH_RESOURCE, txId);
+        // you should not have been allowed to delete a file that does not exist at all
+        if (deleteExists && !mainExists) {
+            throw new ResourceManagerSystemException(
+                "Inconsistent delete for resource at '" + resourceId + "'",
+                ERR_TX_INCONSISTENT,
+                txId);
         }
 
-        File file = new File(resourcePath);
-        try {
-            FileInputStream stream = new FileInputStream(file);
-            getContext(txId).registerResource(stream);
-            return new InputStreamWrapper(stream, txId, resourceId);
-        } catch (FileNotFoundException e) {
-            throw new ResourceManagerSystemException("File '" + resourcePath + "' does not exist", ERR_SYSTEM, txId);
+        if (changeExists) {
+            return getChangePath(txId, resourceId);
+        } else if (mainExists && !deleteExists) {
+            return mainFile.getPath();
+        } else {
+            return null;
         }
     }
 
-    public OutputStream writeResource(Object txId, Object resourceId) throws ResourceManagerException {
-        return writeResource(txId, resourceId, false);
+    /*
+     * --- Locking Helpers ---
+     *
+     *  
+     */
+
+    /**
+     * Exclusively locks the collection containing a resource about to be
+     * created or deleted, if collection locking is enabled.
+     * 
+     * @param txId the transaction
+     * @param resourceId the resource created or deleted
+     * @throws ResourceManagerException if the lock can not be acquired
+     * @see #setCollectionLocking(boolean)
+     * @since 1.3
+     */
+    protected void lockCollection(Object txId, Object resourceId) throws ResourceManagerException {
+        if (collectionLocking) {
+            String collection = new File(getIndexKey(resourceId)).getParent();
+            if (collection != null) {
+                lockResource(collection, txId, false);
+            }
+        }
     }
 
-    public OutputStream writeResource(Object txId, Object resourceId, boolean append) throws ResourceManagerException {
+    protected int getSharedLockLevel(TransactionContext context) throws ResourceManagerException {
+        if (context.isolationLevel == ISOLATION_LEVEL_READ_COMMITTED
+            || context.isolationLevel == ISOLATION_LEVEL_READ_UNCOMMITTED) {
+            return LOCK_ACCESS;
+        } else if (
+            context.isolationLevel == ISOLATION_LEVEL_REPEATABLE_READ
+                || context.isolationLevel == ISOLATION_LEVEL_SERIALIZABLE) {
+            return LOCK_SHARED;
+        } else {
+            return LOCK_ACCESS;
+        }
+    }
 
-        if (logger.isFineEnabled()) logger.logFine(txId + " writing " + resourceId);
+    /*
+     * --- Resource Management ---
+     *
+     *  
+     */
 
-        lockResource(resourceId, txId, false);
+    protected void registerOpenResource(Object openResource) {
+        if (logger.isFinerEnabled())
+            logger.logFiner("Registering open resource " + openResource);
+        globalOpenResources.add(openResource);
+    }
 
-        if (append) {
-            String mainPath = getMainPath(resourceId);
-            String txChangePath = getChangePath(txId, resourceId);
-            String txDeletePath = getDeletePath(txId, resourceId);
+    protected void releaseGlobalOpenResources() {
+        ArrayList copy;
+        synchronized (globalOpenResources) {
+            // XXX need to copy in order to allow removal in releaseOpenResource  
+            copy = new ArrayList(globalOpenResources);
+            for (Iterator it = copy.iterator(); it.hasNext();) {
+                Object stream = it.next();
+                closeOpenResource(stream);
+            }
+        }
+    }
 
-            boolean changeExists = FileHelper.fileExists(txChangePath);
-            boolean deleteExists = FileHelper.fileExists(txDeletePath);
-            boolean mainExists = FileHelper.fileExists(mainPath);
+    protected void closeOpenResource(Object openResource) {
+        if (logger.isFinerEnabled()) logger.logFiner("Releasing resource " + openResource);
+        globalOpenResources.remove(openResource);
+        if (openResource instanceof InputStream) {
+            InputStream is = (InputStream) openResource;
+            try {
+                is.close();
+            } catch (IOException e) {
+                // do not care, as it might have been closed somewhere else, before 
+            }
+        } else if (openResource instanceof OutputStream) {
+            OutputStream os = (OutputStream) openResource;
+            try {
+                os.close();
+            } catch (IOException e) {
+                // do not care, as it might have been closed somewhere else, before 
+            }
+        } else if (openResource instanceof DirectoryIterator) {
+            ((DirectoryIterator) openResource).close();
+        } else if (openResource instanceof Channel) {
+            Channel channel = (Channel) openResource;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // do not care, as it might have been closed somewhere else, before 
+            }
+        }
+    }
 
-            if (mainExists && !changeExists && !deleteExists) {
-                // the read and the write path for resourceId will be different!
-                copyResource(txId, resourceId, resourceId, true);
+    /**
+     * Called when a resource opened for reading is closed by the client.
+     * Ends light weight transactions or releases the access lock to allow
+     * other transactions to commit.
+     */
+    protected void readResourceClosed(Object txId, Object resourceId) {
+        TransactionContext context;
+        synchronized (globalTransactions) {
+            context = getContext(txId);
+            if (context == null) {
+                return;
             }
         }
-
-        String resourcePath = getPathForWrite(txId, resourceId);
-
-        try {
-            FileOutputStream stream = new FileOutputStream(resourcePath, append);
-            TransactionContext context = getContext(txId);
-            context.registerResource(stream);
-            context.readOnly = false;
-            return stream;
-        } catch (FileNotFoundException e) {
-            throw new ResourceManagerSystemException("File '" + resourcePath + "' does not exist", ERR_SYSTEM, txId);
+        synchronized (context) {
+            if (context.isLightWeight) {
+                if (logger.isFinerEnabled())
+                    logger.logFiner("Upon close of resource removing temporary light weight tx " + txId);
+                context.freeLocks();
+                globalTransactions.remove(txId);
+            } else {
+                // release access lock in order to allow other transactions to commit
+                if (lockManager.getLevel(txId, resourceId) == LOCK_ACCESS) {
+                    if (logger.isFinerEnabled()) {
+                        logger.logFiner("Upon close of resource releasing access lock for tx " + txId + " on resource at " + resourceId);
+                    }
+                    lockManager.release(txId, resourceId);
+                }
+            }
         }
     }
 
     /*
-     * --- additional public methods complementing implementation of interfaces ---
+     * --- Recovery / Shutdown Support ---
      *
      *  
      */
 
-    /**
-     * Resets the store by deleting work <em>and</em> store directory.
-     */
-    public synchronized void reset() {
-        FileHelper.removeRec(new File(storeDir));
-        FileHelper.removeRec(new File(workDir));
-        new File(storeDir).mkdirs();
-        new File(workDir).mkdirs();
+    protected boolean rollBackOrForward() {
+        // do not hold globalTransactions while recovering, as recovered
+        // transactions remove themselves
+        ArrayList contexts;
+        synchronized (globalTransactions) {
+            contexts = new ArrayList(globalTransactions.values());
+        }
+        return rollBackOrForward(contexts);
     }
 
     /**
-     * Synchronizes persistent data with caches. Is implemented with an empty
-     * body, but called by other methods relying on synchronization. Subclasses
-     * that utilize caching must implement this method reasonably.
+     * Rolls the given transactions forward or back, using up to
+     * {@link #getRecoveryThreads()} threads.
      * 
-     * @throws ResourceManagerSystemException if anything fatal hapened during synchonization
+     * @param contexts transactions to recover
+     * @return <code>false</code> if rolling forward or cleaning up failed for any of them
+     * @since 1.3
      */
-    public synchronized void sync() throws ResourceManagerSystemException {
+    protected boolean rollBackOrForward(Collection contexts) {
+        final boolean[] allCool = new boolean[] { true };
+        List tasks = new ArrayList(contexts.size());
+        for (Iterator it = contexts.iterator(); it.hasNext();) {
+            final TransactionContext context = (TransactionContext) it.next();
+            tasks.add(new Runnable() {
+                public void run() {
+                    if (!rollBackOrForward(context)) {
+                        synchronized (allCool) {
+                            allCool[0] = false;
+                        }
+                    }
+                }
+            });
+        }
+        runRecoveryTasks(tasks);
+        synchronized (allCool) {
+            return allCool[0];
+        }
     }
 
     /**
-     * Generates a transaction identifier unique to this resource manager. To do so
-     * it requires this resource manager to be started.
+     * Rolls a single transaction forward or back, depending on its state.
      * 
-     * @return generated transaction identifier
-     * @throws ResourceManagerSystemException if this resource manager has not been started, yet
+     * @param context the transaction to recover
+     * @return <code>false</code> if rolling forward or cleaning up failed
+     * @since 1.3
      */
-    public String generatedUniqueTxId() throws ResourceManagerSystemException {
-        assureRMReady();
-        String txId;
-        synchronized (globalTransactions) {
-            do {
-                txId = Long.toHexString(System.currentTimeMillis()) + "-"
-                        + Integer.toHexString(idCnt++);
-                // XXX busy loop
-            } while (getContext(txId) != null);
+    protected boolean rollBackOrForward(TransactionContext context) {
+        boolean allCool = true;
+        try {
+            if (context.status == STATUS_COMMITTING) {
+                // roll forward
+                logger.logInfo("Rolling forward " + context.txId);
+
+                try {
+                    context.commit();
+                    context.status = STATUS_COMMITTED;
+                    context.saveState();
+                    globalTransactions.remove(context.txId);
+                    context.cleanUp();
+                } catch (ResourceManagerException e) {
+                    // this is not good, but what can we do now?
+                    allCool = false;
+                    logger.logSevere("Rolling forward of " + context.txId + " failed", e);
+                }
+            } else if (context.status == STATUS_COMMITTED) {
+                logger.logInfo("Cleaning already commited " + context.txId);
+                globalTransactions.remove(context.txId);
+                try {
+                    context.cleanUp();
+                } catch (ResourceManagerException e) {
+                    // this is not good, but what can we do now?
+                    allCool = false;
+                    logger.logWarning("Cleaning of " + context.txId + " failed", e);
+                }
+            } else {
+                // in all other cases roll back and warn when not rollback was explicitely selected for tx
+                if (context.status != STATUS_ROLLING_BACK
+                    && context.status != STATUS_ROLLEDBACK
+                    && context.status != STATUS_MARKED_ROLLBACK) {
+                    logger.logWarning("Irregularly rolling back " + context.txId);
+                } else {
+                    logger.logInfo("Rolling back " + context.txId);
+                }
+                try {
+                    context.rollback();
+                    context.status = STATUS_ROLLEDBACK;
+                    context.saveState();
+                    globalTransactions.remove(context.txId);
+                    context.cleanUp();
+                } catch (ResourceManagerException e) {
+                    logger.logWarning("Rolling back of " + context.txId + " failed", e);
+                }
+            }
+        } finally {
+            if (recoveryPending) {
+                context.releaseInDoubt();
+                context.notifyFinish();
+            }
         }
-        return txId;
+        return allCool;
     }
 
-    /*
-     * --- sane checks ---
-     *
-     *  
+    /**
+     * Runs recovery tasks using up to {@link #getRecoveryThreads()} threads
+     * and returns after all of them have finished. Tasks are handed out one
+     * by one, so a few long running ones do not hold up the others.
+     * 
+     * @param tasks list of {@link Runnable}s
+     * @since 1.3
      */
-
-    protected void fileInitialSaneCheck(Object txId, Object path) throws ResourceManagerException {
-        if (path == null || path.toString().length() == 0) {
-            throw new ResourceManagerException(ERR_RESOURCEID_INVALID, txId);
+    protected void runRecoveryTasks(List tasks) {
+        int threadCount = Math.min(recoveryThreads, tasks.size());
+        if (threadCount <= 1) {
+            for (Iterator it = tasks.iterator(); it.hasNext();) {
+                ((Runnable) it.next()).run();
+            }
+            return;
         }
-    }
-
-    protected void assureStarted() throws ResourceManagerSystemException {
-        if (operationMode != OPERATION_MODE_STARTED) {
-            throw new ResourceManagerSystemException("Resource Manager Service not started", ERR_SYSTEM, null);
+        final Iterator pending = tasks.iterator();
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    while (true) {
+                        Runnable task;
+                        synchronized (pending) {
+                            if (!pending.hasNext()) {
+                                return;
+                            }
+                            task = (Runnable) pending.next();
+                        }
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            logger.logSevere("Recovery task failed", e);
+                        }
+                    }
+                }
+            }, "Recovery #" + i);
+            threads[i].start();
+        }
+        boolean interrupted = false;
+        for (int i = 0; i < threadCount; i++) {
+            while (threads[i].isAlive()) {
+                try {
+                    threads[i].join();
+                } catch (InterruptedException e) {
+                    // recovery must not be left halfway, finish first
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
     }
 
-    protected void assureRMReady() throws ResourceManagerSystemException {
-        if (operationMode != OPERATION_MODE_STARTED && operationMode != OPERATION_MODE_STOPPING) {
-            throw new ResourceManagerSystemException("Resource Manager Service not ready", ERR_SYSTEM, null);
+    protected void recoverContexts() {
+        final Map journaled = (journal != null ? journal.getRecords() : Collections.EMPTY_MAP);
+        File[] files;
+        if (fastStart && journal != null && !journalCreated) {
+            files = new File[journaled.size()];
+            int i = 0;
+            for (Iterator it = journaled.keySet().iterator(); it.hasNext();) {
+                String key = (String) it.next();
+                File file = new File(workDir, key);
+                if (file.isDirectory()) {
+                    files[i++] = file;
+                } else {
+                    // finished, but crashed before the journal has been compacted
+                    journal.forget(key);
+                }
+            }
+            File[] existing = new File[i];
+            System.arraycopy(files, 0, existing, 0, i);
+            files = existing;
+        } else {
+            files = new File(workDir).listFiles();
+        }
+        if (files == null)
+            return;
+        List tasks = new ArrayList(files.length);
+        for (int i = 0; i < files.length; i++) {
+            final File file = files[i];
+            if (isReservedWorkPath(file.getName())) {
+                continue;
+            }
+            final Object txId = txIdMapper.getIdForPath(file.getName());
+            // recover all transactions we do not already know
+            if (!globalTransactions.containsKey(txId)) {
+                tasks.add(new Runnable() {
+                    public void run() {
+                        recoverContext(file, txId, journaled);
+                    }
+                });
+            }
         }
+        runRecoveryTasks(tasks);
     }
 
-    protected void assureNotMarkedForRollback(TransactionContext context) throws ResourceManagerException {
-        if (context.status == STATUS_MARKED_ROLLBACK) {
-            throw new ResourceManagerException(ERR_MARKED_FOR_ROLLBACK, context.txId);
+    /**
+     * Reads the state and the changes of a single pending transaction and
+     * registers it.
+     * 
+     * @param file work directory of the transaction
+     * @param txId the transaction
+     * @param journaled states recorded in the journal, keyed by directory name
+     * @since 1.3
+     */
+    protected void recoverContext(File file, Object txId, Map journaled) {
+        logger.logInfo("Recovering " + txId);
+        TransactionContext context;
+        try {
+            context = new TransactionContext(txId);
+            context.workDirCreated = true;
+            byte[] state = (byte[]) journaled.get(file.getName());
+            if (state != null) {
+                context.recoverState(state);
+            } else if (journal != null && !new File(file, CONTEXT_FILE).exists()) {
+                // the tx either never recorded a state or has been forgotten after it
+                // finished, either way its remains can go
+                context.status = STATUS_ROLLEDBACK;
+            } else {
+                context.recoverState();
+            }
+            if (!context.readManifest()) {
+                context.rebuildIndex();
+            }
+            globalTransactions.put(txId, context);
+        } catch (ResourceManagerException e) {
+            // this is not good, but the best we get, just log as warning
+            logger.logWarning("Recovering of " + txId + " failed");
         }
     }
 
-    protected TransactionContext txInitialSaneCheckForWriting(Object txId) throws ResourceManagerException {
-        assureRMReady();
-        // do not allow any further writing or commit or rollback when db is corrupt
-        if (dirty) {
-            throw new ResourceManagerSystemException(
-                "Database is set to dirty, this *may* mean it is corrupt. No modifications are allowed until a recovery run has been performed!",
-                ERR_SYSTEM,
-                txId);
-        }
-        return txInitialSaneCheck(txId);
+    /**
+     * Checks if a name in the work directory is used by the resource manager
+     * itself rather than by a transaction.
+     * 
+     * @param name name of a file or directory directly below the work directory
+     * @return <code>true</code> if the name is reserved
+     * @since 1.3
+     */
+    protected boolean isReservedWorkPath(String name) {
+        return name.startsWith(JOURNAL_FILE) || name.equals(CHECKPOINT_FILE)
+                || name.equals(TRASH_DIR) || name.equals(VERSIONS_DIR);
     }
 
-    protected TransactionContext txInitialSaneCheck(Object txId) throws ResourceManagerException {
-        assureRMReady();
-        if (txId == null) {
-            throw new ResourceManagerException(ERR_TXID_INVALID, txId);
+    protected boolean waitForAllTxToStop(long timeoutMSecs) {
+        long startTime = System.currentTimeMillis();
+
+        // be sure not to lock globalTransactions for too long, as we need to give
+        // txs the chance to complete (otherwise deadlocks are very likely to occur)
+        // instead iterate over a copy as we can be sure no new txs will be registered
+        // after operation level has been set to stopping
+
+        Collection transactionsToStop;
+        synchronized (globalTransactions) {
+            transactionsToStop = new ArrayList(globalTransactions.values());
         }
+        for (Iterator it = transactionsToStop.iterator(); it.hasNext();) {
+            long remainingTimeout = startTime - System.currentTimeMillis() + timeoutMSecs;
 
-        TransactionContext context = getContext(txId);
+            if (remainingTimeout <= 0) {
+                return false;
+            }
 
-        if (context == null) {
-            throw new ResourceManagerException(ERR_NO_TX, txId);
+            TransactionContext context = (TransactionContext) it.next();
+            synchronized (context) {
+                if (!context.finished) {
+                    logger.logInfo(
+                        "Waiting for tx " + context.txId + " to finish for " + remainingTimeout + " milli seconds");
+                }
+                while (!context.finished && remainingTimeout > 0) {
+                    try {
+                        context.wait(remainingTimeout);
+                    } catch (InterruptedException e) {
+                        return false;
+                    }
+                    remainingTimeout = startTime - System.currentTimeMillis() + timeoutMSecs;
+                }
+                if (context.finished) {
+                    logger.logInfo("Tx " + context.txId + " finished");
+                } else {
+                    logger.logWarning("Tx " + context.txId + " failed to finish in given time");
+                }
+            }
         }
 
-        return context;
+        return (globalTransactions.size() == 0);
     }
 
-    /*
-     * --- General Helpers ---
-     *
-     *  
-     */
+    protected boolean shutdown(int mode, long timeoutMSecs) {
+        switch (mode) {
+            case SHUTDOWN_MODE_NORMAL :
+                return waitForAllTxToStop(timeoutMSecs);
+            case SHUTDOWN_MODE_ROLLBACK :
+                return rollBackOrForward();
+            case SHUTDOWN_MODE_KILL :
+                return true;
+            default :
+                return false;
+        }
+    }
 
-    protected TransactionContext getContext(Object txId) {
-        return (TransactionContext) globalTransactions.get(txId);
+    protected void setDirty(Object txId, Throwable t) {
+        logger.logSevere(
+            "Fatal error during critical commit/rollback of transaction " + txId + ", setting database to dirty.",
+            t);
+        dirty = true;
     }
 
-    protected String assureLeadingSlash(Object pathObject) {
-        String path = "";
-        if (pathObject != null) {
-            if (idMapper != null) {
-                path = idMapper.getPathForId(pathObject);
-            } else {
-                path = pathObject.toString();
-            }
-            if (path.length() > 0 && path.charAt(0) != '/' && path.charAt(0) != '\\') {
-                path = "/" + path;
-            }
+    /**
+     * A version of a file replaced or deleted by a commit.
+     */
+    protected static class Version {
+        protected String key;
+        /** version published by the commit, seen by all older snapshots */
+        protected long version;
+        /** preserved content, <code>null</code> if the file did not exist */
+        protected File file;
+
+        public Version(String key, long version, File file) {
+            this.key = key;
+            this.version = version;
+            this.file = file;
         }
-        return path;
     }
 
-    protected String getMainPath(Object path) {
-        StringBuffer buf = new StringBuffer(storeDir.length() + path.toString().length() + 5);
-        buf.append(storeDir).append(assureLeadingSlash(path));
-        return buf.toString();
+    /**
+     * An operation applied to a single file upon commit.
+     */
+    protected interface FileOperation {
+        public void apply(String key) throws IOException;
     }
 
-    protected String getTransactionBaseDir(Object txId) {
-        return workDir + '/' + txIdMapper.getPathForId(txId);
-    }
+    /**
+     * Inner class to hold the complete context, i.e. all information needed, for a transaction.
+     * 
+     */
+    protected class TransactionContext {
+
+        protected Object txId;
+        protected int status = STATUS_ACTIVE;
+        protected int isolationLevel = DEFAULT_ISOLATION_LEVEL;
+        protected long timeoutMSecs = getDefaultTransactionTimeout();
+        protected long startTime;
+        protected long commitTime = -1L;
+        protected boolean isLightWeight = false;
+        protected boolean readOnly = true;
+        protected boolean finished = false;
+        protected boolean changesSynced = false;
+        protected boolean manifestWritten = false;
+        protected boolean workDirCreated = false;
+        protected long snapshotVersion = -1;
+        protected long publishVersion = -1;
+        protected long startSequence = 0;
+        protected boolean validated = false;
+        // first access of optimistic transactions to resources by index key
+        protected Map accessed = new HashMap();
+        protected Set written = new HashSet();
+
+        // list of streams participating in this tx
+        private List openResources = new ArrayList();
 
-    protected String getChangePath(Object txId, Object path) {
-        String txBaseDir = getTransactionBaseDir(txId);
-        StringBuffer buf = new StringBuffer(txBaseDir.length() + path.toString().length()
-                + WORK_CHANGE_DIR.length() + 5);
-        buf.append(txBaseDir).append('/').append(WORK_CHANGE_DIR).append(assureLeadingSlash(path));
-        return buf.toString();
-    }
+        // index of the files and directories in the change and delete trees
+        protected Set changedFiles = new HashSet();
+        protected Set changedDirs = new HashSet();
+        protected Set deletedFiles = new HashSet();
+        protected Set deletedDirs = new HashSet();
 
-    protected String getDeletePath(Object txId, Object path) {
-        String txBaseDir = getTransactionBaseDir(txId);
-        StringBuffer buf = new StringBuffer(txBaseDir.length() + path.toString().length()
-                + WORK_DELETE_DIR.length() + 5);
-        buf.append(txBaseDir).append('/').append(WORK_DELETE_DIR).append(assureLeadingSlash(path));
-        return buf.toString();
-    }
+        public TransactionContext(Object txId) throws ResourceManagerException {
+            this.txId = txId;
+            startTime = System.currentTimeMillis();
+            if (optimistic) {
+                synchronized (lastChanges) {
+                    startSequence = commitSequence;
+                }
+            }
+        }
 
-    protected boolean undoScheduledDelete(Object txId, Object resourceId) throws ResourceManagerException {
-        String txDeletePath = getDeletePath(txId, resourceId);
-        File deleteFile = new File(txDeletePath);
-        if (deleteFile.exists()) {
-            if (!deleteFile.delete()) {
-                throw new ResourceManagerSystemException(
-                    "Failed to undo delete of '" + resourceId + "'",
-                    ERR_SYSTEM,
-                    txId);
+        /**
+         * Remembers when an optimistic transaction first accessed a
+         * resource.
+         */
+        public synchronized void recordAccess(String key, boolean write) {
+            if (!accessed.containsKey(key)) {
+                long sequence;
+                synchronized (lastChanges) {
+                    sequence = commitSequence;
+                }
+                accessed.put(key, new Long(sequence));
+            }
+            if (write) {
+                written.add(key);
             }
-            return true;
         }
-        return false;
-    }
 
-    protected boolean undoScheduledChangeOrCreate(Object txId, Object resourceId) throws ResourceManagerException {
-        String txChangePath = getChangePath(txId, resourceId);
-        File changeFile = new File(txChangePath);
-        if (changeFile.exists()) {
-            if (!changeFile.delete()) {
-                throw new ResourceManagerSystemException(
-                    "Failed to undo change / create of '" + resourceId + "'",
-                    ERR_SYSTEM,
-                    txId);
+        /**
+         * Locks all resources accessed by an optimistic transaction and
+         * checks none of them has been changed after it first accessed it.
+         * Locks of transactions that have written nothing are released right
+         * away.
+         */
+        public synchronized void validate() throws ResourceManagerException {
+            if (validated) {
+                return;
             }
-            return true;
+            // in a fixed order, so concurrent validations rarely dead lock
+            long timeout = Math.min(lockTimeout, timeoutMSecs);
+            for (Iterator it = new TreeSet(accessed.keySet()).iterator(); it.hasNext();) {
+                String key = (String) it.next();
+                int level = (written.contains(key) ? LOCK_COMMIT : LOCK_SHARED);
+                try {
+                    lockManager.lock(txId, key, level, true, timeout);
+                } catch (LockException e) {
+                    freeLocks();
+                    throw new ResourceManagerException("Could not lock resource at '" + key
+                            + "' for validation", (e.getCode() == LockException.CODE_DEADLOCK_VICTIM
+                            ? ERR_DEAD_LOCK : ERR_NO_LOCK), txId);
+                }
+            }
+            synchronized (lastChanges) {
+                for (Iterator it = accessed.entrySet().iterator(); it.hasNext();) {
+                    Map.Entry entry = (Map.Entry) it.next();
+                    Long lastChange = (Long) lastChanges.get(entry.getKey());
+                    if (lastChange != null
+                            && lastChange.longValue() > ((Long) entry.getValue()).longValue()) {
+                        freeLocks();
+                        throw new ResourceManagerException("Resource at '" + entry.getKey()
+                                + "' has been changed concurrently", ERR_CONFLICT, txId);
+                    }
+                }
+            }
+            if (written.isEmpty()) {
+                freeLocks();
+            }
+            validated = true;
         }
-        return false;
-    }
 
-    protected String getPathForWrite(Object txId, Object resourceId) throws ResourceManagerException {
-        try {
-            // when we want to write, be sure to write to a local copy
-            String txChangePath = getChangePath(txId, resourceId);
-            if (!FileHelper.fileExists(txChangePath)) {
-                FileHelper.createFile(txChangePath);
+        /**
+         * Records the resources written by an optimistic transaction as
+         * changed, so transactions that accessed them before fail
+         * validation.
+         */
+        protected void publishChanges() {
+            boolean cleanup;
+            synchronized (lastChanges) {
+                Long sequence = new Long(++commitSequence);
+                for (Iterator it = written.iterator(); it.hasNext();) {
+                    lastChanges.put(it.next(), sequence);
+                }
+                cleanup = (lastChanges.size() > LAST_CHANGES_CLEANUP_SIZE);
+            }
+            if (cleanup) {
+                forgetLastChanges();
             }
-            return txChangePath;
-        } catch (IOException e) {
-            throw new ResourceManagerSystemException(
-                "Can not write to resource at '" + resourceId + "'",
-                ERR_SYSTEM,
-                txId,
-                e);
         }
-    }
 
-    protected String getPathForRead(Object txId, Object resourceId) throws ResourceManagerException {
+        public long getRemainingTimeout() {
+            long now = System.currentTimeMillis();
+            return (startTime - now + timeoutMSecs);
+        }
 
-        String mainPath = getMainPath(resourceId);
-        String txChangePath = getChangePath(txId, resourceId);
-        String txDeletePath = getDeletePath(txId, resourceId);
+        public synchronized void init() throws ResourceManagerException {
+            if (snapshotIsolation) {
+                snapshotVersion = acquireSnapshot();
+            }
+            // nothing goes to disk until the first write, see assureWorkDir
+        }
 
-        // now, this gets a bit complicated:
+        /**
+         * Creates the work directory and records the state of this
+         * transaction, unless this has already been done. Transactions that
+         * only read never touch the disk.
+         */
+        public synchronized void assureWorkDir() throws ResourceManagerException {
+            if (workDirCreated) {
+                return;
+            }
+            String baseDir = getTransactionBaseDir(txId);
+            String changeDir = baseDir + "/" + WORK_CHANGE_DIR;
+            String deleteDir = baseDir + "/" + WORK_DELETE_DIR;
 
-        boolean changeExists = FileHelper.fileExists(txChangePath);
-        boolean deleteExists = FileHelper.fileExists(txDeletePath);
-        boolean mainExists = FileHelper.fileExists(mainPath);
-        boolean resourceIsDir =
-            ((mainExists && new File(mainPath).isDirectory())
-                || (changeExists && new File(txChangePath).isDirectory()));
-        if (resourceIsDir) {
-            logger.logWarning("Resource at '" + resourceId + "' maps to directory");
+            if (fastStart && new File(baseDir).exists()) {
+                // left over by a crash before its state has been recorded
+                logger.logWarning("Removing stale work directory of " + txId);
+                FileHelper.removeRec(new File(baseDir));
+            }
+            workDirCreated = true;
+            if (journal != null) {
+                // fast start only looks at directories recorded in the journal
+                saveStateToJournal(durability >= DURABILITY_FSYNC);
+            }
+            new File(changeDir).mkdirs();
+            new File(deleteDir).mkdirs();
+            if (journal == null) {
+                saveState();
+            }
         }
 
-        // first do some sane checks
+        public synchronized void rollback() throws ResourceManagerException {
+            closeResources();
+            freeLocks();
+        }
 
-        // this may never be, two cases are possible, both disallowing to have a delete together with a change
-        // 1. first there was a change, than a delete -> at least delete file exists (when there is a file in main store)
-        // 2. first there was a delete, than a change -> only change file exists
-        if (!resourceIsDir && changeExists && deleteExists) {
-            throw new ResourceManagerSystemException(
-                "Inconsistent delete and change combination for resource at '" + resourceId + "'",
-                ERR_TX_INCONSISTENT,
-                txId);
+        public synchronized boolean isChanged(String key) {
+            return changedFiles.contains(key) || changedDirs.contains(key);
         }
 
-        // you should not have been allowed to delete a file that does not exist at all
-        if (deleteExists && !mainExists) {
-            throw new ResourceManagerSystemException(
-                "Inconsistent delete for resource at '" + resourceId + "'",
-                ERR_TX_INCONSISTENT,
-                txId);
+        public synchronized boolean isChangedDir(String key) {
+            return changedDirs.contains(key);
         }
 
-        if (changeExists) {
-            return txChangePath;
-        } else if (mainExists && !deleteExists) {
-            return mainPath;
-        } else {
-            return null;
+        public synchronized boolean isDeletedFile(String key) {
+            return deletedFiles.contains(key);
         }
-    }
 
-    /*
-     * --- Locking Helpers ---
-     *
-     *  
-     */
+        public synchronized boolean isDeleted(String key) {
+            return deletedFiles.contains(key) || deletedDirs.contains(key);
+        }
 
-    protected int getSharedLockLevel(TransactionContext context) throws ResourceManagerException {
-        if (context.isolationLevel == ISOLATION_LEVEL_READ_COMMITTED
-            || context.isolationLevel == ISOLATION_LEVEL_READ_UNCOMMITTED) {
-            return LOCK_ACCESS;
-        } else if (
-            context.isolationLevel == ISOLATION_LEVEL_REPEATABLE_READ
-                || context.isolationLevel == ISOLATION_LEVEL_SERIALIZABLE) {
-            return LOCK_SHARED;
-        } else {
-            return LOCK_ACCESS;
+        public synchronized void indexChange(String key, boolean changed) {
+            if (changed) {
+                changedFiles.add(key);
+                addParents(key, changedDirs);
+            } else {
+                // directories are not removed from the change tree either
+                changedFiles.remove(key);
+            }
         }
-    }
 
-    /*
-     * --- Resource Management ---
-     *
-     *  
-     */
+        public synchronized void indexDelete(String key, boolean deleted) {
+            if (deleted) {
+                deletedFiles.add(key);
+                addParents(key, deletedDirs);
+            } else {
+                deletedFiles.remove(key);
+            }
+        }
 
-    protected void registerOpenResource(Object openResource) {
-        if (logger.isFinerEnabled())
-            logger.logFiner("Registering open resource " + openResource);
-        globalOpenResources.add(openResource);
-    }
+        protected void addParents(String key, Set dirs) {
+            for (String parent = new File(key).getParent(); parent != null
+                    && parent.length() > 1; parent = new File(parent).getParent()) {
+                if (!dirs.add(parent)) {
+                    // all further parents are known as well
+                    break;
+                }
+            }
+        }
 
-    protected void releaseGlobalOpenResources() {
-        ArrayList copy;
-        synchronized (globalOpenResources) {
-            // XXX need to copy in order to allow removal in releaseOpenResource  
-            copy = new ArrayList(globalOpenResources);
-            for (Iterator it = copy.iterator(); it.hasNext();) {
-                Object stream = it.next();
-                closeOpenResource(stream);
+        /**
+         * Rebuilds the index of changes and deletes from the work directory,
+         * e.g. upon recovery.
+         */
+        public synchronized void rebuildIndex() {
+            String baseDir = getTransactionBaseDir(txId);
+            changedFiles.clear();
+            changedDirs.clear();
+            deletedFiles.clear();
+            deletedDirs.clear();
+            indexTree(new File(baseDir, WORK_CHANGE_DIR), File.separator, changedFiles, changedDirs);
+            indexTree(new File(baseDir, WORK_DELETE_DIR), File.separator, deletedFiles, deletedDirs);
+        }
+
+        /**
+         * Writes the manifest of all changed and deleted files, unless
+         * manifests are disabled, there is nothing to write or it already
+         * has been written.
+         */
+        public synchronized void writeManifest() throws ResourceManagerException {
+            if (!manifestEnabled || readOnly || manifestWritten) {
+                return;
             }
+            String baseDir = getTransactionBaseDir(txId);
+            File manifestFile = new File(baseDir, MANIFEST_FILE);
+            File tmpFile = new File(baseDir, MANIFEST_FILE + TransactionJournal.TEMP_SUFFIX);
+            FileOutputStream os = null;
+            try {
+                os = new FileOutputStream(tmpFile);
+                DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(os));
+                writeKeys(dos, changedFiles);
+                writeKeys(dos, deletedFiles);
+                dos.flush();
+                if (durability != DURABILITY_NONE) {
+                    os.getFD().sync();
+                }
+                os.close();
+                os = null;
+                // a manifest is either complete or missing
+                if (!tmpFile.renameTo(manifestFile)) {
+                    throw new IOException("Could not rename " + tmpFile + " to " + manifestFile);
+                }
+                if (durability != DURABILITY_NONE) {
+                    FileHelper.syncDirectory(new File(baseDir));
+                }
+            } catch (IOException e) {
+                String msg = "Saving manifest failed";
+                logger.logSevere(msg, e);
+                throw new ResourceManagerSystemException(msg, ERR_SYSTEM, txId, e);
+            } finally {
+                if (os != null) {
+                    try {
+                        os.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+            manifestWritten = true;
         }
-    }
 
-    protected void closeOpenResource(Object openResource) {
-        if (logger.isFinerEnabled()) logger.logFiner("Releasing resource " + openResource);
-        globalOpenResources.remove(openResource);
-        if (openResource instanceof InputStream) {
-            InputStream is = (InputStream) openResource;
+        protected void writeKeys(DataOutputStream dos, Set keys) throws IOException {
+            dos.writeInt(keys.size());
+            for (Iterator it = keys.iterator(); it.hasNext();) {
+                dos.writeUTF((String) it.next());
+            }
+        }
+
+        /**
+         * Reads the index of changes and deletes from the manifest, e.g. upon
+         * recovery.
+         * 
+         * @return <code>false</code> if there is no complete manifest
+         */
+        public synchronized boolean readManifest() {
+            File manifestFile = new File(getTransactionBaseDir(txId), MANIFEST_FILE);
+            if (!manifestFile.exists()) {
+                return false;
+            }
+            DataInputStream dis = null;
             try {
-                is.close();
+                dis = new DataInputStream(new BufferedInputStream(new FileInputStream(manifestFile)));
+                Set changes = readKeys(dis);
+                Set deletes = readKeys(dis);
+                changedFiles.clear();
+                changedDirs.clear();
+                deletedFiles.clear();
+                deletedDirs.clear();
+                for (Iterator it = changes.iterator(); it.hasNext();) {
+                    indexChange((String) it.next(), true);
+                }
+                for (Iterator it = deletes.iterator(); it.hasNext();) {
+                    indexDelete((String) it.next(), true);
+                }
+                manifestWritten = true;
+                return true;
             } catch (IOException e) {
-                // do not care, as it might have been closed somewhere else, before 
+                logger.logWarning("Reading manifest " + manifestFile + " failed", e);
+                return false;
+            } finally {
+                if (dis != null) {
+                    try {
+                        dis.close();
+                    } catch (IOException e) {
+                    }
+                }
             }
-        } else if (openResource instanceof OutputStream) {
-            OutputStream os = (OutputStream) openResource;
+        }
+
+        protected Set readKeys(DataInputStream dis) throws IOException {
+            int size = dis.readInt();
+            Set keys = new HashSet();
+            for (int i = 0; i < size; i++) {
+                keys.add(dis.readUTF());
+            }
+            return keys;
+        }
+
+        protected void indexTree(File dir, String key, Set files, Set dirs) {
+            File[] children = dir.listFiles();
+            if (children == null) {
+                return;
+            }
+            for (int i = 0; i < children.length; i++) {
+                String childKey = new File(key, children[i].getName()).getPath();
+                if (children[i].isDirectory()) {
+                    dirs.add(childKey);
+                    indexTree(children[i], childKey, files, dirs);
+                } else {
+                    files.add(childKey);
+                }
+            }
+        }
+
+        public synchronized void commit() throws ResourceManagerException {
+            closeResources();
+            upgradeLockToCommit();
             try {
-                os.close();
+                if (!workDirCreated) {
+                    // nothing has been written
+                } else if (snapshotIsolation) {
+                    publish();
+                } else if (manifestWritten || commitThreads > 1) {
+                    applyIndex();
+                } else {
+                    applyWorkTree();
+                }
             } catch (IOException e) {
-                // do not care, as it might have been closed somewhere else, before 
+                throw new ResourceManagerSystemException("Commit failed", ERR_SYSTEM, txId, e);
+            } finally {
+                // even a failed commit may have changed part of the resources
+                invalidateMetadata(changedFiles, deletedFiles);
             }
+            if (optimistic) {
+                publishChanges();
+            }
+            freeLocks();
+            commitTime = System.currentTimeMillis();
         }
-    }
 
-    /*
-     * --- Recovery / Shutdown Support ---
-     *
-     *  
-     */
+        protected void applyWorkTree() throws IOException {
+            String baseDir = getTransactionBaseDir(txId);
+            String changeDir = baseDir + "/" + WORK_CHANGE_DIR;
+            String deleteDir = baseDir + "/" + WORK_DELETE_DIR;
 
-    protected boolean rollBackOrForward() {
-        boolean allCool = true;
+            List changedDirs = null;
+            if (durability >= DURABILITY_FSYNC) {
+                changedDirs = new ArrayList();
+                collectTargetDirs(new File(deleteDir), new File(storeDir), changedDirs);
+                collectTargetDirs(new File(changeDir), new File(storeDir), changedDirs);
+            }
+            applyDeletes(new File(deleteDir), new File(storeDir), new File(storeDir));
+            if (atomicCommit) {
+                FileHelper.moveRecAtomic(new File(changeDir), new File(storeDir));
+            } else {
+                // unlike renames, copies across file systems need to be forced themselves
+                FileHelper.moveRec(new File(changeDir), new File(storeDir), changedDirs != null);
+            }
+            if (changedDirs != null) {
+                // renames and deletes are only durable when their directories are
+                for (Iterator it = changedDirs.iterator(); it.hasNext();) {
+                    FileHelper.syncDirectory((File) it.next());
+                }
+            }
+        }
 
-        synchronized (globalTransactions) {
-            ArrayList contexts = new ArrayList(globalTransactions.values());
-            for (Iterator it = contexts.iterator(); it.hasNext();) {
-                TransactionContext context = (TransactionContext) it.next();
-                if (context.status == STATUS_COMMITTING) {
-                    // roll forward
-                    logger.logInfo("Rolling forward " + context.txId);
+        /**
+         * Applies all changes as a new version of the store. Commits publish
+         * one after the other, so a snapshot never sees part of a commit.
+         */
+        protected void publish() throws IOException {
+            synchronized (publishLock) {
+                publishVersion = publishedVersion + 1;
+                try {
+                    applyIndex();
+                } finally {
+                    synchronized (versionLock) {
+                        publishedVersion = publishVersion;
+                    }
+                    publishVersion = -1;
+                }
+            }
+        }
 
-                    try {
-                        context.commit();
-                        context.status = STATUS_COMMITTED;
-                        context.saveState();
-                        globalTransactions.remove(context.txId);
-                        context.cleanUp();
-                    } catch (ResourceManagerException e) {
-                        // this is not good, but what can we do now?
-                        allCool = false;
-                        logger.logSevere("Rolling forward of " + context.txId + " failed", e);
+        /**
+         * Applies the operations listed in the index, which is the manifest
+         * if it has been written. Operations already done by an interrupted
+         * earlier attempt are skipped, so this can be repeated any time.
+         */
+        protected void applyIndex() throws IOException {
+            final File storeRoot = new File(storeDir);
+            final File changeRoot = new File(getTransactionBaseDir(txId), WORK_CHANGE_DIR);
+            final Set changedDirs = (durability >= DURABILITY_FSYNC ? Collections
+                    .synchronizedSet(new HashSet()) : null);
+
+            String[] deletes = (String[]) deletedFiles.toArray(new String[deletedFiles.size()]);
+            applyAll(deletes, new FileOperation() {
+                public void apply(String key) throws IOException {
+                    if (publishVersion != -1) {
+                        preserveVersion(key, publishVersion);
+                    }
+                    File target = new File(storeRoot, key);
+                    if (!target.delete() && target.exists()) {
+                        throw new IOException("Could not delete file " + target);
+                    }
+                    // remove directories left empty, deleting fails for all others
+                    File dir = target.getParentFile();
+                    while (dir != null && !dir.equals(storeRoot) && dir.delete()) {
+                        dir = dir.getParentFile();
+                    }
+                    if (changedDirs != null && dir != null) {
+                        changedDirs.add(dir);
+                    }
+                }
+            });
+
+            String[] changes = (String[]) changedFiles.toArray(new String[changedFiles.size()]);
+            if (getCommitThreadCount(changes.length) > 1) {
+                // otherwise threads would race creating them
+                Set parents = new HashSet();
+                for (int i = 0; i < changes.length; i++) {
+                    File dir = new File(storeRoot, changes[i]).getParentFile();
+                    if (parents.add(dir) && !dir.exists() && !dir.mkdirs()) {
+                        throw new IOException("Could not create target directory: " + dir);
+                    }
+                }
+            }
+            applyAll(changes, new FileOperation() {
+                public void apply(String key) throws IOException {
+                    File source = new File(changeRoot, key);
+                    if (!source.exists()) {
+                        // already moved
+                        return;
                     }
-                } else if (context.status == STATUS_COMMITTED) {
-                    logger.logInfo("Cleaning already commited " + context.txId);
-                    globalTransactions.remove(context.txId);
-                    try {
-                        context.cleanUp();
-                    } catch (ResourceManagerException e) {
-                        // this is not good, but what can we do now?
-                        allCool = false;
-                        logger.logWarning("Cleaning of " + context.txId + " failed", e);
+                    if (publishVersion != -1) {
+                        preserveVersion(key, publishVersion);
                     }
-                } else {
-                    // in all other cases roll back and warn when not rollback was explicitely selected for tx
-                    if (context.status != STATUS_ROLLING_BACK
-                        && context.status != STATUS_ROLLEDBACK
-                        && context.status != STATUS_MARKED_ROLLBACK) {
-                        logger.logWarning("Irregularly rolling back " + context.txId);
-                    } else {
-                        logger.logInfo("Rolling back " + context.txId);
+                    File target = new File(storeRoot, key);
+                    if (atomicCommit) {
+                        File dir = target.getParentFile();
+                        if (!dir.exists() && !dir.mkdirs()) {
+                            throw new IOException("Could not create target directory: " + dir);
+                        }
+                        if (!FileHelper.atomicMove(source, target)) {
+                            throw new IOException("Could not atomically move " + source + " to "
+                                    + target);
+                        }
+                    } else if (!FileHelper.move(source, target) && changedDirs != null) {
+                        // unlike renames, copies across file systems need to be forced themselves
+                        FileHelper.sync(target);
                     }
-                    try {
-                        context.rollback();
-                        context.status = STATUS_ROLLEDBACK;
-                        context.saveState();
-                        globalTransactions.remove(context.txId);
-                        context.cleanUp();
-                    } catch (ResourceManagerException e) {
-                        logger.logWarning("Rolling back of " + context.txId + " failed", e);
+                    if (changedDirs != null) {
+                        changedDirs.add(target.getParentFile());
                     }
                 }
-            }
-
-        }
-        return allCool;
-    }
-
-    protected void recoverContexts() {
-        File dir = new File(workDir);
-        File[] files = dir.listFiles();
-        if (files == null)
-            return;
-        for (int i = 0; i < files.length; i++) {
-            File file = files[i];
-            Object txId = txIdMapper.getIdForPath(file.getName());
-            // recover all transactions we do not already know
-            if (!globalTransactions.containsKey(txId)) {
+            });
 
-                logger.logInfo("Recovering " + txId);
-                TransactionContext context;
-                try {
-                    context = new TransactionContext(txId);
-                    context.recoverState();
-                    globalTransactions.put(txId, context);
-                } catch (ResourceManagerException e) {
-                    // this is not good, but the best we get, just log as warning
-                    logger.logWarning("Recovering of " + txId + " failed");
+            if (changedDirs != null) {
+                // renames and deletes are only durable when their directories are
+                for (Iterator it = changedDirs.iterator(); it.hasNext();) {
+                    FileHelper.syncDirectory((File) it.next());
                 }
             }
         }
-    }
-
-    protected boolean waitForAllTxToStop(long timeoutMSecs) {
-        long startTime = System.currentTimeMillis();
-
-        // be sure not to lock globalTransactions for too long, as we need to give
-        // txs the chance to complete (otherwise deadlocks are very likely to occur)
-        // instead iterate over a copy as we can be sure no new txs will be registered
-        // after operation level has been set to stopping
 
-        Collection transactionsToStop;
-        synchronized (globalTransactions) {
-            transactionsToStop = new ArrayList(globalTransactions.values());
+        protected int getCommitThreadCount(int files) {
+            return Math.max(1, Math.min(commitThreads, files / MIN_FILES_PER_COMMIT_THREAD));
         }
-        for (Iterator it = transactionsToStop.iterator(); it.hasNext();) {
-            long remainingTimeout = startTime - System.currentTimeMillis() + timeoutMSecs;
 
-            if (remainingTimeout <= 0) {
-                return false;
+        /**
+         * Applies an operation to all keys, using the commit workers for many
+         * keys. Returns when all are done or throws the first failure after
+         * all workers have finished.
+         */
+        protected void applyAll(final String[] keys, final FileOperation operation)
+                throws IOException {
+            WorkerPool workers = commitWorkers;
+            final int stripes = (workers == null ? 1 : Math.min(getCommitThreadCount(keys.length),
+                    workers.getSize() + 1));
+            if (stripes == 1) {
+                for (int i = 0; i < keys.length; i++) {
+                    operation.apply(keys[i]);
+                }
+                return;
             }
 
-            TransactionContext context = (TransactionContext) it.next();
-            synchronized (context) {
-                if (!context.finished) {
-                    logger.logInfo(
-                        "Waiting for tx " + context.txId + " to finish for " + remainingTimeout + " milli seconds");
+            final Throwable[] failure = new Throwable[1];
+            // number of stripes not yet done, guarded by failure
+            final int[] running = new int[] { stripes };
+            for (int s = 0; s < stripes; s++) {
+                final int first = s;
+                Runnable stripe = new Runnable() {
+                    public void run() {
+                        try {
+                            for (int i = first; i < keys.length; i += stripes) {
+                                synchronized (failure) {
+                                    if (failure[0] != null) {
+                                        return;
+                                    }
+                                }
+                                operation.apply(keys[i]);
+                            }
+                        } catch (Throwable e) {
+                            synchronized (failure) {
+                                if (failure[0] == null) {
+                                    failure[0] = e;
+                                }
+                            }
+                        } finally {
+                            synchronized (failure) {
+                                running[0]--;
+                                failure.notifyAll();
+                            }
+                        }
+                    }
+                };
+                // the last stripe is done by the committing thread
+                if (s == stripes - 1 || !workers.execute(stripe)) {
+                    stripe.run();
                 }
-                while (!context.finished && remainingTimeout > 0) {
+            }
+
+            // never return while files are still being moved
+            boolean interrupted = false;
+            synchronized (failure) {
+                while (running[0] > 0) {
                     try {
-                        context.wait(remainingTimeout);
+                        failure.wait();
                     } catch (InterruptedException e) {
-                        return false;
+                        interrupted = true;
                     }
-                    remainingTimeout = startTime - System.currentTimeMillis() + timeoutMSecs;
-                }
-                if (context.finished) {
-                    logger.logInfo("Tx " + context.txId + " finished");
-                } else {
-                    logger.logWarning("Tx " + context.txId + " failed to finish in given time");
                 }
             }
-        }
-
-        return (globalTransactions.size() == 0);
-    }
-
-    protected boolean shutdown(int mode, long timeoutMSecs) {
-        switch (mode) {
-            case SHUTDOWN_MODE_NORMAL :
-                return waitForAllTxToStop(timeoutMSecs);
-            case SHUTDOWN_MODE_ROLLBACK :
-                return rollBackOrForward();
-            case SHUTDOWN_MODE_KILL :
-                return true;
-            default :
-                return false;
-        }
-    }
-
-    protected void setDirty(Object txId, Throwable t) {
-        logger.logSevere(
-            "Fatal error during critical commit/rollback of transaction " + txId + ", setting database to dirty.",
-            t);
-        dirty = true;
-    }
-
-    /**
-     * Inner class to hold the complete context, i.e. all information needed, for a transaction.
-     * 
-     */
-    protected class TransactionContext {
-
-        protected Object txId;
-        protected int status = STATUS_ACTIVE;
-        protected int isolationLevel = DEFAULT_ISOLATION_LEVEL;
-        protected long timeoutMSecs = getDefaultTransactionTimeout();
-        protected long startTime;
-        protected long commitTime = -1L;
-        protected boolean isLightWeight = false;
-        protected boolean readOnly = true;
-        protected boolean finished = false;
-
-        // list of streams participating in this tx
-        private List openResources = new ArrayList();
-
-        public TransactionContext(Object txId) throws ResourceManagerException {
-            this.txId = txId;
-            startTime = System.currentTimeMillis();
-        }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
 
-        public long getRemainingTimeout() {
-            long now = System.currentTimeMillis();
-            return (startTime - now + timeoutMSecs);
+            if (failure[0] instanceof IOException) {
+                throw (IOException) failure[0];
+            } else if (failure[0] instanceof RuntimeException) {
+                throw (RuntimeException) failure[0];
+            } else if (failure[0] instanceof Error) {
+                throw (Error) failure[0];
+            }
         }
 
-        public synchronized void init() throws ResourceManagerException {
-            String baseDir = getTransactionBaseDir(txId);
-            String changeDir = baseDir + "/" + WORK_CHANGE_DIR;
-            String deleteDir = baseDir + "/" + WORK_DELETE_DIR;
-
-            new File(changeDir).mkdirs();
-            new File(deleteDir).mkdirs();
-
-            saveState();
+        /**
+         * Makes new transactions wait for recovery before they access
+         * resources changed or deleted by this one.
+         */
+        public void registerInDoubt() {
+            registerInDoubt(changedFiles);
+            registerInDoubt(changedDirs);
+            registerInDoubt(deletedFiles);
+            registerInDoubt(deletedDirs);
         }
 
-        public synchronized void rollback() throws ResourceManagerException {
-            closeResources();
-            freeLocks();
+        protected void registerInDoubt(Set keys) {
+            for (Iterator it = keys.iterator(); it.hasNext();) {
+                inDoubtResources.put(it.next(), this);
+            }
         }
 
-        public synchronized void commit() throws ResourceManagerException {
-            String baseDir = getTransactionBaseDir(txId);
-            String changeDir = baseDir + "/" + WORK_CHANGE_DIR;
-            String deleteDir = baseDir + "/" + WORK_DELETE_DIR;
-
-            closeResources();
-            upgradeLockToCommit();
-            try {
-                applyDeletes(new File(deleteDir), new File(storeDir), new File(storeDir));
-                FileHelper.moveRec(new File(changeDir), new File(storeDir));
-            } catch (IOException e) {
-                throw new ResourceManagerSystemException("Commit failed", ERR_SYSTEM, txId, e);
+        public void releaseInDoubt() {
+            synchronized (inDoubtResources) {
+                for (Iterator it = inDoubtResources.values().iterator(); it.hasNext();) {
+                    if (it.next() == this) {
+                        it.remove();
+                    }
+                }
             }
-            freeLocks();
-            commitTime = System.currentTimeMillis();
         }
 
         public synchronized void notifyFinish() {
@@ -1447,12 +4395,21 @@ public class FileResourceManager implements ResourceManager, ResourceManagerErro
         }
 
         public synchronized void cleanUp() throws ResourceManagerException {
+            if (snapshotVersion != -1) {
+                releaseSnapshot(snapshotVersion);
+                snapshotVersion = -1;
+            }
             if (!cleanUp)
                 return; // XXX for debugging only
             boolean clean = true;
             Exception cleanException = null;
-            String baseDir = getTransactionBaseDir(txId);
-            FileHelper.removeRec(new File(baseDir));
+            File baseDir = new File(getTransactionBaseDir(txId));
+            if (!asyncCleanup || !moveToTrash(baseDir)) {
+                FileHelper.removeRec(baseDir);
+            }
+            if (journal != null) {
+                journal.forget(txIdMapper.getPathForId(txId));
+            }
             if (!clean) {
                 throw new ResourceManagerSystemException(
                     "Clean up failed due to unreleasable lock",
@@ -1468,8 +4425,12 @@ public class FileResourceManager implements ResourceManager, ResourceManagerErro
         }
 
         public synchronized void upgradeLockToCommit() throws ResourceManagerException {
+            if (optimistic) {
+                validate();
+                return;
+            }
             for (Iterator it =  lockManager.getAll(txId).iterator(); it.hasNext();) {
-                GenericLock lock = (GenericLock) it.next();
+                MultiLevelLock lock = (MultiLevelLock) it.next();
                 // only upgrade if we had write access
                 if (lock.getLockLevel(txId) == LOCK_EXCLUSIVE) {
                     try {
@@ -1483,7 +4444,8 @@ public class FileResourceManager implements ResourceManager, ResourceManagerErro
                                 getDefaultTransactionTimeout() * DEFAULT_COMMIT_TIMEOUT_FACTOR)) {
                             throw new ResourceManagerException(
                                 "Could not upgrade to commit lock for resource at '"
-                                    + lock.getResourceId().toString()
+                                    + (lock instanceof GenericLock ? ((GenericLock) lock)
+                                            .getResourceId() : lock)
                                     + "'",
                                 ERR_NO_LOCK,
                                 txId);
@@ -1517,13 +4479,28 @@ public class FileResourceManager implements ResourceManager, ResourceManagerErro
         }
 
         public synchronized void saveState() throws ResourceManagerException {
+            if (!workDirCreated) {
+                // nothing to recover as long as nothing has been written
+                return;
+            }
+            if (journal != null) {
+                saveStateToJournal(isForcedState());
+                return;
+            }
             String statePath = getTransactionBaseDir(txId) + "/" + CONTEXT_FILE;
             File file = new File(statePath);
             BufferedWriter writer = null;
             try {
-                OutputStream os = new FileOutputStream(file);
+                FileOutputStream os = new FileOutputStream(file);
                 writer = new BufferedWriter(new OutputStreamWriter(os, DEFAULT_PARAMETER_ENCODING));
                 writer.write(toString());
+                if (isForcedState()) {
+                    writer.flush();
+                    os.getFD().sync();
+                    // the log has been created with the transaction, make sure it can be found
+                    FileHelper.syncDirectory(file.getParentFile());
+                    FileHelper.syncDirectory(new File(workDir));
+                }
             } catch (FileNotFoundException e) {
                 String msg = "Saving status information to '" + statePath + "' failed! Could not create file";
                 logger.logSevere(msg, e);
@@ -1543,6 +4520,84 @@ public class FileResourceManager implements ResourceManager, ResourceManagerErro
             }
         }
 
+        /**
+         * Appends the state of this transaction to the journal, optionally
+         * waiting until it has been forced to disk.
+         */
+        protected void saveStateToJournal(boolean sync) throws ResourceManagerException {
+            try {
+                String key = txIdMapper.getPathForId(txId);
+                if (sync) {
+                    journal.appendAndSync(TransactionJournal.RECORD_STATE, key, getStateData());
+                } else {
+                    journal.append(TransactionJournal.RECORD_STATE, key, getStateData());
+                }
+            } catch (IOException e) {
+                String msg = "Saving status information of " + txId + " to journal failed";
+                logger.logSevere(msg, e);
+                throw new ResourceManagerSystemException(msg, ERR_SYSTEM, txId, e);
+            }
+        }
+
+        /**
+         * Checks if the current state needs to be forced to disk. A prepared
+         * transaction must survive, just as the decision to commit.
+         */
+        protected boolean isForcedState() {
+            return durability != DURABILITY_NONE
+                    && (status == STATUS_PREPARED || status == STATUS_COMMITTING);
+        }
+
+        /**
+         * Forces all changes of this transaction to disk, if the durability
+         * level requires it.
+         */
+        public synchronized void syncChanges() throws ResourceManagerException {
+            if (durability < DURABILITY_FSYNC || readOnly || changesSynced) {
+                return;
+            }
+            // pending writes must be in the files first
+            closeResources();
+            String baseDir = getTransactionBaseDir(txId);
+            try {
+                FileHelper.syncRec(new File(baseDir + "/" + WORK_CHANGE_DIR));
+                FileHelper.syncRec(new File(baseDir + "/" + WORK_DELETE_DIR));
+                FileHelper.syncDirectory(new File(baseDir));
+            } catch (IOException e) {
+                throw new ResourceManagerSystemException("Forcing changes to disk failed",
+                        ERR_SYSTEM, txId, e);
+            }
+            changesSynced = true;
+        }
+
+        /**
+         * Gets the state recorded in the journal.
+         */
+        protected byte[] getStateData() throws IOException {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(32);
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeInt(status);
+            out.writeInt(isolationLevel);
+            out.writeLong(timeoutMSecs);
+            out.writeLong(startTime);
+            out.flush();
+            return bos.toByteArray();
+        }
+
+        public synchronized void recoverState(byte[] state) throws ResourceManagerException {
+            try {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(state));
+                status = in.readInt();
+                isolationLevel = in.readInt();
+                timeoutMSecs = in.readLong();
+                startTime = in.readLong();
+            } catch (IOException e) {
+                String msg = "Recovering status information of " + txId + " from journal failed";
+                logger.logSevere(msg, e);
+                throw new ResourceManagerSystemException(msg, ERR_SYSTEM, txId, e);
+            }
+        }
+
         public synchronized void recoverState() throws ResourceManagerException {
             String statePath = getTransactionBaseDir(txId) + "/" + CONTEXT_FILE;
             File file = new File(statePath);
@@ -1590,7 +4645,7 @@ public class FileResourceManager implements ResourceManager, ResourceManagerErro
                 buf.append("----- Lock Debug Info -----\n");
 
                 for (Iterator it = lockManager.getAll(txId).iterator(); it.hasNext();) {
-                    GenericLock lock = (GenericLock) it.next();
+                    Object lock = it.next();
                     buf.append(lock.toString()+"\n");
                 }
 
@@ -1600,6 +4655,75 @@ public class FileResourceManager implements ResourceManager, ResourceManagerErro
 
     }
 
+    /**
+     * Lazily merges the committed members of a collection with the ones
+     * created or deleted by a transaction.
+     */
+    protected class ResourceListing implements Iterator {
+
+        protected TransactionContext context;
+        protected String collectionKey;
+        protected DirectoryIterator names;
+        // members created by the transaction and not yet listed 
+        protected Set added;
+        protected Iterator addedIterator = null;
+        protected String next = null;
+
+        public ResourceListing(TransactionContext context, String collectionKey,
+                DirectoryIterator names, Set added) {
+            this.context = context;
+            this.collectionKey = collectionKey;
+            this.names = names;
+            this.added = added;
+        }
+
+        public boolean hasNext() {
+            while (next == null) {
+                if (names.hasNext()) {
+                    String member = getMemberKey(collectionKey, (String) names.next());
+                    if (added.remove(member)) {
+                        // changed by the transaction
+                        next = member;
+                    } else if (context.isDeletedFile(member)) {
+                        continue;
+                    } else if (context.snapshotVersion != -1
+                            && getSnapshotFile(member, new File(storeDir, member),
+                                    context.snapshotVersion) == null) {
+                        // created after the snapshot
+                        continue;
+                    } else {
+                        next = member;
+                    }
+                } else {
+                    if (addedIterator == null) {
+                        addedIterator = added.iterator();
+                    }
+                    if (!addedIterator.hasNext()) {
+                        return false;
+                    }
+                    String member = (String) addedIterator.next();
+                    if (!context.isDeletedFile(member)) {
+                        next = member;
+                    }
+                }
+            }
+            return true;
+        }
+
+        public Object next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String member = next;
+            next = null;
+            return member;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
     private class InputStreamWrapper extends InputStream {
         private InputStream is;
         private Object txId;
@@ -1631,29 +4755,7 @@ public class FileResourceManager implements ResourceManager, ResourceManagerErro
             try {
                 is.close();
             } finally {
-                TransactionContext context;
-                synchronized (globalTransactions) {
-                    context = getContext(txId);
-                    if (context == null) {
-                        return;
-                    }
-                }
-                synchronized (context) {
-                    if (context.isLightWeight) {
-                        if (logger.isFinerEnabled())
-                            logger.logFiner("Upon close of resource removing temporary light weight tx " + txId);
-                        context.freeLocks();
-                        globalTransactions.remove(txId);
-                    } else {
-                        // release access lock in order to allow other transactions to commit
-                        if (lockManager.getLevel(txId, resourceId) == LOCK_ACCESS) {
-                            if (logger.isFinerEnabled()) {
-                                logger.logFiner("Upon close of resource releasing access lock for tx " + txId + " on resource at " + resourceId);
-                            }
-                            lockManager.release(txId, resourceId);
-                        }
-                    }
-                }
+                readResourceClosed(txId, resourceId);
             }
         }
 
@@ -1672,4 +4774,91 @@ public class FileResourceManager implements ResourceManager, ResourceManagerErro
 
     }
 
+    private class FileChannelWrapper extends FileChannel {
+        private FileChannel channel;
+        private Object txId;
+        private Object resourceId;
+
+        public FileChannelWrapper(FileChannel channel, Object txId, Object resourceId) {
+            this.channel = channel;
+            this.txId = txId;
+            this.resourceId = resourceId;
+        }
+
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return channel.read(dsts, offset, length);
+        }
+
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            return channel.write(src);
+        }
+
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return channel.write(srcs, offset, length);
+        }
+
+        public int write(ByteBuffer src, long position) throws IOException {
+            return channel.write(src, position);
+        }
+
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        public FileChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        public FileChannel truncate(long size) throws IOException {
+            channel.truncate(size);
+            return this;
+        }
+
+        public void force(boolean metaData) throws IOException {
+            channel.force(metaData);
+        }
+
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return channel.transferTo(position, count, target);
+        }
+
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return channel.transferFrom(src, position, count);
+        }
+
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return channel.map(mode, position, size);
+        }
+
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return channel.lock(position, size, shared);
+        }
+
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return channel.tryLock(position, size, shared);
+        }
+
+        protected void implCloseChannel() throws IOException {
+            try {
+                channel.close();
+            } finally {
+                readResourceClosed(txId, resourceId);
+            }
+        }
+
+    }
+
 }
@@ -111,5 +111,13 @@ public interface ResourceManagerErrorCodes {
      */
     public static final int ERR_DEAD_LOCK = ERR_LOCK + 2;
 
+    /**
+     * Error code: resource has been changed by a transaction committed
+     * after the snapshot of this one has been taken
+     * 
+     * @since 1.3
+     */
+    public static final int ERR_CONFLICT = ERR_LOCK + 3;
+
 
 }
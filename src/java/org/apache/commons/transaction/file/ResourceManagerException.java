@@ -42,6 +42,7 @@ public class ResourceManagerException extends Exception implements ResourceManag
             ERR_NO_SUCH_RESOURCE,
             ERR_LOCK,
             ERR_NO_LOCK,
+            ERR_CONFLICT,
             ERR_MARKED_FOR_ROLLBACK,
             };
 
@@ -61,6 +62,7 @@ public class ResourceManagerException extends Exception implements ResourceManag
             "ERR_NO_SUCH_RESOURCE",
             "ERR_LOCK",
             "ERR_NO_LOCK",
+            "ERR_CONFLICT",
             "ERR_MARKED_FOR_ROLLBACK",
             };
 
@@ -80,6 +82,7 @@ public class ResourceManagerException extends Exception implements ResourceManag
             "No such resource",
             "Locking error",
             "Could not acquire lock",
+            "Concurrent change",
             "Transaction already marked for rollback" };
 
     public static final String ERR_UNKNOWN_TEXT = "Unknown error";
@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.file;
+
+/**
+ * Size, modification time and version of a resource of a
+ * {@link FileResourceManager} as seen by a transaction. Instances are
+ * immutable.
+ *
+ * @version $Id$
+ * @see FileResourceManager#getResourceMetadata(Object, Object)
+ * @since 1.3
+ */
+public class ResourceMetadata {
+
+    protected final long size;
+    protected final long lastModified;
+    protected final boolean directory;
+    protected final String version;
+
+    public ResourceMetadata(long size, long lastModified, boolean directory, String version) {
+        this.size = size;
+        this.lastModified = lastModified;
+        this.directory = directory;
+        this.version = version;
+    }
+
+    /**
+     * Gets the size of the resource.
+     *
+     * @return size in bytes, <code>0</code> for directories
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Gets the time the resource has last been modified.
+     *
+     * @return time in milliseconds since the epoch
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Checks if the resource is a directory.
+     *
+     * @return <code>true</code> for directories
+     */
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    /**
+     * Gets the version of the resource as described for
+     * {@link FileResourceManager#getResourceVersion(Object, Object)}.
+     *
+     * @return the version or <code>null</code> for directories
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    public String toString() {
+        return (directory ? "directory" : size + " bytes, version " + version) + ", modified "
+                + lastModified;
+    }
+}
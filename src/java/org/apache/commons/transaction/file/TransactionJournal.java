@@ -0,0 +1,546 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.commons.transaction.util.FileHelper;
+import org.apache.commons.transaction.util.LoggerFacade;
+
+/**
+ * Append-only journal of keyed records shared by all transactions of a
+ * {@link FileResourceManager}. Every record supersedes all earlier records of
+ * the same key, so the journal only needs to remember the latest record per
+ * key. <br>
+ * <br>
+ * Records are framed as
+ * <ul>
+ * <li>length of the payload as <code>int</code>
+ * <li>record type as <code>byte</code>
+ * <li>payload, i.e. the key in modified UTF-8 followed by the data
+ * <li>CRC32 of type and payload as <code>long</code>
+ * </ul>
+ * A record that is incomplete or does not match its checksum marks the end of
+ * the journal; it and everything after it is cut off when the journal is
+ * opened. <br>
+ * <br>
+ * Every {@link #setCheckpointInterval(int) checkpoint interval} appends the
+ * journal is compacted by writing the latest records of all keys not
+ * {@link #forget(String) forgotten} to a temporary file which then replaces
+ * the journal. <br>
+ * <br>
+ * Records appended using {@link #appendAndSync(byte, String, byte[])} are
+ * forced to disk before the call returns. Concurrent callers are grouped: the
+ * first one becomes the leader, waits up to the
+ * {@link #setGroupCommit(int, long) maximum wait} for a batch to fill and then
+ * forces the journal once for the whole batch while the others wait for it.
+ *
+ * @version $Id$
+ * @since 1.3
+ */
+public class TransactionJournal {
+
+    public static final byte RECORD_STATE = 1;
+
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 1000;
+
+    public static final int DEFAULT_GROUP_COMMIT_SIZE = 16;
+
+    public static final long DEFAULT_GROUP_COMMIT_WAIT_MSECS = 0;
+
+    protected static final String TEMP_SUFFIX = ".tmp";
+
+    protected static final String BACKUP_SUFFIX = ".old";
+
+    // protects against reading garbage as a huge length
+    protected static final int MAX_RECORD_LENGTH = 1024 * 1024;
+
+    protected final File file;
+    protected final LoggerFacade logger;
+
+    protected int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    protected int appendsSinceCheckpoint = 0;
+
+    /** Maps key to the data of its latest record. */
+    protected Map records = new HashMap();
+
+    protected FileOutputStream fileOut = null;
+    protected DataOutputStream out = null;
+
+    protected int groupCommitSize = DEFAULT_GROUP_COMMIT_SIZE;
+    protected long groupCommitWaitMSecs = DEFAULT_GROUP_COMMIT_WAIT_MSECS;
+
+    /** Number of the last record appended. */
+    protected long appendSequence = 0;
+    /** Number of the last record known to be on disk. */
+    protected long syncedSequence = 0;
+    /** Set while a leader forces the journal. */
+    protected boolean syncing = false;
+
+    protected long syncCount = 0;
+    protected long syncedRecords = 0;
+    protected long syncMSecs = 0;
+
+    /**
+     * Creates a new journal stored in the specified file. The journal needs
+     * to be {@link #open() opened} before it can be used.
+     *
+     * @param file file holding the journal
+     * @param logger logger used for warnings only
+     */
+    public TransactionJournal(File file, LoggerFacade logger) {
+        this.file = file;
+        this.logger = logger;
+    }
+
+    /**
+     * Sets the number of appends after which the journal is compacted.
+     *
+     * @param checkpointInterval number of appends or <code>0</code> to compact on close only
+     */
+    public synchronized void setCheckpointInterval(int checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    public synchronized int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /**
+     * Configures how records forced to disk are grouped.
+     *
+     * @param size number of records after which a leader stops waiting for
+     *            more records to join its batch
+     * @param maxWaitMSecs maximum time in milliseconds a leader waits for the
+     *            batch to fill or <code>0</code> to force the journal at once
+     */
+    public synchronized void setGroupCommit(int size, long maxWaitMSecs) {
+        this.groupCommitSize = size;
+        this.groupCommitWaitMSecs = maxWaitMSecs;
+    }
+
+    /**
+     * Gets the number of times the journal has been forced to disk.
+     *
+     * @return number of batches
+     */
+    public synchronized long getSyncCount() {
+        return syncCount;
+    }
+
+    /**
+     * Gets the average number of records forced to disk at once.
+     *
+     * @return average batch size or <code>0</code> if there was no batch, yet
+     */
+    public synchronized double getAverageBatchSize() {
+        return (syncCount == 0 ? 0.0 : (double) syncedRecords / syncCount);
+    }
+
+    /**
+     * Gets the average time it took to force a batch to disk.
+     *
+     * @return average time in milliseconds or <code>0</code> if there was no batch, yet
+     */
+    public synchronized double getAverageSyncMSecs() {
+        return (syncCount == 0 ? 0.0 : (double) syncMSecs / syncCount);
+    }
+
+    /**
+     * Gets the file holding the journal.
+     *
+     * @return the journal file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Reads all records present in the journal and opens it for appending.
+     * A torn record at the end of the journal is cut off.
+     *
+     * @throws IOException if the journal can not be read or opened
+     */
+    public synchronized void open() throws IOException {
+        records.clear();
+        appendsSinceCheckpoint = 0;
+        File tempFile = getTempFile();
+        File backupFile = getBackupFile();
+        if (!file.exists() && backupFile.exists()) {
+            // crashed while replacing the journal, the old one is complete
+            if (!backupFile.renameTo(file)) {
+                throw new IOException("Could not restore journal '" + file + "' from '"
+                        + backupFile + "'");
+            }
+        }
+        if (tempFile.exists()) {
+            // left over from an interrupted checkpoint, the journal itself is still valid
+            tempFile.delete();
+        }
+        if (backupFile.exists()) {
+            // the checkpoint has been put into place already
+            backupFile.delete();
+        }
+        if (file.exists()) {
+            long validLength = replay();
+            if (validLength < file.length()) {
+                logger.logWarning("Cutting off torn record at " + validLength + " of journal '"
+                        + file + "'");
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(validLength);
+                } finally {
+                    raf.close();
+                }
+            }
+        } else {
+            File dir = file.getParentFile();
+            if (dir != null) {
+                dir.mkdirs();
+            }
+        }
+        openForAppend();
+    }
+
+    /**
+     * Closes the journal after compacting it.
+     *
+     * @throws IOException if compaction or closing fails
+     */
+    public synchronized void close() throws IOException {
+        waitForSync();
+        if (out != null) {
+            checkpoint();
+            out.close();
+            out = null;
+            fileOut = null;
+        }
+    }
+
+    /**
+     * Checks if the journal is open.
+     *
+     * @return <code>true</code> if it is open
+     */
+    public synchronized boolean isOpen() {
+        return out != null;
+    }
+
+    /**
+     * Gets the latest data of all keys known to this journal.
+     *
+     * @return copy of the map from key to data
+     */
+    public synchronized Map getRecords() {
+        return new HashMap(records);
+    }
+
+    /**
+     * Gets the latest data of a key.
+     *
+     * @param key the key
+     * @return the data or <code>null</code> if there is no record for the key
+     */
+    public synchronized byte[] getRecord(String key) {
+        return (byte[]) records.get(key);
+    }
+
+    /**
+     * Appends a record to the journal superseding all previous records of its
+     * key. The record is written to the operating system, but not forced to
+     * disk.
+     *
+     * @param type type of the record
+     * @param key key of the record
+     * @param data the data of the record
+     * @throws IOException if the record can not be written
+     */
+    public synchronized void append(byte type, String key, byte[] data) throws IOException {
+        if (out == null) {
+            throw new IOException("Journal '" + file + "' is not open");
+        }
+        writeRecord(out, type, key, data);
+        out.flush();
+        records.put(key, data);
+        appendSequence++;
+        appendsSinceCheckpoint++;
+        if (syncing) {
+            // a leader might be waiting for its batch to fill
+            notifyAll();
+        }
+        if (checkpointInterval > 0 && appendsSinceCheckpoint >= checkpointInterval) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Appends a record like {@link #append(byte, String, byte[])} and returns
+     * only after it has been forced to disk together with all records
+     * appended before.
+     *
+     * @param type type of the record
+     * @param key key of the record
+     * @param data the data of the record
+     * @throws IOException if the record can not be written or forced to disk
+     */
+    public void appendAndSync(byte type, String key, byte[] data) throws IOException {
+        long sequence;
+        synchronized (this) {
+            append(type, key, data);
+            sequence = appendSequence;
+        }
+        sync(sequence);
+    }
+
+    /**
+     * Waits until all records up to the given one are on disk, forcing the
+     * journal as the leader of a batch if no other thread does so.
+     */
+    protected void sync(long sequence) throws IOException {
+        FileOutputStream toSync;
+        long target;
+        synchronized (this) {
+            while (syncing && syncedSequence < sequence) {
+                waitInterruptibly(0);
+            }
+            if (syncedSequence >= sequence) {
+                return;
+            }
+            if (out == null) {
+                throw new IOException("Journal '" + file + "' is not open");
+            }
+            syncing = true;
+            try {
+                long waitEnd = System.currentTimeMillis() + groupCommitWaitMSecs;
+                while (appendSequence - syncedSequence < groupCommitSize) {
+                    long remaining = waitEnd - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    waitInterruptibly(remaining);
+                }
+                out.flush();
+            } catch (IOException e) {
+                syncing = false;
+                notifyAll();
+                throw e;
+            }
+            target = appendSequence;
+            toSync = fileOut;
+        }
+
+        // force without holding the monitor, so the next batch can already be appended
+        long started = System.currentTimeMillis();
+        boolean synced = false;
+        try {
+            toSync.getFD().sync();
+            synced = true;
+        } finally {
+            synchronized (this) {
+                if (synced) {
+                    syncCount++;
+                    syncedRecords += target - syncedSequence;
+                    syncMSecs += System.currentTimeMillis() - started;
+                    syncedSequence = target;
+                }
+                syncing = false;
+                notifyAll();
+            }
+        }
+    }
+
+    protected void waitForSync() throws IOException {
+        while (syncing) {
+            waitInterruptibly(0);
+        }
+    }
+
+    protected void waitInterruptibly(long mSecs) throws IOException {
+        try {
+            wait(mSecs);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for journal '" + file
+                    + "' to be forced to disk");
+        }
+    }
+
+    /**
+     * Forgets all records of a key. This does not write anything, the records
+     * will no longer be contained in the journal after the next checkpoint.
+     *
+     * @param key the key
+     */
+    public synchronized void forget(String key) {
+        records.remove(key);
+    }
+
+    /**
+     * Compacts the journal by replacing it with a new journal containing only
+     * the latest record of all keys not forgotten.
+     *
+     * @throws IOException if the new journal can not be written or put into place
+     */
+    public synchronized void checkpoint() throws IOException {
+        // the leader of a batch still uses the current file
+        waitForSync();
+        File tempFile = getTempFile();
+        FileOutputStream tempFileOut = new FileOutputStream(tempFile);
+        DataOutputStream tempOut = new DataOutputStream(new BufferedOutputStream(tempFileOut));
+        try {
+            for (Iterator it = records.entrySet().iterator(); it.hasNext();) {
+                Map.Entry entry = (Map.Entry) it.next();
+                writeRecord(tempOut, RECORD_STATE, (String) entry.getKey(), (byte[]) entry
+                        .getValue());
+            }
+            tempOut.flush();
+            // the checkpoint replaces records that may already have been forced to disk
+            tempFileOut.getFD().sync();
+        } finally {
+            tempOut.close();
+        }
+
+        if (out != null) {
+            out.close();
+            out = null;
+            fileOut = null;
+        }
+        if (!tempFile.renameTo(file)) {
+            // some platforms can not rename onto an existing file, keep the
+            // old journal until the new one is in place
+            File backupFile = getBackupFile();
+            backupFile.delete();
+            if (!file.renameTo(backupFile)) {
+                throw new IOException("Could not replace journal '" + file + "' by checkpoint");
+            }
+            if (!tempFile.renameTo(file)) {
+                backupFile.renameTo(file);
+                throw new IOException("Could not replace journal '" + file + "' by checkpoint");
+            }
+            backupFile.delete();
+        }
+        FileHelper.syncDirectory(file.getParentFile());
+        openForAppend();
+        appendsSinceCheckpoint = 0;
+        syncedSequence = appendSequence;
+    }
+
+    protected File getTempFile() {
+        return new File(file.getPath() + TEMP_SUFFIX);
+    }
+
+    protected File getBackupFile() {
+        return new File(file.getPath() + BACKUP_SUFFIX);
+    }
+
+    protected void openForAppend() throws IOException {
+        fileOut = new FileOutputStream(file.getPath(), true);
+        out = new DataOutputStream(new BufferedOutputStream(fileOut));
+    }
+
+    /**
+     * Reads all valid records into memory.
+     *
+     * @return length of the valid part of the journal
+     */
+    protected long replay() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        long validLength = 0;
+        try {
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length < 0 || length > MAX_RECORD_LENGTH) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                byte type;
+                long checksum;
+                try {
+                    type = in.readByte();
+                    in.readFully(payload);
+                    checksum = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(type);
+                crc.update(payload, 0, payload.length);
+                if (crc.getValue() != checksum) {
+                    break;
+                }
+                readRecord(type, payload);
+                validLength += 4 + 1 + length + 8;
+            }
+        } finally {
+            in.close();
+        }
+        return validLength;
+    }
+
+    protected void readRecord(byte type, byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        String key = in.readUTF();
+        byte[] data = new byte[in.available()];
+        in.readFully(data);
+        if (type == RECORD_STATE) {
+            records.put(key, data);
+        } else {
+            logger.logWarning("Ignoring record of unknown type " + type + " in journal '" + file
+                    + "'");
+        }
+    }
+
+    protected void writeRecord(DataOutputStream out, byte type, String key, byte[] data)
+            throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length + 32);
+        DataOutputStream payloadOut = new DataOutputStream(bos);
+        payloadOut.writeUTF(key);
+        payloadOut.write(data);
+        payloadOut.flush();
+        byte[] payload = bos.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload, 0, payload.length);
+
+        out.writeInt(payload.length);
+        out.writeByte(type);
+        out.write(payload);
+        out.writeLong(crc.getValue());
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.file;
+
+/**
+ * Receives events about the termination of transactions handled by a
+ * {@link FileResourceManager}. Together with a
+ * {@link org.apache.commons.transaction.locking.LockListener} this allows to
+ * trace lock and transaction latencies side by side. <br>
+ * <br>
+ * Implementations are called synchronously by the thread terminating the
+ * transaction and should thus return quickly.
+ *
+ * @version $Id$
+ * @see FileResourceManager#setTransactionListener(TransactionListener)
+ * @since 1.3
+ */
+public interface TransactionListener {
+
+    /**
+     * Called after a transaction has been prepared.
+     *
+     * @param txId the prepared transaction
+     * @param prepareStatus the result of the preparation as returned by
+     *            {@link ResourceManager#prepareTransaction(Object)}
+     * @param durationMSecs time in milliseconds the preparation took
+     */
+    public void transactionPrepared(Object txId, int prepareStatus, long durationMSecs);
+
+    /**
+     * Called after a transaction has been committed.
+     *
+     * @param txId the committed transaction
+     * @param durationMSecs time in milliseconds the commit took
+     */
+    public void transactionCommitted(Object txId, long durationMSecs);
+
+    /**
+     * Called after a transaction has been rolled back.
+     *
+     * @param txId the rolled back transaction
+     * @param durationMSecs time in milliseconds the roll back took
+     */
+    public void transactionRolledBack(Object txId, long durationMSecs);
+}
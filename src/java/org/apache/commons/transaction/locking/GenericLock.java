@@ -131,6 +131,11 @@ public class GenericLock implements MultiLevelLock2 {
     private int maxLockLevel;
     protected LoggerFacade logger;
     protected int waiters = 0;
+    // number of owners holding the maximum lock level; only changed while holding the monitor
+    // of this lock, but read unsynchronized by optimistic readers
+    protected volatile int exclusiveOwners = 0;
+    // incremented whenever the maximum lock level is granted, used to validate optimistic reads
+    protected volatile long exclusiveVersion = 1;
     
     /**
      * Creates a new lock.
@@ -338,7 +343,11 @@ public class GenericLock implements MultiLevelLock2 {
      * @see org.apache.commons.transaction.locking.MultiLevelLock#release(Object)
      */
     public synchronized boolean release(Object ownerId) {
-        if (owners.remove(ownerId) != null) {
+        LockOwner owner = (LockOwner) owners.remove(ownerId);
+        if (owner != null) {
+            if (isExclusiveOwner(owner)) {
+                exclusiveOwners--;
+            }
             if (logger.isFinerEnabled()) {
 	            logger.logFiner(
 	                ownerId.toString()
@@ -365,6 +374,37 @@ public class GenericLock implements MultiLevelLock2 {
         }
     }
 
+    /**
+     * Gets a stamp for an optimistic read of the resource associated to this
+     * lock. No owner is registered, so the stamp does not block anyone. When
+     * the maximum lock level is currently held by any owner <code>0</code> is
+     * returned meaning an optimistic read is not possible.
+     * 
+     * @return a stamp to be passed to {@link #validate(long)} or
+     *         <code>0</code> if the maximum lock level currently is held
+     * @see #validate(long)
+     * @since 1.3
+     */
+    public long tryOptimisticRead() {
+        // read version before checking for owners as granting the maximum level first
+        // registers the owner and only then increments the version
+        long stamp = exclusiveVersion;
+        return (exclusiveOwners == 0 ? stamp : 0);
+    }
+
+    /**
+     * Checks if the maximum lock level has been granted to anyone since the
+     * specified stamp has been obtained by {@link #tryOptimisticRead()}.
+     * 
+     * @param stamp the stamp obtained by {@link #tryOptimisticRead()}
+     * @return <code>true</code> if nobody held the maximum lock level in the
+     *         meantime, <code>false</code> otherwise
+     * @since 1.3
+     */
+    public boolean validate(long stamp) {
+        return (stamp != 0 && exclusiveOwners == 0 && stamp == exclusiveVersion);
+    }
+
     /**
      * Gets the resource assotiated to this lock. 
      * 
@@ -410,9 +450,12 @@ public class GenericLock implements MultiLevelLock2 {
 
         if (waiters != 0) {
             buf.append(waiters).append(" waiting:\n");
-            for (Iterator it = waitingOwners.iterator(); it.hasNext();) {
-                LockOwner owner = (LockOwner) it.next();
-                buf.append("- ").append(owner.toString()).append("\n");
+            // waiters register while not holding this lock
+            synchronized (waitingOwners) {
+                for (Iterator it = waitingOwners.iterator(); it.hasNext();) {
+                    LockOwner owner = (LockOwner) it.next();
+                    buf.append("- ").append(owner.toString()).append("\n");
+                }
             }
         }
         
@@ -473,7 +516,26 @@ public class GenericLock implements MultiLevelLock2 {
 	                    + System.currentTimeMillis());
             }
         }
-        owners.put(ownerId, new LockOwner(ownerId, targetLockLevel, compatibility, intention));
+        LockOwner owner = new LockOwner(ownerId, targetLockLevel, compatibility, intention);
+        LockOwner oldOwner = (LockOwner) owners.put(ownerId, owner);
+        // an intention temporarily replaces the real lock which will be restored after waiting,
+        // so it must not change the exclusive count
+        if (!intention) {
+            boolean wasExclusive = (oldOwner != null && isExclusiveOwner(oldOwner));
+            boolean isExclusive = isExclusiveOwner(owner);
+            if (isExclusive && !wasExclusive) {
+                // order matters for tryOptimisticRead: first register, then invalidate stamps
+                exclusiveOwners++;
+                exclusiveVersion++;
+            } else if (!isExclusive && wasExclusive) {
+                exclusiveOwners--;
+            }
+        }
+    }
+
+    protected boolean isExclusiveOwner(LockOwner owner) {
+        // intention locks are no real locks and thus do not count
+        return (owner.lockLevel == getLevelMaxLock() && !owner.intention);
     }
 
     protected boolean tryLock(Object ownerId, int targetLockLevel, int compatibility,
@@ -33,6 +33,8 @@ import org.apache.commons.transaction.util.LoggerFacade;
  * <li>deadlock detection, which is configurable to come into effect after an initial short waiting
  * lock request; this is useful as it is somewhat expensive
  * <li>global transaction timeouts that actively revoke granted rights from transactions
+ * <li>a per owner cache of granted lock levels that lets reentrant requests for a level already
+ * held return without touching any shared state
  * </ul>
  * 
  * @version $Id$
@@ -57,6 +59,13 @@ public class GenericLockManager implements LockManager, LockManager2 {
     protected LoggerFacade logger;
     protected long globalTimeoutMSecs;
     protected long checkThreshhold;
+    protected LockListener lockListener = null;
+
+    /** Maps ownerId to the {@link OwnerCache} of the thread that last locked for this owner. */
+    protected Map ownerCaches = Collections.synchronizedMap(new HashMap());
+
+    /** Holds the {@link OwnerCache} last used by the current thread. */
+    protected ThreadLocal threadOwnerCache = new ThreadLocal();
     
     /**
      * Creates a new generic lock manager.
@@ -98,6 +107,28 @@ public class GenericLockManager implements LockManager, LockManager2 {
         this(maxLockLevel, logger, DEFAULT_TIMEOUT);
     }
 
+    /**
+     * Sets a listener that will be informed about lock waits, grants, timeouts
+     * and deadlocks.
+     * 
+     * @param lockListener
+     *            the listener or <code>null</code> to switch off all events
+     * @since 1.3
+     */
+    public void setLockListener(LockListener lockListener) {
+        this.lockListener = lockListener;
+    }
+
+    /**
+     * Gets the listener informed about lock requests.
+     * 
+     * @return the listener or <code>null</code> if there is none
+     * @since 1.3
+     */
+    public LockListener getLockListener() {
+        return lockListener;
+    }
+
     /**
      * @see LockManager2#startGlobalTimeout(Object, long)
      * @since 1.1
@@ -106,6 +137,10 @@ public class GenericLockManager implements LockManager, LockManager2 {
         long now = System.currentTimeMillis();
         long timeout = now + timeoutMSecs;
         effectiveGlobalTimeouts.put(ownerId, new Long(timeout));
+        OwnerCache cache = (OwnerCache) ownerCaches.get(ownerId);
+        if (cache != null) {
+            cache.deadline = timeout;
+        }
     }
     
     /**
@@ -113,15 +148,21 @@ public class GenericLockManager implements LockManager, LockManager2 {
      * @since 1.1
      */
     public boolean tryLock(Object ownerId, Object resourceId, int targetLockLevel, boolean reentrant) {
+        int compatibility = reentrant ? GenericLock.COMPATIBILITY_REENTRANT
+                : GenericLock.COMPATIBILITY_NONE;
+        if (isCachedLock(ownerId, resourceId, targetLockLevel, compatibility)) {
+            return true;
+        }
         timeoutCheck(ownerId);
 
         GenericLock lock = (GenericLock) atomicGetOrCreateLock(resourceId);
-        boolean acquired = lock.tryLock(ownerId, targetLockLevel,
-                reentrant ? GenericLock.COMPATIBILITY_REENTRANT : GenericLock.COMPATIBILITY_NONE,
-                false);
+        boolean acquired = lock.tryLock(ownerId, targetLockLevel, compatibility, false);
         
         if (acquired) {
             addOwner(ownerId, lock);
+            if (reentrant) {
+                cacheLock(ownerId, lock, resourceId, targetLockLevel);
+            }
         }
         return acquired;
     }
@@ -183,18 +224,28 @@ public class GenericLockManager implements LockManager, LockManager2 {
      */
     public void lock(Object ownerId, Object resourceId, int targetLockLevel, int compatibility,
             boolean preferred, long timeoutMSecs) throws LockException {
+        if (isCachedLock(ownerId, resourceId, targetLockLevel, compatibility)) {
+            return;
+        }
         timeoutCheck(ownerId);
         GenericLock lock = (GenericLock) atomicGetOrCreateLock(resourceId);
         doLock(lock, ownerId, resourceId, targetLockLevel, compatibility, preferred, timeoutMSecs);
+        if (isReentrant(compatibility)) {
+            cacheLock(ownerId, lock, resourceId, targetLockLevel);
+        }
     }
 
     protected void doLock(GenericLock lock, Object ownerId, Object resourceId, int targetLockLevel,
                           int compatibility, boolean preferred, long timeoutMSecs)
     {
         long now = System.currentTimeMillis();
+        long started = now;
         long waitEnd = now + timeoutMSecs;
 
         timeoutCheck(ownerId);
+
+        LockListener listener = lockListener;
+        int heldLockLevel = (listener != null ? lock.getLockLevel(ownerId) : 0);
         
         GenericLock.LockOwner lockWaiter = new GenericLock.LockOwner(ownerId, targetLockLevel,
                 compatibility, preferred);
@@ -219,6 +270,10 @@ public class GenericLockManager implements LockManager, LockManager2 {
             }
             if (acquired) {
                 addOwner(ownerId, lock);
+                if (listener != null) {
+                    listener.lockGranted(ownerId, resourceId, targetLockLevel, heldLockLevel,
+                            System.currentTimeMillis() - started);
+                }
                 return;
             }
         } catch (InterruptedException e) {
@@ -226,9 +281,16 @@ public class GenericLockManager implements LockManager, LockManager2 {
         }
         try {
             lock.registerWaiter(lockWaiter);
+            if (listener != null) {
+                listener.lockWaiting(ownerId, resourceId, targetLockLevel, heldLockLevel);
+            }
             
             boolean deadlock = wouldDeadlock(ownerId, new HashSet());
             if (deadlock) {
+                if (listener != null) {
+                    listener.deadlockDetected(ownerId, resourceId, targetLockLevel,
+                            heldLockLevel, System.currentTimeMillis() - started);
+                }
                 throw new LockException("Lock would cause deadlock",
                         LockException.CODE_DEADLOCK_VICTIM, resourceId);
             }
@@ -262,10 +324,18 @@ public class GenericLockManager implements LockManager, LockManager2 {
                 now = System.currentTimeMillis();
             }
             if (!acquired) {
+                if (listener != null) {
+                    listener.lockTimedOut(ownerId, resourceId, targetLockLevel, heldLockLevel,
+                            now - started);
+                }
                 throw new LockException("Lock wait timed out", LockException.CODE_TIMED_OUT,
                         resourceId);
             } else {
                 addOwner(ownerId, lock);
+                if (listener != null) {
+                    listener.lockGranted(ownerId, resourceId, targetLockLevel, heldLockLevel,
+                            now - started);
+                }
             }
         } catch (InterruptedException e) {
             throw new LockException("Interrupted", LockException.CODE_INTERRUPTED, resourceId);
@@ -296,6 +366,16 @@ public class GenericLockManager implements LockManager, LockManager2 {
         timeoutCheck(ownerId);
         boolean released = false;
 
+        OwnerCache cache = (OwnerCache) ownerCaches.get(ownerId);
+        if (cache != null) {
+            if (cache == threadOwnerCache.get()) {
+                cache.levels.remove(resourceId);
+            } else {
+                // the cache belongs to another thread we must not touch
+                cache.valid = false;
+            }
+        }
+
         GenericLock lock = (GenericLock) getLock(resourceId);
         if (lock != null) {
             released = lock.release(ownerId);
@@ -316,6 +396,7 @@ public class GenericLockManager implements LockManager, LockManager2 {
     }
 
     protected void releaseAllNoTimeOutReset(Object ownerId) {
+        invalidateOwnerCache(ownerId);
         Set locks = (Set) globalOwners.get(ownerId);
         if (locks != null) {
             Collection locksCopy;
@@ -530,12 +611,126 @@ public class GenericLockManager implements LockManager, LockManager2 {
         }
     }
 
+    protected boolean isReentrant(int compatibility) {
+        return compatibility == GenericLock.COMPATIBILITY_REENTRANT
+                || compatibility == GenericLock.COMPATIBILITY_REENTRANT_AND_SUPPORT;
+    }
+
+    /**
+     * Checks if the current thread has cached that the owner already holds at
+     * least the requested lock level on the resource. This only accesses
+     * state local to the current thread.
+     */
+    protected boolean isCachedLock(Object ownerId, Object resourceId, int targetLockLevel,
+            int compatibility) {
+        if (!isReentrant(compatibility)) {
+            return false;
+        }
+        OwnerCache cache = (OwnerCache) threadOwnerCache.get();
+        if (cache == null) {
+            return false;
+        }
+        if (!cache.valid) {
+            // do not keep it just because this thread used it last
+            threadOwnerCache.set(null);
+            return false;
+        }
+        if (!cache.ownerId.equals(ownerId)) {
+            return false;
+        }
+        // a global time out must be handled by the usual path
+        long deadline = cache.deadline;
+        if (deadline != Long.MAX_VALUE && deadline < System.currentTimeMillis()) {
+            return false;
+        }
+        Integer level = (Integer) cache.levels.get(resourceId);
+        return level != null && level.intValue() >= targetLockLevel;
+    }
+
+    /**
+     * Gets the cache of the current thread for the owner, replacing any
+     * previous cache of the thread or of the owner.
+     */
+    protected OwnerCache getOwnerCache(Object ownerId) {
+        OwnerCache cache = (OwnerCache) threadOwnerCache.get();
+        if (cache != null && cache.valid && cache.ownerId.equals(ownerId)) {
+            return cache;
+        }
+        cache = new OwnerCache(ownerId);
+        OwnerCache previous = (OwnerCache) ownerCaches.put(ownerId, cache);
+        if (previous != null) {
+            // only one thread at a time may cache for an owner
+            previous.valid = false;
+        }
+        // read after registration so a concurrent startGlobalTimeout can not get lost
+        Long timeout = (Long) effectiveGlobalTimeouts.get(ownerId);
+        if (timeout != null) {
+            cache.deadline = timeout.longValue();
+        }
+        threadOwnerCache.set(cache);
+        return cache;
+    }
+
+    /**
+     * Remembers in the cache of the current thread that the owner has been
+     * granted a lock level. The cache is only created after the lock has
+     * been acquired, so failed requests do not leave one behind.
+     */
+    protected void cacheLock(Object ownerId, GenericLock lock, Object resourceId, int lockLevel) {
+        OwnerCache cache = getOwnerCache(ownerId);
+        // a release before the cache has been registered could not invalidate it
+        if (lock.getLockLevel(ownerId) < lockLevel) {
+            removeOwnerWithoutLocks(ownerId);
+            return;
+        }
+        if (cache.valid) {
+            Integer level = (Integer) cache.levels.get(resourceId);
+            if (level == null || level.intValue() < lockLevel) {
+                cache.levels.put(resourceId, new Integer(lockLevel));
+            }
+        }
+    }
+
+    protected void invalidateOwnerCache(Object ownerId) {
+        OwnerCache cache = (OwnerCache) ownerCaches.remove(ownerId);
+        if (cache != null) {
+            cache.valid = false;
+            // caches of other threads are dropped by them upon their next lock request
+            if (threadOwnerCache.get() == cache) {
+                threadOwnerCache.set(null);
+            }
+        }
+    }
+
     protected void removeOwnerWithoutLocks(Object ownerId) {
+        boolean noLocks;
         synchronized (globalOwners) {
             Set locks = (Set) globalOwners.get(ownerId);
-            if (locks == null || locks.isEmpty()) {
+            noLocks = (locks == null || locks.isEmpty());
+            if (noLocks) {
                 globalOwners.remove(ownerId);
             }
         }
+        if (noLocks) {
+            invalidateOwnerCache(ownerId);
+        }
+    }
+
+    /**
+     * Lock levels granted to an owner as seen by a single thread. Only that
+     * thread reads or modifies the levels, other threads may only invalidate
+     * the cache as a whole.
+     */
+    protected static class OwnerCache {
+        protected final Object ownerId;
+        /** Maps resourceId to the lowest level known to be held. */
+        protected final Map levels = new HashMap();
+        protected volatile boolean valid = true;
+        /** Time the owner globally times out. */
+        protected volatile long deadline = Long.MAX_VALUE;
+
+        protected OwnerCache(Object ownerId) {
+            this.ownerId = ownerId;
+        }
     }
 }
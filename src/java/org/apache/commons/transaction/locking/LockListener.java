@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.locking;
+
+/**
+ * Receives events about lock requests handled by a {@link GenericLockManager}.
+ * This allows to trace lock waits and their outcome, e.g. by forwarding them to
+ * a profiler or monitoring system. <br>
+ * <br>
+ * Implementations are called synchronously by the thread requesting the lock
+ * and should thus return quickly. When no listener is set, no events are
+ * created at all.
+ *
+ * @version $Id$
+ * @see GenericLockManager#setLockListener(LockListener)
+ * @since 1.3
+ */
+public interface LockListener {
+
+    /**
+     * Called when a lock request could not be granted within the check
+     * threshold of the lock manager and the owner starts waiting.
+     *
+     * @param ownerId the owner requesting the lock
+     * @param resourceId the resource to be locked
+     * @param targetLockLevel the requested lock level
+     * @param heldLockLevel the lock level the owner held before the request
+     */
+    public void lockWaiting(Object ownerId, Object resourceId, int targetLockLevel,
+            int heldLockLevel);
+
+    /**
+     * Called when a lock has been granted.
+     *
+     * @param ownerId the owner requesting the lock
+     * @param resourceId the resource to be locked
+     * @param targetLockLevel the requested lock level
+     * @param heldLockLevel the lock level the owner held before the request
+     * @param durationMSecs time in milliseconds it took to grant the lock
+     */
+    public void lockGranted(Object ownerId, Object resourceId, int targetLockLevel,
+            int heldLockLevel, long durationMSecs);
+
+    /**
+     * Called when waiting for a lock timed out.
+     *
+     * @param ownerId the owner requesting the lock
+     * @param resourceId the resource to be locked
+     * @param targetLockLevel the requested lock level
+     * @param heldLockLevel the lock level the owner held before the request
+     * @param durationMSecs time in milliseconds waited before giving up
+     */
+    public void lockTimedOut(Object ownerId, Object resourceId, int targetLockLevel,
+            int heldLockLevel, long durationMSecs);
+
+    /**
+     * Called when the owner has been chosen as a deadlock victim.
+     *
+     * @param ownerId the owner requesting the lock
+     * @param resourceId the resource to be locked
+     * @param targetLockLevel the requested lock level
+     * @param heldLockLevel the lock level the owner held before the request
+     * @param durationMSecs time in milliseconds waited before the deadlock has been detected
+     */
+    public void deadlockDetected(Object ownerId, Object resourceId, int targetLockLevel,
+            int heldLockLevel, long durationMSecs);
+}
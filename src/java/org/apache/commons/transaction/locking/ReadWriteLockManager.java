@@ -181,6 +181,54 @@ public class ReadWriteLockManager extends GenericLockManager {
                 true, globalTimeoutMSecs);
     }
 
+    /**
+     * Tries an optimistic read on a resource. <br>
+     * <br>
+     * Contrary to {@link #readLock(Object, Object)} no owner is registered and
+     * nothing needs to be released. Instead, after having read the resource
+     * the caller has to check with {@link #validate(Object, long)} if a writer
+     * intervened. Only if this fails a real read lock needs to be acquired:
+     * 
+     * <pre>
+     * long stamp = manager.tryOptimisticRead(resourceId);
+     * // read the resource
+     * if (!manager.validate(resourceId, stamp)) {
+     *     manager.readLock(ownerId, resourceId);
+     *     // read the resource again
+     * }
+     * </pre>
+     * 
+     * This method does not block, but immediatly returns.
+     * 
+     * @param resourceId
+     *            the resource to read
+     * @return a stamp to be validated after reading or <code>0</code> if
+     *         the resource currently is write locked
+     * @since 1.3
+     */
+    public long tryOptimisticRead(Object resourceId) {
+        GenericLock lock = (GenericLock) atomicGetOrCreateLock(resourceId);
+        return lock.tryOptimisticRead();
+    }
+
+    /**
+     * Checks if there has been no write lock on a resource since a stamp has
+     * been obtained by {@link #tryOptimisticRead(Object)}.
+     * 
+     * @param resourceId
+     *            the resource that has been read
+     * @param stamp
+     *            the stamp as returned by {@link #tryOptimisticRead(Object)}
+     * @return <code>true</code> if the optimistic read is valid,
+     *         <code>false</code> if a writer intervened and the read needs to
+     *         be repeated holding a real read lock
+     * @since 1.3
+     */
+    public boolean validate(Object resourceId, long stamp) {
+        GenericLock lock = (GenericLock) getLock(resourceId);
+        return (lock != null && lock.validate(stamp));
+    }
+
     protected GenericLock createLock(Object resourceId) {
         synchronized (globalLocks) {
             GenericLock lock = new ReadWriteLock(resourceId, logger);
@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the names of the files and directories in a directory. With
+ * Java 7 and later the directory is read while iterating, so even directories
+ * with a huge number of entries do not need to fit into memory. Earlier Java
+ * versions fall back to {@link File#list()}. The order of the names is
+ * unspecified. The iterator should be closed if it is not exhausted.
+ * 
+ * @version $Id$
+ * @since 1.3
+ */
+public class DirectoryIterator implements Iterator {
+
+    // Java 7 streams directory entries, earlier versions only have File.list 
+    private static Method TO_PATH = null;
+    private static Method NEW_DIRECTORY_STREAM = null;
+    private static Method ITERATOR = null;
+    private static Method GET_FILE_NAME = null;
+    private static Method CLOSE = null;
+
+    static {
+        try {
+            Class pathClass = Class.forName("java.nio.file.Path");
+            NEW_DIRECTORY_STREAM = Class.forName("java.nio.file.Files").getMethod(
+                    "newDirectoryStream", new Class[] { pathClass });
+            ITERATOR = Class.forName("java.lang.Iterable").getMethod("iterator", new Class[0]);
+            GET_FILE_NAME = pathClass.getMethod("getFileName", new Class[0]);
+            CLOSE = Class.forName("java.io.Closeable").getMethod("close", new Class[0]);
+            TO_PATH = File.class.getMethod("toPath", new Class[0]);
+        } catch (Exception e) {
+            // not available, File.list will be used
+            NEW_DIRECTORY_STREAM = null;
+        }
+    }
+
+    protected Object stream = null;
+
+    protected Iterator entries;
+
+    protected boolean closed = false;
+
+    /**
+     * Opens a directory. If it does not exist or is no directory, there are no
+     * names to iterate over.
+     * 
+     * @param dir the directory to read
+     * @throws IOException if the directory can not be read
+     */
+    public DirectoryIterator(File dir) throws IOException {
+        if (!dir.isDirectory()) {
+            entries = null;
+        } else if (NEW_DIRECTORY_STREAM != null) {
+            try {
+                stream = NEW_DIRECTORY_STREAM.invoke(null, new Object[] { TO_PATH.invoke(dir,
+                        new Object[0]) });
+                entries = (Iterator) ITERATOR.invoke(stream, new Object[0]);
+            } catch (InvocationTargetException e) {
+                close();
+                Throwable cause = e.getTargetException();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException("Could not read directory " + dir + ": " + cause);
+            } catch (IllegalAccessException e) {
+                close();
+                throw new IOException("Could not read directory " + dir + ": " + e);
+            }
+        } else {
+            String[] names = dir.list();
+            if (names == null) {
+                throw new IOException("Could not read directory " + dir);
+            }
+            entries = new ArrayIterator(names);
+        }
+    }
+
+    public boolean hasNext() {
+        if (closed || entries == null) {
+            return false;
+        }
+        if (!entries.hasNext()) {
+            // release the directory as early as possible
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    public Object next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Object entry = entries.next();
+        if (stream == null) {
+            return entry;
+        }
+        try {
+            return GET_FILE_NAME.invoke(entry, new Object[0]).toString();
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not get name of " + entry + ": " + e);
+        }
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Releases the directory. Further calls to {@link #hasNext()} return
+     * <code>false</code>. Closing an iterator more than once has no effect.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (stream != null) {
+            try {
+                CLOSE.invoke(stream, new Object[0]);
+            } catch (Exception e) {
+                // nothing has been written, so there is nothing to lose
+            }
+        }
+    }
+
+    protected static class ArrayIterator implements Iterator {
+
+        protected final Object[] array;
+
+        protected int index = 0;
+
+        public ArrayIterator(Object[] array) {
+            this.array = array;
+        }
+
+        public boolean hasNext() {
+            return index < array.length;
+        }
+
+        public Object next() {
+            if (index >= array.length) {
+                throw new NoSuchElementException();
+            }
+            return array[index++];
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -22,6 +22,11 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
 
 /**
  * Helper methods for file manipulation. 
@@ -34,6 +39,65 @@ public final class FileHelper {
     private static int BUF_SIZE = 50000;
     private static byte[] BUF = new byte[BUF_SIZE];
 
+    // some platforms fail to transfer larger chunks between channels at once
+    private static long TRANSFER_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    // Java 7 converts files to the paths needed by the methods below
+    private static Method TO_PATH = null;
+
+    // Java 7 allows to open directories as channels, earlier versions can not sync them 
+    private static Method OPEN_CHANNEL = null;
+    private static Object OPEN_OPTIONS = null;
+
+    // Java 7 can move files atomically or fail, earlier versions only have File.renameTo 
+    private static Method MOVE = null;
+    private static Object MOVE_OPTIONS = null;
+    private static Class ATOMIC_MOVE_NOT_SUPPORTED = null;
+
+    // Java 7 tells which file system a file resides on
+    private static Method GET_FILE_STORE = null;
+
+    static {
+        try {
+            TO_PATH = File.class.getMethod("toPath", new Class[0]);
+        } catch (Exception e) {
+            // not available, none of the features below can be used
+        }
+        try {
+            Class pathClass = Class.forName("java.nio.file.Path");
+            Class optionClass = Class.forName("java.nio.file.OpenOption");
+            Object read = Class.forName("java.nio.file.StandardOpenOption").getField("READ").get(null);
+            Object options = Array.newInstance(optionClass, 1);
+            Array.set(options, 0, read);
+            OPEN_CHANNEL = FileChannel.class.getMethod("open", new Class[] { pathClass,
+                    options.getClass() });
+            OPEN_OPTIONS = options;
+        } catch (Exception e) {
+            // not available, directories will not be synced
+        }
+        try {
+            Class pathClass = Class.forName("java.nio.file.Path");
+            Class optionClass = Class.forName("java.nio.file.CopyOption");
+            Class standardOptions = Class.forName("java.nio.file.StandardCopyOption");
+            Object options = Array.newInstance(optionClass, 2);
+            Array.set(options, 0, standardOptions.getField("ATOMIC_MOVE").get(null));
+            Array.set(options, 1, standardOptions.getField("REPLACE_EXISTING").get(null));
+            ATOMIC_MOVE_NOT_SUPPORTED = Class.forName("java.nio.file.AtomicMoveNotSupportedException");
+            MOVE = Class.forName("java.nio.file.Files").getMethod("move", new Class[] { pathClass,
+                    pathClass, options.getClass() });
+            MOVE_OPTIONS = options;
+        } catch (Exception e) {
+            // not available, File.renameTo will be used
+        }
+        try {
+            Class pathClass = Class.forName("java.nio.file.Path");
+            GET_FILE_STORE = Class.forName("java.nio.file.Files").getMethod("getFileStore",
+                    new Class[] { pathClass });
+        } catch (Exception e) {
+            // not available, file systems can not be compared in advance
+        }
+    }
+
     /**
      * Deletes a file specified by a path.
      *  
@@ -92,6 +156,188 @@ public final class FileHelper {
         toRemove.delete();
     }
 
+    /**
+     * Forces content and meta data of a file to disk.
+     * 
+     * @param file the file to sync
+     * @throws IOException if the file can not be synced
+     * @since 1.3
+     */
+    public static void sync(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Forces a directory, i.e. the names of the files it contains, to disk.
+     * This is needed to make creations, deletions and renames of files
+     * durable. As older Java versions and some platforms can not open
+     * directories, this is silently skipped there.
+     * 
+     * @param dir the directory to sync
+     * @return <code>true</code> if the directory has been synced,
+     *         <code>false</code> if this is not supported
+     * @throws IOException if the opened directory can not be forced to disk
+     * @since 1.3
+     */
+    public static boolean syncDirectory(File dir) throws IOException {
+        if (OPEN_CHANNEL == null) {
+            return false;
+        }
+        FileChannel channel;
+        try {
+            Object path = TO_PATH.invoke(dir, new Object[0]);
+            channel = (FileChannel) OPEN_CHANNEL.invoke(null, new Object[] { path, OPEN_OPTIONS });
+        } catch (Exception e) {
+            // e.g. on Windows directories can not be opened
+            return false;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+        return true;
+    }
+
+    /**
+     * Forces a directory and all files and directories it contains to disk.
+     * If the specified file is no directory only the file is synced.
+     * 
+     * @param toSync directory or file to sync
+     * @throws IOException if a file can not be synced
+     * @since 1.3
+     */
+    public static void syncRec(File toSync) throws IOException {
+        if (toSync.isDirectory()) {
+            File[] files = toSync.listFiles();
+            for (int i = 0; i < files.length; i++) {
+                syncRec(files[i]);
+            }
+            syncDirectory(toSync);
+        } else if (toSync.exists()) {
+            sync(toSync);
+        }
+    }
+
+    /**
+     * Atomically renames a file or directory, replacing an existing target
+     * file. Other than {@link File#renameTo(File)} this never results in a
+     * copy and either completely succeeds or leaves everything untouched,
+     * even on a crash. With Java versions before 7 this falls back to
+     * {@link File#renameTo(File)}, which is atomic on POSIX systems. Where it
+     * can not replace existing files, the target is deleted first, which is
+     * not atomic.
+     * 
+     * @param source file or directory to rename
+     * @param target new name
+     * @return <code>true</code> if the file has been renamed,
+     *         <code>false</code> if this is not possible atomically, e.g.
+     *         because source and target reside on different file systems
+     * @throws IOException if renaming failed for any other reason
+     * @since 1.3
+     */
+    public static boolean atomicMove(File source, File target) throws IOException {
+        if (MOVE == null) {
+            if (source.renameTo(target)) {
+                return true;
+            }
+            // some platforms do not replace existing files
+            return source.exists() && target.isFile() && target.delete() && source.renameTo(target);
+        }
+        try {
+            Object sourcePath = TO_PATH.invoke(source, new Object[0]);
+            Object targetPath = TO_PATH.invoke(target, new Object[0]);
+            MOVE.invoke(null, new Object[] { sourcePath, targetPath, MOVE_OPTIONS });
+            return true;
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getTargetException();
+            if (ATOMIC_MOVE_NOT_SUPPORTED.isInstance(cause)) {
+                return false;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Could not move " + source + " to " + target + ": " + cause);
+        } catch (IllegalAccessException e) {
+            return source.renameTo(target);
+        }
+    }
+
+    /**
+     * Checks if files can be atomically renamed from one directory to another,
+     * i.e. if both reside on the same file system. This compares their file
+     * stores and never creates any file in either directory. With Java
+     * versions before 7 this can not be told in advance and is assumed, so
+     * a failing move is only detected when it is done. Both directories are
+     * created if necessary.
+     * 
+     * @param sourceDir directory to move from
+     * @param targetDir directory to move to
+     * @return <code>true</code> if files can be atomically moved between both
+     *         directories
+     * @throws IOException if the file systems of the directories can not be determined
+     * @since 1.3
+     */
+    public static boolean isAtomicMovePossible(File sourceDir, File targetDir) throws IOException {
+        sourceDir.mkdirs();
+        targetDir.mkdirs();
+        if (GET_FILE_STORE == null) {
+            return true;
+        }
+        try {
+            Object sourceStore = GET_FILE_STORE.invoke(null, new Object[] { TO_PATH.invoke(
+                    sourceDir, new Object[0]) });
+            Object targetStore = GET_FILE_STORE.invoke(null, new Object[] { TO_PATH.invoke(
+                    targetDir, new Object[0]) });
+            return sourceStore.equals(targetStore);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getTargetException();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Could not determine file systems of " + sourceDir + " and "
+                    + targetDir + ": " + cause);
+        } catch (IllegalAccessException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Moves a single file to another, replacing an existing one. The file is
+     * renamed if possible and copied otherwise. Missing directories of the
+     * target are created.
+     * 
+     * @param source file to move from
+     * @param target file to move to
+     * @return <code>true</code> if the file has been renamed,
+     *         <code>false</code> if it has been copied
+     * @throws IOException if an I/O error occurs (may result in partially done work)
+     * @since 1.3
+     */
+    public static boolean move(File source, File target) throws IOException {
+        File dir = target.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create target directory: " + dir);
+        }
+        if (target.exists()) {
+            target.delete();
+        }
+        if (source.renameTo(target)) {
+            return true;
+        }
+        copy(source, target);
+        source.delete();
+        return false;
+    }
+
     /**
      * Moves one directory or file to another. Existing files will be replaced.
      * 
@@ -100,11 +346,22 @@ public final class FileHelper {
      * @throws IOException if an I/O error occurs (may result in partially done work)  
      */
     public static void moveRec(File source, File target) throws IOException {
-        byte[] sharedBuffer = new byte[BUF_SIZE];
-        moveRec(source, target, sharedBuffer);
+        moveRec(source, target, false);
     }
 
-    static void moveRec(File source, File target, byte[] sharedBuffer) throws IOException {
+    /**
+     * Moves one directory or file to another. Existing files will be replaced.
+     * Files that can not be renamed are copied; such copies can optionally be
+     * forced to disk, as unlike renames they are not made durable by syncing
+     * their directories.
+     * 
+     * @param source file to move from
+     * @param target file to move to
+     * @param syncCopies <code>true</code> to force copied files to disk
+     * @throws IOException if an I/O error occurs (may result in partially done work)
+     * @since 1.3
+     */
+    public static void moveRec(File source, File target, boolean syncCopies) throws IOException {
         if (source.isDirectory()) {
             if (!target.exists()) {
                 target.mkdirs();
@@ -120,7 +377,10 @@ public final class FileHelper {
                             targetFile.delete();
                         }
                         if (!file.renameTo(targetFile)) {
-                            copy(file, targetFile, sharedBuffer);
+                            copy(file, targetFile);
+                            if (syncCopies) {
+                                sync(targetFile);
+                            }
                             file.delete();
                         }
                     } else {
@@ -130,19 +390,74 @@ public final class FileHelper {
                                         + targetFile);
                             }
                         }
-                        moveRec(file, targetFile);
+                        moveRec(file, targetFile, syncCopies);
                     }
                 }
                 source.delete();
             }
         } else {
             if (!target.isDirectory()) {
-                copy(source, target, sharedBuffer);
+                copy(source, target);
+                if (syncCopies) {
+                    sync(target);
+                }
                 source.delete();
             }
         }
     }
 
+    /**
+     * Moves one directory or file to another using atomic renames only.
+     * Existing files will be replaced. Directories not present in the target
+     * are moved as a whole. Other than {@link #moveRec(File, File)} this never
+     * copies any data, but fails when source and target reside on different
+     * file systems.
+     * 
+     * @param source file to move from
+     * @param target file to move to
+     * @throws IOException if a file can not be renamed atomically or any
+     *             other I/O error occurs (may result in partially done work,
+     *             but every single file is either completely moved or not
+     *             at all)
+     * @see #atomicMove(File, File)
+     * @since 1.3
+     */
+    public static void moveRecAtomic(File source, File target) throws IOException {
+        if (!target.exists() && source.exists()) {
+            File dir = target.getParentFile();
+            if (dir != null && !dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Could not create target directory: " + dir);
+            }
+            if (atomicMove(source, target)) {
+                return;
+            }
+            throw new IOException("Could not atomically move " + source + " to " + target);
+        }
+        if (source.isDirectory()) {
+            if (target.isDirectory()) {
+                File[] files = source.listFiles();
+                for (int i = 0; i < files.length; i++) {
+                    File file = files[i];
+                    File targetFile = new File(target, file.getName());
+                    if (file.isFile()) {
+                        // replaces the target in the same step
+                        if (!atomicMove(file, targetFile)) {
+                            throw new IOException("Could not atomically move " + file + " to "
+                                    + targetFile);
+                        }
+                    } else {
+                        moveRecAtomic(file, targetFile);
+                    }
+                }
+                source.delete();
+            }
+        } else {
+            if (!target.isDirectory() && !atomicMove(source, target)) {
+                throw new IOException("Could not atomically move " + source + " to " + target);
+            }
+        }
+    }
+
     /**
      * Copies one directory or file to another. Existing files will be replaced.
      * 
@@ -151,11 +466,6 @@ public final class FileHelper {
      * @throws IOException if an I/O error occurs (may result in partially done work)  
      */
     public static void copyRec(File source, File target) throws IOException {
-        byte[] sharedBuffer = new byte[BUF_SIZE];
-        copyRec(source, target, sharedBuffer);
-    }
-
-    static void copyRec(File source, File target, byte[] sharedBuffer) throws IOException {
         if (source.isDirectory()) {
             if (!target.exists()) {
                 target.mkdirs();
@@ -170,7 +480,7 @@ public final class FileHelper {
                         if (targetFile.exists()) {
                             targetFile.delete();
                         }
-                        copy(file, targetFile, sharedBuffer);
+                        copy(file, targetFile);
                     } else {
                         targetFile.mkdirs();
                         copyRec(file, targetFile);
@@ -188,13 +498,13 @@ public final class FileHelper {
                         throw new IOException("Could not create target file: " + target);
                     }
                 }
-                copy(source, target, sharedBuffer);
+                copy(source, target);
             }
         }
     }
 
     /**
-     * Copies one file to another using {@link #copy(InputStream, OutputStream)}.
+     * Copies one file to another using {@link #copy(FileChannel, FileChannel)}.
      * 
      * @param input
      *            source file
@@ -203,13 +513,15 @@ public final class FileHelper {
      * @return the number of bytes copied
      * @throws IOException
      *             if an I/O error occurs (may result in partially done work)
-     * @see #copy(InputStream, OutputStream)
+     * @see #copy(FileChannel, FileChannel)
      */
     public static long copy(File input, File output) throws IOException {
         FileInputStream in = null;
+        FileOutputStream out = null;
         try {
             in = new FileInputStream(input);
-            return copy(in, output);
+            out = new FileOutputStream(output);
+            return copy(in.getChannel(), out.getChannel());
         } finally {
             if (in != null) {
                 try {
@@ -217,40 +529,61 @@ public final class FileHelper {
                 } catch (IOException e) {
                 }
             }
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
         }
     }
 
     /**
-     * Copies one file to another using the supplied buffer.
+     * Copies one file to another. Files are copied using
+     * {@link #copy(FileChannel, FileChannel)}, so the supplied buffer is no
+     * longer used.
      * 
      * @param input source file
      * @param output destination file
-     * @param copyBuffer buffer used for copying
+     * @param copyBuffer ignored
      * @return the number of bytes copied
      * @throws IOException if an I/O error occurs (may result in partially done work)  
-     * @see #copy(InputStream, OutputStream)
+     * @deprecated files are no longer copied through a buffer, use
+     *             {@link #copy(File, File)} instead
      */
     public static long copy(File input, File output, byte[] copyBuffer) throws IOException {
-        FileInputStream in = null;
-        FileOutputStream out = null;
-        try {
-            in = new FileInputStream(input);
-            out = new FileOutputStream(output);
-            return copy(in, out, copyBuffer);
-        } finally {
-            if (in != null) {
-                try {
-                    in.close();
-                } catch (IOException e) {
-                }
-            }
-            if (out != null) {
-                try {
-                    out.close();
-                } catch (IOException e) {
-                }
+        return copy(input, output);
+    }
+
+    /**
+     * Copies the remaining content of one file channel to another using
+     * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+     * Where the operating system supports it, data is copied directly by the
+     * kernel without passing through the Java heap. Copying starts at the
+     * current positions of both channels, which are advanced by the number
+     * of bytes copied.
+     * 
+     * @param in channel to copy from
+     * @param out channel to copy to
+     * @return the number of bytes copied
+     * @throws IOException if an I/O error occurs (may result in partially done work)
+     * @since 1.3
+     */
+    public static long copy(FileChannel in, FileChannel out) throws IOException {
+        long start = in.position();
+        long position = start;
+        long size = in.size();
+        while (position < size) {
+            long transferred = in.transferTo(position, Math.min(size - position,
+                    TRANSFER_CHUNK_SIZE), out);
+            if (transferred <= 0) {
+                // file has been truncated concurrently
+                break;
             }
+            position += transferred;
         }
+        in.position(position);
+        return position - start;
     }
 
     /**
@@ -313,6 +646,7 @@ public final class FileHelper {
 
     /**
      * Copies an <code>InputStream</code> to an <code>OutputStream</code> using the specified buffer. 
+     * Streams on files are copied using {@link #copy(FileChannel, FileChannel)} instead.
      * 
      * @param in stream to copy from 
      * @param out stream to copy to
@@ -323,6 +657,9 @@ public final class FileHelper {
      * @see #copy(InputStream, OutputStream)
      */
     public static long copy(InputStream in, OutputStream out, byte[] copyBuffer) throws IOException {
+        if (in instanceof FileInputStream && out instanceof FileOutputStream) {
+            return copy(((FileInputStream) in).getChannel(), ((FileOutputStream) out).getChannel());
+        }
         long bytesCopied = 0;
         int read = -1;
 
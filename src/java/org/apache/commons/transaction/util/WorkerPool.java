@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.util;
+
+import java.util.LinkedList;
+
+/**
+ * Fixed number of threads running tasks handed to them one after the other.
+ * Threads are created when the pool is started and end when it is stopped,
+ * so tasks do not pay for starting a thread. Tasks must not wait for other
+ * tasks of the same pool, as they might never get a thread.
+ * 
+ * @version $Id$
+ * @since 1.3
+ */
+public class WorkerPool {
+
+    protected final String name;
+
+    protected final int size;
+
+    protected final LoggerFacade logger;
+
+    protected final LinkedList tasks = new LinkedList();
+
+    protected Thread[] workers = null;
+
+    protected boolean stopping = false;
+
+    /**
+     * Creates a new pool, which has to be started before it runs any task.
+     * 
+     * @param name name of the pool, used to name its threads
+     * @param size number of threads
+     * @param logger logger for failing tasks
+     */
+    public WorkerPool(String name, int size, LoggerFacade logger) {
+        if (size < 1) {
+            throw new IllegalArgumentException("At least one thread is needed");
+        }
+        this.name = name;
+        this.size = size;
+        this.logger = logger;
+    }
+
+    /**
+     * Gets the number of threads of this pool.
+     * 
+     * @return number of threads
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Starts the threads of this pool. They are daemon threads, so they do
+     * not keep the VM from exiting.
+     */
+    public synchronized void start() {
+        if (workers != null) {
+            return;
+        }
+        stopping = false;
+        workers = new Thread[size];
+        for (int i = 0; i < size; i++) {
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, name + " #" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Hands a task to the next free thread.
+     * 
+     * @param task the task to run
+     * @return <code>false</code> if the pool is not running, so the caller
+     *         has to run the task itself
+     */
+    public synchronized boolean execute(Runnable task) {
+        if (workers == null || stopping) {
+            return false;
+        }
+        tasks.addLast(task);
+        notify();
+        return true;
+    }
+
+    /**
+     * Stops all threads after they have run the tasks already handed to
+     * them and waits for them to end.
+     */
+    public void stop() {
+        Thread[] threads;
+        synchronized (this) {
+            threads = workers;
+            if (threads == null) {
+                return;
+            }
+            stopping = true;
+            notifyAll();
+        }
+        boolean interrupted = false;
+        for (int i = 0; i < threads.length; i++) {
+            while (threads[i].isAlive()) {
+                try {
+                    threads[i].join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        synchronized (this) {
+            workers = null;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    protected void work() {
+        while (true) {
+            Runnable task;
+            synchronized (this) {
+                while (tasks.isEmpty() && !stopping) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // only stopping ends a worker
+                    }
+                }
+                if (tasks.isEmpty()) {
+                    return;
+                }
+                task = (Runnable) tasks.removeFirst();
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.logSevere("Task of " + name + " failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.file;
+
+import java.io.OutputStream;
+import java.io.PrintWriter;
+
+import org.apache.commons.transaction.util.LoggerFacade;
+import org.apache.commons.transaction.util.PrintWriterLogger;
+
+/**
+ * Commit throughput of {@link FileResourceManager} for all durability levels,
+ * with and without journal. This is not a unit test, but meant to be started
+ * manually:
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes \
+ *     org.apache.commons.transaction.file.DurabilityBenchmark [dir]
+ * </pre>
+ *
+ * Every transaction writes a small resource and commits. The store and work
+ * directories are created below the given directory, which should be on the
+ * file system to be judged. Measurement time per run can be set using the
+ * system property <code>benchmark.time</code> in milliseconds.
+ *
+ * @version $Id$
+ */
+public class DurabilityBenchmark {
+
+    private static final LoggerFacade sLogger = new PrintWriterLogger(new PrintWriter(System.out),
+            DurabilityBenchmark.class.getName(), false);
+
+    private static final String[] LEVEL_NAMES = new String[] { "none", "flush", "fsync",
+            "group fsync" };
+
+    private static final int[] THREADS = new int[] { 1, 4, 16 };
+
+    private static final long MEASURE_MSECS = Long.getLong("benchmark.time", 2000).longValue();
+
+    public static void main(String[] args) throws Exception {
+        String baseDir = (args.length > 0 ? args[0] : "tmp/benchmark");
+        for (int level = FileResourceManager.DURABILITY_NONE; level <= FileResourceManager.DURABILITY_GROUP_FSYNC; level++) {
+            for (int journal = 0; journal < 2; journal++) {
+                for (int t = 0; t < THREADS.length; t++) {
+                    run(baseDir, level, journal == 1, THREADS[t]);
+                }
+            }
+        }
+    }
+
+    protected static void run(String baseDir, int level, boolean journal, int threads)
+            throws Exception {
+        final FileResourceManager rm = new FileResourceManager(baseDir + "/store", baseDir
+                + "/work", false, sLogger);
+        rm.reset();
+        rm.setDurability(level);
+        rm.setJournalEnabled(journal);
+        rm.setGroupCommit(threads, 5);
+        rm.start();
+
+        final long end = System.currentTimeMillis() + MEASURE_MSECS;
+        final long[] commits = new long[threads];
+        final Throwable[] failure = new Throwable[1];
+        final byte[] content = new byte[1024];
+
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int thread = i;
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (System.currentTimeMillis() < end) {
+                            String txId = rm.generatedUniqueTxId();
+                            rm.startTransaction(txId);
+                            OutputStream out = rm.writeResource(txId, "/res" + thread + "-"
+                                    + (commits[thread] % 100));
+                            out.write(content);
+                            rm.commitTransaction(txId);
+                            commits[thread]++;
+                        }
+                    } catch (Throwable t) {
+                        failure[0] = t;
+                    }
+                }
+            }, "Committer #" + i);
+        }
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < threads; i++) {
+            workers[i].start();
+        }
+        for (int i = 0; i < threads; i++) {
+            workers[i].join();
+        }
+        long duration = System.currentTimeMillis() - start;
+
+        StringBuffer buf = new StringBuffer();
+        buf.append(LEVEL_NAMES[level]).append(journal ? ", journal" : ", transaction.log");
+        buf.append(", ").append(threads).append(" threads: ");
+        if (failure[0] != null) {
+            buf.append("failed with ").append(failure[0]);
+        } else {
+            long total = 0;
+            for (int i = 0; i < threads; i++) {
+                total += commits[i];
+            }
+            buf.append(total * 1000 / Math.max(1, duration)).append(" commits/s");
+            TransactionJournal txJournal = rm.getJournal();
+            if (txJournal != null && txJournal.getSyncCount() > 0) {
+                buf.append(", ").append(txJournal.getSyncCount()).append(" forces");
+                buf.append(", batch size ").append(txJournal.getAverageBatchSize());
+                buf.append(", force time ").append(txJournal.getAverageSyncMSecs()).append(" ms");
+            }
+        }
+        System.out.println(buf.toString());
+        rm.stop(ResourceManager.SHUTDOWN_MODE_NORMAL);
+    }
+}
@@ -24,6 +24,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
 
 import javax.transaction.Status;
 
@@ -33,6 +40,7 @@ import junit.framework.TestSuite;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.commons.transaction.locking.GenericLockManager;
 
 import org.apache.commons.transaction.util.CommonsLoggingLogger;
 import org.apache.commons.transaction.util.FileHelper;
@@ -707,6 +715,1188 @@ public class FileResourceManagerTest extends TestCase {
         }
     }
 
+    public void testLockManager() throws Throwable {
+        sLogger.logInfo("Checking configured lock manager");
+        reset();
+        createInitialFiles();
+
+        GenericLockManager lockManager = new GenericLockManager(4, sLogger);
+        FileResourceManager rm = new FileResourceManager(STORE, WORK, null,
+                new NoOpTransactionIdToPathMapper(), lockManager, sLogger, true);
+        rm.setLockTimeout(100);
+        rm.start();
+        assertSame(lockManager, rm.getLockManager());
+
+        rm.startTransaction("tx1");
+        rm.createResource("tx1", "key1");
+        assertTrue(lockManager.getLevel("tx1", "key1") > 0);
+
+        // a single lock request must not wait longer than the lock timeout
+        rm.startTransaction("tx2");
+        long start = System.currentTimeMillis();
+        try {
+            rm.readResource("tx2", "key1");
+            fail("Read of locked resource must time out");
+        } catch (ResourceManagerException e) {
+            assertEquals(ResourceManagerErrorCodes.ERR_NO_LOCK, e.getStatus());
+        }
+        assertTrue(System.currentTimeMillis() - start < 2000);
+
+        rm.rollbackTransaction("tx2");
+        rm.commitTransaction("tx1");
+        assertEquals(0, lockManager.getLevel("tx1", "key1"));
+        rm.stop(FileResourceManager.SHUTDOWN_MODE_NORMAL);
+    }
+
+    public void testJournalRecovery() throws Throwable {
+        sLogger.logInfo("Checking recovery from journal");
+        reset();
+        createInitialFiles();
+
+        FileResourceManager rm = createFRM();
+        rm.setJournalEnabled(true);
+        rm.start();
+
+        rm.startTransaction("tx1");
+        rm.createResource("tx1", "/olli/Hubert7");
+        rm.deleteResource("tx1", "/olli/Hubert");
+        rm.prepareTransaction("tx1");
+        // crash in the middle of commit
+        rm.getContext("tx1").status = Status.STATUS_COMMITTING;
+        rm.getContext("tx1").saveState();
+
+        rm.startTransaction("tx2");
+        rm.createResource("tx2", "/olli/Hubert8");
+        assertTrue(rm.stop(ResourceManager.SHUTDOWN_MODE_KILL));
+        checkExactlyContains(WORK, new String[] { "tx1", "tx2", ".journal" });
+
+        // a torn record at the end must not disturb recovery
+        FileOutputStream out = new FileOutputStream(WORK + "/.journal", true);
+        out.write(new byte[] { 0, 0, 0, 12, 1, 2 });
+        out.close();
+
+        rm = createFRM();
+        rm.setJournalEnabled(true);
+        rm.start();
+        // tx1 is rolled forward, tx2 is rolled back
+        checkExactlyContains(STORE + "/olli", new String[] { "Hubert6", "Hubert7" });
+        checkExactlyContains(WORK, new String[] { ".journal" });
+
+        rm.startTransaction("tx3");
+        rm.createResource("tx3", "/olli/Hubert9");
+        rm.commitTransaction("tx3");
+        assertTrue(rm.stop(ResourceManager.SHUTDOWN_MODE_NORMAL));
+        checkExactlyContains(STORE + "/olli", new String[] { "Hubert6", "Hubert7", "Hubert9" });
+        checkExactlyContains(WORK, new String[] { ".journal" });
+
+        // all finished transactions have been compacted away
+        TransactionJournal journal = new TransactionJournal(new File(WORK, ".journal"), sLogger);
+        journal.open();
+        assertTrue(journal.getRecords().isEmpty());
+        journal.append(TransactionJournal.RECORD_STATE, "tx4", new byte[] { 1 });
+        journal.close();
+
+        // a crash while a checkpoint replaces the journal leaves the old one behind
+        assertTrue(new File(WORK, ".journal").renameTo(new File(WORK, ".journal.old")));
+        createFiles(new String[] { ".journal.tmp" }, WORK);
+        journal.open();
+        assertNotNull(journal.getRecord("tx4"));
+        journal.close();
+        checkExactlyContains(WORK, new String[] { ".journal" });
+    }
+
+    public void testJournalDisabledAfterCrash() throws Throwable {
+        sLogger.logInfo("Checking recovery from journal after it has been disabled");
+        reset();
+        createInitialFiles();
+
+        FileResourceManager rm = createFRM();
+        rm.setJournalEnabled(true);
+        rm.start();
+
+        rm.startTransaction("tx1");
+        rm.createResource("tx1", "/olli/Hubert7");
+        rm.deleteResource("tx1", "/olli/Hubert");
+        rm.prepareTransaction("tx1");
+        // crash in the middle of commit
+        rm.getContext("tx1").status = Status.STATUS_COMMITTING;
+        rm.getContext("tx1").saveState();
+        assertTrue(rm.stop(ResourceManager.SHUTDOWN_MODE_KILL));
+
+        // the journal still is the only record of tx1
+        rm = createFRM();
+        rm.setJournalEnabled(false);
+        rm.start();
+        assertNotNull(rm.getJournal());
+        checkExactlyContains(STORE + "/olli", new String[] { "Hubert6", "Hubert7" });
+        assertTrue(rm.stop(ResourceManager.SHUTDOWN_MODE_NORMAL));
+
+        // nothing pending any more, so the journal is gone
+        rm = createFRM();
+        rm.setJournalEnabled(false);
+        rm.start();
+        assertNull(rm.getJournal());
+        checkIsEmpty(WORK);
+        assertTrue(rm.stop(ResourceManager.SHUTDOWN_MODE_NORMAL));
+    }
+
+    public void testDurability() throws Throwable {
+        sLogger.logInfo("Checking durability levels");
+
+        for (int level = FileResourceManager.DURABILITY_NONE; level <= FileResourceManager.DURABILITY_GROUP_FSYNC; level++) {
+            for (int journal = 0; journal < 2; journal++) {
+                reset();
+                createInitialFiles();
+
+                FileResourceManager rm = createFRM();
+                rm.setDurability(level);
+                rm.setJournalEnabled(journal == 1);
+                rm.start();
+
+                rm.startTransaction("tx1");
+                rm.createResource("tx1", "/olli/sub/Hubert7");
+                OutputStream out = rm.writeResource("tx1", "/olli/Hubert6");
+                out.write("Durable".getBytes(ENCODING));
+                // stream is still open and must be flushed before anything is forced
+                rm.deleteResource("tx1", "/olli/Hubert");
+                assertEquals(ResourceManager.PREPARE_SUCCESS, rm.prepareTransaction("tx1"));
+                rm.commitTransaction("tx1");
+
+                assertTrue(rm.stop(ResourceManager.SHUTDOWN_MODE_NORMAL));
+                checkExactlyContains(STORE + "/olli", new String[] { "Hubert6", "sub" },
+                        new String[] { "Durable" });
+                checkExactlyContains(STORE + "/olli/sub", new String[] { "Hubert7" });
+            }
+        }
+
+        try {
+            createFRM().setDurability(FileResourceManager.DURABILITY_GROUP_FSYNC + 1);
+            fail("Unknown durability level must not be accepted");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    public void testGroupCommit() throws Throwable {
+        sLogger.logInfo("Checking group commit");
+        reset();
+
+        final FileResourceManager rm = createFRM();
+        rm.setJournalEnabled(true);
+        rm.setDurability(FileResourceManager.DURABILITY_GROUP_FSYNC);
+        rm.setGroupCommit(4, 200);
+        rm.start();
+
+        final int committers = 4;
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[committers];
+        for (int i = 0; i < committers; i++) {
+            final String txId = "tx" + i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        rm.startTransaction(txId);
+                        rm.createResource(txId, "/olli/" + txId);
+                        rm.commitTransaction(txId);
+                    } catch (Throwable t) {
+                        failure[0] = t;
+                    }
+                }
+            }, "Committer " + i);
+            threads[i].start();
+        }
+        for (int i = 0; i < committers; i++) {
+            threads[i].join();
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+
+        TransactionJournal journal = rm.getJournal();
+        assertTrue(journal.getSyncCount() >= 1);
+        assertTrue(journal.getSyncCount() <= committers);
+        assertTrue(journal.getAverageBatchSize() >= 1.0);
+        assertTrue(rm.stop(ResourceManager.SHUTDOWN_MODE_NORMAL));
+        checkExactlyContains(STORE + "/olli", new String[] { "tx0", "tx1", "tx2", "tx3" });
+        checkExactlyContains(WORK, new String[] { ".journal" });
+    }
+
+    public void testAtomicCommit() throws Throwable {
+        sLogger.logInfo("Checking atomic commit");
+        reset();
+        createInitialFiles();
+
+        FileResourceManager rm = createFRM();
+        rm.setAtomicCommit(true);
+        rm.start();
+        assertTrue(FileHelper.isAtomicMovePossible(new File(WORK), new File(STORE)));
+        // checking must not leave anything in the store
+        checkExactlyContains(STORE, new String[] { "olli" });
+
+        rm.startTransaction("tx1");
+        OutputStream out = rm.writeResource("tx1", "/olli/Hubert6");
+        out.write("Replaced".getBytes(ENCODING));
+        out.close();
+        rm.createResource("tx1", "/olli/sub/deeper/Hubert7");
+        rm.deleteResource("tx1", "/olli/Hubert");
+        rm.commitTransaction("tx1");
+
+        assertTrue(rm.stop(ResourceManager.SHUTDOWN_MODE_NORMAL));
+        checkExactlyContains(STORE + "/olli", new String[] { "Hubert6", "sub" },
+                new String[] { "Replaced" });
+        checkExactlyContains(STORE + "/olli/sub/deeper", new String[] { "Hubert7" });
+        checkIsEmpty(WORK);
+    }
+
+    public void testCopyResource() throws Throwable {
+        sLogger.logInfo("Checking resource copy");
+        reset();
+        createInitialFiles();
+
+        StringBuffer buf = new StringBuffer();
+        for (int i = 0; buf.length() < 200000; i++) {
+            buf.append(i).append('\n');
+        }
+        String content = buf.toString();
+
+        FileResourceManager rm = createFRM();
+        rm.start();
+
+        rm.startTransaction("tx1");
+        OutputStream out = rm.writeResource("tx1", "/olli/Hubert6");
+        out.write(content.getBytes(ENCODING));
+        out.close();
+        rm.commitTransaction("tx1");
+
+        rm.startTransaction("tx2");
+        rm.copyResource("tx2", "/olli/Hubert6", "/olli/sub/Copy", false);
+        out = rm.writeResource("tx2", "/olli/Hubert6", true);
+        out.write("Appended".getBytes(ENCODING));
+        out.close();
+        rm.commitTransaction("tx2");
+
+        assertTrue(rm.stop(ResourceManager.SHUTDOWN_MODE_NORMAL));
+        checkExactlyContains(STORE + "/olli", new String[] { "Hubert6", "Hubert", "sub" },
+                new String[] { content + "Appended" });
+        checkExactlyContains(STORE + "/olli/sub", new String[] { "Copy" }, new String[] { content });
+    }
+
+    public void testResourceChannels() throws Throwable {
+        sLogger.logInfo("Checking resource channels");
+        reset();
+        createInitialFiles();
+
+        FileResourceManager rm = createFRM();
+        rm.start();
+
+        rm.startTransaction("tx1");
+        FileChannel out = rm.writeResourceChannel("tx1", "/olli/Hubert6");
+        out.write(ByteBuffer.wrap("World".getBytes(ENCODING)), 6);
+        out.write(ByteBuffer.wrap("Hello ".getBytes(ENCODING)), 0);
+        out.close();
+        out = rm.writeResourceChannel("tx1", "/olli/Hubert6", true);
+        out.write(ByteBuffer.wrap("!".getBytes(ENCODING)));
+        // left open to be closed by commit
+
+        // other transactions still see the committed state
+        FileChannel in = rm.readResourceChannel("/olli/Hubert6");
+        assertEquals(0, in.size());
+        in.close();
+
+        rm.commitTransaction("tx1");
+        assertFalse(out.isOpen());
+
+        rm.startTransaction("tx2");
+        rm.setIsolationLevel("tx2", ResourceManager.ISOLATION_LEVEL_READ_COMMITTED);
+        in = rm.readResourceChannel("tx2", "/olli/Hubert6");
+        ByteBuffer buf = ByteBuffer.allocate(5);
+        assertEquals(5, in.read(buf, 6));
+        assertEquals("World", new String(buf.array(), ENCODING));
+        FileOutputStream copy = new FileOutputStream(STORE + "/olli/Copy");
+        assertEquals(12, in.transferTo(0, in.size(), copy.getChannel()));
+        copy.close();
+        in.close();
+        // access lock has been released upon close
+        assertEquals(0, ((GenericLockManager) rm.getLockManager()).getLevel("tx2", "/olli/Hubert6"));
+        rm.commitTransaction("tx2");
+
+        try {
+            rm.readResourceChannel("/olli/NotThere");
+            fail("Reading a missing resource must fail");
+        } catch (ResourceManagerException e) {
+            assertEquals(ResourceManagerException.ERR_NO_SUCH_RESOURCE, e.getStatus());
+        }
+
+        assertTrue(rm.stop(ResourceManager.SHUTDOWN_MODE_NORMAL));
+        checkExactlyContains(STORE + "/olli", new String[] { "Hubert6", "Hubert", "Copy" },
+                new String[] { "Hello World!", null, "Hello World!" });
+    }
+
+    public void testMapResource() throws Throwable {
+        sLogger.logInfo("Checking mapped resources");
+        reset();
+        createFiles(new String[] { STORE + "/olli/Hubert6" }, new String[] { "Hello World" });
+
+        FileResourceManager rm = createFRM();
+        rm.start();
+        GenericLockManager lockManager = (GenericLockManager) rm.getLockManager();
+
+        rm.startTransaction("tx1");
+        rm.setIsolationLevel("tx1", ResourceManager.ISOLATION_LEVEL_READ_COMMITTED);
+        ByteBuffer buf = rm.mapResource("tx1", "/olli/Hubert6");
+        assertTrue(buf.isReadOnly());
+        byte[] content = new byte[buf.remaining()];
+        buf.get(content);
+        assertEquals("Hello World", new String(content, ENCODING));
+
+        buf = rm.mapResource("tx1", "/olli/Hubert6", 6, 5);
+        content = new byte[buf.remaining()];
+        buf.get(content);
+        assertEquals("World", new String(content, ENCODING));
+
+        // lock is kept until the end of the transaction, even with read committed
+        assertEquals(FileResourceManager.LOCK_ACCESS, lockManager.getLevel("tx1", "/olli/Hubert6"));
+        rm.commitTransaction("tx1");
+        assertEquals(0, lockManager.getLevel("tx1", "/olli/Hubert6"));
+
+        rm.startTransaction("tx2");
+        try {
+            rm.mapResource("tx2", "/olli/NotThere");
+            fail("Mapping a missing resource must fail");
+        } catch (ResourceManagerException e) {
+            assertEquals(ResourceManagerException.ERR_NO_SUCH_RESOURCE, e.getStatus());
+        }
+        rm.rollbackTransaction("tx2");
+
+        assertTrue(rm.stop(ResourceManager.SHUTDOWN_MODE_NORMAL));
+    }
+
+    public void testChangeIndex() throws Throwable {
+        sLogger.logInfo("Checking index of changes");
+        reset();
+        createInitialFiles();
+
+        FileResourceManager rm = createFRM();
+        rm.start();
+
+        rm.startTransaction("tx1");
+        rm.createResource("tx1", "/olli/sub/deeper/Hubert7");
+        rm.createResource("tx1", "/olli/Hubert8");
+        rm.deleteResource("tx1", "/olli/Hubert8");
+        rm.deleteResource("tx1", "/olli/Hubert");
+        OutputStream out = rm.writeResource("tx1", "/olli/Hubert6", true);
+        out.write("Appended".getBytes(ENCODING));
+        out.close();
+
+        assertTrue(rm.resourceExists("tx1", "/olli/sub/deeper/Hubert7"));
+        assertTrue(rm.resourceExists("tx1", "/olli/sub"));
+        assertFalse(rm.resourceExists("tx1", "/olli/Hubert8"));
+        assertFalse(rm.resourceExists("tx1", "/olli/Hubert"));
+        assertTrue(rm.resourceExists("tx1", "/olli/Hubert6"));
+        assertFalse(rm.resourceExists("/olli/sub/deeper/Hubert7"));
+        assertTrue(rm.resourceExists("/olli/Hubert"));
+
+        // the index rebuilt from the work directory as upon recovery must not differ
+        FileResourceManager.TransactionContext context = rm.getContext("tx1");
+        Set changedFiles = new HashSet(context.changedFiles);
+        Set changedDirs = new HashSet(context.changedDirs);
+        Set deletedFiles = new HashSet(context.deletedFiles);
+        context.rebuildIndex();
+        assertEquals(changedFiles, context.changedFiles);
+        assertEquals(changedDirs, context.changedDirs);
+        assertEquals(deletedFiles, context.deletedFiles);
+        assertEquals(2, changedFiles.size());
+        assertEquals(1, deletedFiles.size());
+
+        rm.commitTransaction("tx1");
+        assertTrue(rm.stop(ResourceManager.SHUTDOWN_MODE_NORMAL));
+        checkExactlyContains(STORE + "/olli", new String[] { "Hubert6", "sub" },
+                new String[] { "Appended" });
+        checkExactlyContains(STORE + "/olli/sub/deeper", new String[] { "Hubert7" });
+    }
+
+    public void testManifestCommit() throws Throwable {
+        sLogger.logInfo("Checking manifest driven commit");
+        reset();
+        createInitialFiles();
+        createFiles(new String[] { STORE + "/olli/gone/Hubert9" });
+
+        FileResourceManager rm = createFRM();
+        rm.setManifestEnabled(true);
+        rm.start();
+
+        rm.startTransaction("tx1");
+        rm.createResource("tx1", "/olli/sub/deeper/Hubert7");
+        OutputStream out = rm.writeResource("tx1", "/olli/Hubert6");
+        out.write("Manifest".getBytes(ENCODING));
+        out.close();
+        rm.deleteResource("tx1", "/olli/Hubert");
+        rm.deleteResource("tx1", "/olli/gone/Hubert9");
+        // no marker files for deletes
+        checkIsEmpty(deleteForTx("tx1"));
+
+        assertEquals(ResourceManager.PREPARE_SUCCESS, rm.prepareTransaction("tx1"));
+        assertTrue(new File(workForTx("tx1"), FileResourceManager.MANIFEST_FILE).exists());
+        rm.commitTransaction("tx1");
+
+        checkExactlyContains(STORE + "/olli", new String[] { "Hubert6", "sub" },
+                new String[] { "Manifest" });
+        checkExactlyContains(STORE + "/olli/sub/deeper", new String[] { "Hubert7" });
+
+        // crash after part of a commit has been done
+        rm.startTransaction("tx2");
+        rm.createResource("tx2", "/olli/Hubert1");
+        rm.createResource("tx2", "/olli/Hubert2");
+        rm.deleteResource("tx2", "/olli/Hubert6");
+        assertEquals(ResourceManager.PREPARE_SUCCESS, rm.prepareTransaction("tx2"));
+        FileResourceManager.TransactionContext context = rm.getContext("tx2");
+        context.status = Status.STATUS_COMMITTING;
+        context.saveState();
+        assertTrue(new File(changeForTx("tx2") + "/olli/Hubert1").renameTo(new File(STORE
+                + "/olli/Hubert1")));
+
+        FileResourceManager recovered = createFRM();
+        recovered.setManifestEnabled(true);
+        recovered.start();
+        assertTrue(recovered.stop(ResourceManager.SHUTDOWN_MODE_NORMAL));
+        checkExactlyContains(STORE + "/olli", new String[] { "Hubert1", "Hubert2", "sub" });
+        checkIsEmpty(WORK);
+    }
+
+    public void testParallelCommit() throws Throwable {
+        sLogger.logInfo("Checking parallel commit");
+        reset();
+        String[] existing = new String[50];
+        for (int i = 0; i < existing.length; i++) {
+            existing[i] = STORE + "/olli/old/Hubert" + i;
+        }
+        createFiles(existing);
+
+        for (int manifest = 0; manifest < 2; manifest++) {
+            FileResourceManager rm = createFRM();
+            rm.setCommitThreads(4);
+            rm.setManifestEnabled(manifest == 1);
+            rm.start();
+            // shared by all commits, the committing thread helps itself
+            assertEquals(3, rm.commitWorkers.getSize());
+
+            rm.startTransaction("tx1");
+            for (int i = 0; i < 200; i++) {
+                String resourceId = "/olli/new" + (i % 10) + "/Hubert" + i;
+                OutputStream out = rm.writeResource("tx1", resourceId);
+                out.write(resourceId.getBytes(ENCODING));
+                out.close();
+            }
+            for (int i = 0; i < existing.length; i++) {
+                rm.deleteResource("tx1", "/olli/old/Hubert" + i);
+            }
+            rm.commitTransaction("tx1");
+            assertTrue(rm.stop(ResourceManager.SHUTDOWN_MODE_NORMAL));
+            assertNull(rm.commitWorkers);
+
+            // directory left empty has been removed
+            checkExactlyContains(STORE + "/olli", new String[] { "new0", "new1", "new2", "new3",
+                    "new4", "new5", "new6", "new7", "new8", "new9" });
+            for (int i = 0; i < 200; i++) {
+                String resourceId = "/olli/new" + (i % 10) + "/Hubert" + i;
+                assertTrue(compare(new File(STORE + resourceId), resourceId));
+            }
+            checkIsEmpty(WORK);
+
+            // start over for the other commit mode
+            reset();
+            createFiles(existing);
+        }
+    }
+
+    public void testParallelRecovery() throws Throwable {
+        sLogger.logInfo("Checking parallel recovery");
+        reset();
+        createInitialFiles();
+        String[] expected = new String[22];
+        expected[0] = "Hubert";
+        expected[1] = "Hubert6";
+        for (int i = 0; i < 20; i++) {
+            String txId = "tx" + i;
+            createTxContextFile(txId, STATUS_COMMITTING_CONTEXT);
+            createTxChangeFiles(txId, new String[] { "olli/new" + i });
+            expected[i + 2] = "new" + i;
+            txId = "rb" + i;
+            createTxContextFile(txId, STATUS_ACTIVE_CONTEXT);
+            createTxChangeFiles(txId, new String[] { "olli/gone" + i });
+        }
+
+        FileResourceManager rm = createFRM();
+        rm.setRecoveryThreads(4);
+        rm.start();
+        assertTrue(rm.stop(ResourceManager.SHUTDOWN_MODE_NORMAL, 5000));
+
+        checkExactlyContains(STORE + "/olli", expected);
+        checkIsEmpty(WORK);
+    }
+
+    public void testBackgroundRecovery() throws Throwable {
+        sLogger.logInfo("Checking background recovery");
+        reset();
+        createInitialFiles();
+        createTxContextFile("pending", STATUS_COMMITTING_CONTEXT);
+        createFiles(new String[] { "olli/Hubert" }, new String[] { "recovered" },
+                changeForTx("pending"));
+
+        // keep recovery from finishing until we say so
+        final boolean[] proceed = new boolean[] { false };
+        FileResourceManager rm = new FileResourceManager(STORE, WORK, false, sLogger, true) {
+            protected boolean rollBackOrForward(TransactionContext context) {
+                synchronized (proceed) {
+                    while (!proceed[0]) {
+                        try {
+                            proceed.wait();
+                        } catch (InterruptedException e) {
+                        }
+                    }
+                }
+                return super.rollBackOrForward(context);
+            }
+        };
+        rm.setBackgroundRecovery(true);
+        rm.start();
+        assertTrue(rm.isRecovering());
+        assertFalse(rm.isDirty());
+
+        // resources not touched by the pending transaction are available
+        rm.startTransaction("tx1");
+        rm.readResource("tx1", "/olli/Hubert6").close();
+        OutputStream out = rm.writeResource("tx1", "/olli/Hubert7");
+        out.write("new".getBytes(ENCODING));
+        out.close();
+        rm.commitTransaction("tx1");
+
+        // the one it changed is not
+        rm.startTransaction("tx2");
+        try {
+            rm.lockResource("/olli/Hubert", "tx2", true, true, 100, true);
+            fail("Resource of pending transaction must not be available");
+        } catch (ResourceManagerException e) {
+            assertEquals(ResourceManagerException.ERR_NO_LOCK, e.getStatus());
+        }
+
+        synchronized (proceed) {
+            proceed[0] = true;
+            proceed.notifyAll();
+        }
+        InputStream in = rm.readResource("tx2", "/olli/Hubert");
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, ENCODING));
+        assertEquals("recovered", reader.readLine());
+        reader.close();
+        rm.commitTransaction("tx2");
+        assertTrue(rm.stop(ResourceManager.SHUTDOWN_MODE_NORMAL, 5000));
+        assertFalse(rm.isRecovering());
+        assertFalse(rm.isDirty());
+
+        checkExactlyContains(STORE + "/olli", new String[] { "Hubert", "Hubert6", "Hubert7" },
+                new String[] { "recovered", "", "new" });
+        checkIsEmpty(WORK);
+    }
+
+    public void testFastStart() throws Throwable {
+        sLogger.logInfo("Checking fast start");
+        reset();
+        createInitialFiles();
+
+        FileResourceManager rm = createFRM();
+        rm.setFastStart(true);
+        rm.setJournalEnabled(true);
+        rm.start();
+        rm.startTransaction("tx1");
+        rm.deleteResource("tx1", "/olli/Hubert");
+        rm.commitTransaction("tx1");
+        assertTrue(rm.stop(ResourceManager.SHUTDOWN_MODE_NORMAL));
+        assertTrue(new File(WORK, FileResourceManager.CHECKPOINT_FILE).exists());
+
+        // after a clean shutdown the work directory is not even looked at
+        createTxContextFile("COMMITTING", STATUS_COMMITTING_CONTEXT);
+        createTxChangeFiles("COMMITTING", new String[] { "olli/Hubert7" });
+        rm.start();
+        assertFalse(new File(WORK, FileResourceManager.CHECKPOINT_FILE).exists());
+        checkExactlyContains(STORE + "/olli", new String[] { "Hubert6" });
+        rm.startTransaction("tx2");
+        OutputStream out = rm.writeResource("tx2", "/olli/Hubert8");
+        out.close();
+        // pretend to crash with tx2 pending
+        assertTrue(rm.stop(ResourceManager.SHUTDOWN_MODE_KILL));
+        assertFalse(new File(WORK, FileResourceManager.CHECKPOINT_FILE).exists());
+
+        // after a crash only the transactions in the journal are recovered
+        rm = createFRM();
+        rm.setFastStart(true);
+        rm.setJournalEnabled(true);
+        rm.start();
+        assertFalse(new File(workForTx("tx2")).exists());
+        assertTrue(new File(workForTx("COMMITTING")).exists());
+        checkExactlyContains(STORE + "/olli", new String[] { "Hubert6" });
+
+        // a stale work directory does not leak into a new transaction
+        rm.startTransaction("COMMITTING");
+        rm.commitTransaction("COMMITTING");
+        assertTrue(rm.stop(ResourceManager.SHUTDOWN_MODE_NORMAL));
+        checkExactlyContains(STORE + "/olli", new String[] { "Hubert6" });
+        checkExactlyContains(WORK, new String[] { FileResourceManager.CHECKPOINT_FILE,
+                FileResourceManager.JOURNAL_FILE });
+
+        // a journal that has just been enabled does not know earlier transactions
+        reset();
+        createInitialFiles();
+        createTxContextFile("COMMITTING", STATUS_COMMITTING_CONTEXT);
+        createTxChangeFiles("COMMITTING", new String[] { "olli/Hubert7" });
+        rm = createFRM();
+        rm.setFastStart(true);
+        rm.setJournalEnabled(true);
+        rm.start();
+        checkExactlyContains(STORE + "/olli", new String[] { "Hubert", "Hubert6", "Hubert7" });
+        assertTrue(rm.stop(ResourceManager.SHUTDOWN_MODE_NORMAL));
+    }
+
+    public void testAsyncCleanup() throws Throwable {
+        sLogger.logInfo("Checking background cleanup");
+        reset();
+        createInitialFiles();
+
+        FileResourceManager rm = createFRM();
+        rm.setAsyncCleanup(true);
+        rm.setCleanupRate(1000);
+        rm.start();
+        for (int i = 0; i < 10; i++) {
+            String txId = "tx" + i;
+            rm.startTransaction(txId);
+            OutputStream out = rm.writeResource(txId, "/olli/Hubert" + i);
+            out.close();
+            if (i % 2 == 0) {
+                rm.commitTransaction(txId);
+            } else {
+                rm.rollbackTransaction(txId);
+            }
+            // gone from where recovery would look for it
+            assertFalse(new File(workForTx(txId)).exists());
+        }
+        File trash = new File(WORK, FileResourceManager.TRASH_DIR);
+        long end = System.currentTimeMillis() + 5000;
+        while (trash.list().length > 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, trash.list().length);
+        assertTrue(rm.stop(ResourceManager.SHUTDOWN_MODE_NORMAL));
+        checkExactlyContains(STORE + "/olli", new String[] { "Hubert", "Hubert0", "Hubert2",
+                "Hubert4", "Hubert6", "Hubert8" });
+        checkIsEmpty(WORK);
+
+        // leftovers are removed even without background cleanup
+        createFiles(new String[] { "tx1.0/change/olli/Hubert", "tx1.0/transaction.log" },
+                trash.getPath());
+        rm = createFRM();
+        rm.start();
+        assertFalse(trash.exists());
+        assertTrue(rm.stop(ResourceManager.SHUTDOWN_MODE_NORMAL));
+        checkIsEmpty(WORK);
+    }
+
+    public void testLazyWorkDir() throws Throwable {
+        sLogger.logInfo("Checking lazy work directories");
+        reset();
+        createInitialFiles();
+
+        FileResourceManager rm = createFRM();
+        rm.setJournalEnabled(true);
+        rm.start();
+
+        // reading leaves no trace on disk
+        rm.startTransaction("tx1");
+        rm.readResource("tx1", "/olli/Hubert").close();
+        assertTrue(rm.resourceExists("tx1", "/olli/Hubert6"));
+        assertFalse(new File(workForTx("tx1")).exists());
+        assertEquals(ResourceManager.PREPARE_SUCCESS_READONLY, rm.prepareTransaction("tx1"));
+        assertFalse(new File(workForTx("tx1")).exists());
+        assertNull(rm.getJournal().getRecord("tx1"));
+        rm.commitTransaction("tx1");
+
+        // the first write makes the transaction recoverable
+        rm.startTransaction("tx2");
+        rm.readResource("tx2", "/olli/Hubert").close();
+        assertFalse(new File(workForTx("tx2")).exists());
+        rm.deleteResource("tx2", "/olli/Hubert");
+        assertTrue(new File(changeForTx("tx2")).isDirectory());
+        assertNotNull(rm.getJournal().getRecord("tx2"));
+        rm.commitTransaction("tx2");
+
+        assertTrue(rm.stop(ResourceManager.SHUTDOWN_MODE_NORMAL));
+        checkExactlyContains(STORE + "/olli", new String[] { "Hubert6" });
+        checkExactlyContains(WORK, new String[] { FileResourceManager.JOURNAL_FILE });
+    }
+
+    public void testDirectReads() throws Throwable {
+        sLogger.logInfo("Checking direct reads");
+        reset();
+        createInitialFiles();
+        createFiles(new String[] { STORE + "/olli/Hubert" }, new String[] { "old" });
+
+        FileResourceManager rm = createFRM();
+        rm.setAtomicCommit(true);
+        rm.setDirectReads(true);
+        rm.start();
+
+        rm.startTransaction("tx1");
+        OutputStream out = rm.writeResource("tx1", "/olli/Hubert");
+        out.write("new".getBytes(ENCODING));
+        out.close();
+        // holds the commit lock a light weight transaction would wait for
+        assertEquals(ResourceManager.PREPARE_SUCCESS, rm.prepareTransaction("tx1"));
+
+        InputStream in = rm.readResource("/olli/Hubert");
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, ENCODING));
+        assertEquals("old", reader.readLine());
+        reader.close();
+        assertTrue(rm.resourceExists("/olli/Hubert6"));
+        assertFalse(rm.resourceExists("/olli/Hubert7"));
+        try {
+            rm.readResource("/olli/Hubert7");
+            fail("Resource must not exist");
+        } catch (ResourceManagerException e) {
+            assertEquals(ResourceManagerException.ERR_NO_SUCH_RESOURCE, e.getStatus());
+        }
+        // no transaction has been created for all this
+        assertEquals(1, rm.globalTransactions.size());
+
+        rm.commitTransaction("tx1");
+        in = rm.readResource("/olli/Hubert");
+        reader = new BufferedReader(new InputStreamReader(in, ENCODING));
+        assertEquals("new", reader.readLine());
+        reader.close();
+
+        assertTrue(rm.stop(ResourceManager.SHUTDOWN_MODE_NORMAL));
+        checkIsEmpty(WORK);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, ENCODING));
+        try {
+            return reader.readLine();
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testSnapshotIsolation() throws Throwable {
+        sLogger.logInfo("Checking snapshot isolation");
+        reset();
+        createInitialFiles();
+        createFiles(new String[] { STORE + "/olli/Hubert" }, new String[] { "old" });
+
+        FileResourceManager rm = createFRM();
+        rm.setSnapshotIsolation(true);
+        rm.start();
+
+        rm.startTransaction("tx1");
+        assertEquals("old", readLine(rm.readResource("tx1", "/olli/Hubert")));
+
+        // not blocked by the reader
+        rm.startTransaction("tx2");
+        OutputStream out = rm.writeResource("tx2", "/olli/Hubert");
+        out.write("new".getBytes(ENCODING));
+        out.close();
+        rm.createResource("tx2", "/olli/Hubert7");
+        rm.deleteResource("tx2", "/olli/Hubert6");
+        rm.commitTransaction("tx2");
+
+        // still sees everything as of its start
+        assertEquals("old", readLine(rm.readResource("tx1", "/olli/Hubert")));
+        assertTrue(rm.resourceExists("tx1", "/olli/Hubert6"));
+        assertNull(readLine(rm.readResource("tx1", "/olli/Hubert6")));
+        assertFalse(rm.resourceExists("tx1", "/olli/Hubert7"));
+
+        rm.startTransaction("tx3");
+        assertEquals("new", readLine(rm.readResource("tx3", "/olli/Hubert")));
+        assertFalse(rm.resourceExists("tx3", "/olli/Hubert6"));
+        assertTrue(rm.resourceExists("tx3", "/olli/Hubert7"));
+        rm.commitTransaction("tx3");
+
+        // first committer wins
+        try {
+            rm.writeResource("tx1", "/olli/Hubert");
+            fail("Writing a resource changed after the snapshot must fail");
+        } catch (ResourceManagerException e) {
+            assertEquals(ResourceManagerException.ERR_CONFLICT, e.getStatus());
+        }
+        assertTrue(new File(WORK, FileResourceManager.VERSIONS_DIR).exists());
+        rm.rollbackTransaction("tx1");
+        // no snapshot needs old versions any more
+        assertFalse(new File(WORK, FileResourceManager.VERSIONS_DIR).exists());
+
+        assertTrue(rm.stop(ResourceManager.SHUTDOWN_MODE_NORMAL));
+        checkExactlyContains(STORE + "/olli", new String[] { "Hubert", "Hubert7" }, new String[] {
+                "new", "" });
+        checkIsEmpty(WORK);
+    }
+
+    public void testSnapshotDuringCommit() throws Throwable {
+        sLogger.logInfo("Checking snapshots taken while a commit is published");
+        reset();
+        String[] resources = new String[] { "olli/Hubert1", "olli/Hubert2", "olli/Hubert3",
+                "olli/Hubert4" };
+        createFiles(resources, new String[] { "old", "old", "old", "old" }, STORE);
+        // rolled forward in the background, while no snapshot exists
+        createTxContextFile("pending", STATUS_COMMITTING_CONTEXT);
+        createFiles(resources, new String[] { "new", "new", "new", "new" },
+                changeForTx("pending"));
+
+        // pause the commit after it has moved its first file
+        final int[] preserved = new int[] { 0 };
+        FileResourceManager rm = new FileResourceManager(STORE, WORK, false, sLogger, true) {
+            protected void preserveVersion(String key, long version) throws IOException {
+                int count;
+                synchronized (preserved) {
+                    count = ++preserved[0];
+                    preserved.notifyAll();
+                }
+                if (count == 2) {
+                    try {
+                        Thread.sleep(500);
+                    } catch (InterruptedException e) {
+                    }
+                }
+                super.preserveVersion(key, version);
+            }
+        };
+        rm.setSnapshotIsolation(true);
+        rm.setBackgroundRecovery(true);
+        rm.start();
+        synchronized (preserved) {
+            while (preserved[0] < 2) {
+                preserved.wait();
+            }
+        }
+
+        // either sees all of the commit or nothing of it
+        rm.startTransaction("reader");
+        String first = readLine(rm.readResource("reader", "/" + resources[0]));
+        for (int i = 1; i < resources.length; i++) {
+            assertEquals(first, readLine(rm.readResource("reader", "/" + resources[i])));
+        }
+        rm.commitTransaction("reader");
+
+        assertTrue(rm.stop(ResourceManager.SHUTDOWN_MODE_NORMAL, 5000));
+        checkExactlyContains(STORE + "/olli", new String[] { "Hubert1", "Hubert2", "Hubert3",
+                "Hubert4" }, new String[] { "new", "new", "new", "new" });
+        checkIsEmpty(WORK);
+    }
+
+    public void testSnapshotCopy() throws Throwable {
+        sLogger.logInfo("Checking copies made by snapshots");
+        reset();
+        createFiles(new String[] { STORE + "/olli/Hubert" }, new String[] { "old" });
+
+        // commit a change to the source right after the copy has resolved it
+        final boolean[] armed = new boolean[] { false };
+        final FileResourceManager[] holder = new FileResourceManager[1];
+        FileResourceManager rm = new FileResourceManager(STORE, WORK, false, sLogger, true) {
+            protected String getPathForRead(Object txId, Object resourceId)
+                    throws ResourceManagerException {
+                String path = super.getPathForRead(txId, resourceId);
+                if (armed[0] && "/olli/Hubert".equals(resourceId)) {
+                    armed[0] = false;
+                    try {
+                        FileResourceManager rm = holder[0];
+                        rm.startTransaction("tx2");
+                        OutputStream out = rm.writeResource("tx2", "/olli/Hubert");
+                        out.write("new".getBytes(ENCODING));
+                        out.close();
+                        rm.commitTransaction("tx2");
+                    } catch (IOException e) {
+                        throw new ResourceManagerException(ResourceManagerException.ERR_SYSTEM,
+                                "tx2", e);
+                    }
+                }
+                return path;
+            }
+        };
+        holder[0] = rm;
+        rm.setSnapshotIsolation(true);
+        rm.start();
+
+        rm.startTransaction("tx1");
+        armed[0] = true;
+        rm.copyResource("tx1", "/olli/Hubert", "/olli/Hubert7", false);
+        assertFalse(armed[0]);
+        assertEquals("old", readLine(rm.readResource("tx1", "/olli/Hubert7")));
+        rm.commitTransaction("tx1");
+
+        assertTrue(rm.stop(ResourceManager.SHUTDOWN_MODE_NORMAL));
+        checkExactlyContains(STORE + "/olli", new String[] { "Hubert", "Hubert7" }, new String[] {
+                "new", "old" });
+        checkIsEmpty(WORK);
+    }
+
+    public void testOptimistic() throws Throwable {
+        sLogger.logInfo("Checking optimistic transactions");
+        reset();
+        createInitialFiles();
+
+        FileResourceManager rm = createFRM();
+        rm.setOptimistic(true);
+        rm.setLockTimeout(100);
+        rm.start();
+
+        // nobody waits for anybody
+        rm.startTransaction("tx1");
+        rm.startTransaction("tx2");
+        assertNull(readLine(rm.readResource("tx1", "/olli/Hubert")));
+        OutputStream out = rm.writeResource("tx2", "/olli/Hubert");
+        out.write("tx2".getBytes(ENCODING));
+        out.close();
+        rm.createResource("tx1", "/olli/Hubert7");
+        rm.commitTransaction("tx2");
+
+        // what tx1 has read has changed in the meantime
+        try {
+            rm.commitTransaction("tx1");
+            fail("Commit must fail validation");
+        } catch (ResourceManagerException e) {
+            assertEquals(ResourceManagerException.ERR_CONFLICT, e.getStatus());
+        }
+        assertEquals(Status.STATUS_NO_TRANSACTION, rm.getTransactionState("tx1"));
+
+        // concurrent writes, the first one to commit wins
+        rm.startTransaction("tx3");
+        rm.startTransaction("tx4");
+        rm.createResource("tx3", "/olli/Hubert8");
+        rm.createResource("tx4", "/olli/Hubert8");
+        assertEquals(ResourceManager.PREPARE_SUCCESS, rm.prepareTransaction("tx3"));
+        try {
+            rm.prepareTransaction("tx4");
+            fail("Prepare must fail on locked resource");
+        } catch (ResourceManagerException e) {
+        }
+        rm.rollbackTransaction("tx4");
+        rm.commitTransaction("tx3");
+
+        // read only transactions are validated as well
+        rm.startTransaction("tx5");
+        rm.startTransaction("tx6");
+        rm.resourceExists("tx5", "/olli/Hubert8");
+        rm.deleteResource("tx6", "/olli/Hubert8");
+        rm.commitTransaction("tx6");
+        try {
+            rm.prepareTransaction("tx5");
+            fail("Prepare must fail validation");
+        } catch (ResourceManagerException e) {
+            assertEquals(ResourceManagerException.ERR_CONFLICT, e.getStatus());
+        }
+        rm.rollbackTransaction("tx5");
+
+        // unrelated transactions do not conflict
+        rm.startTransaction("tx7");
+        rm.startTransaction("tx8");
+        rm.readResource("tx7", "/olli/Hubert6").close();
+        rm.deleteResource("tx8", "/olli/Hubert");
+        assertEquals(ResourceManager.PREPARE_SUCCESS_READONLY, rm.prepareTransaction("tx7"));
+        rm.commitTransaction("tx8");
+        rm.commitTransaction("tx7");
+
+        assertTrue(rm.stop(ResourceManager.SHUTDOWN_MODE_NORMAL));
+        checkExactlyContains(STORE + "/olli", new String[] { "Hubert6" });
+        checkIsEmpty(WORK);
+    }
+
+    public void testResourceVersions() throws Throwable {
+        sLogger.logInfo("Checking resource versions");
+        reset();
+        createInitialFiles();
+        createFiles(new String[] { STORE + "/olli/Hubert" }, new String[] { "old" });
+
+        FileResourceManager rm = createFRM();
+        rm.start();
+
+        rm.startTransaction("tx1");
+        String version = rm.getResourceVersion("tx1", "/olli/Hubert");
+        assertNotNull(version);
+        assertFalse(version.equals(rm.getResourceVersion("tx1", "/olli/Hubert6")));
+        assertNull(rm.getResourceVersion("tx1", "/olli/Hubert7"));
+        assertNull(rm.getResourceVersion("tx1", "/olli"));
+        rm.commitTransaction("tx1");
+
+        // the version is still current
+        rm.startTransaction("tx2");
+        OutputStream out = rm.writeResourceIfMatch("tx2", "/olli/Hubert", version);
+        out.write("new".getBytes(ENCODING));
+        out.close();
+        // own changes count
+        String newVersion = rm.getResourceVersion("tx2", "/olli/Hubert");
+        assertFalse(version.equals(newVersion));
+        rm.commitTransaction("tx2");
+
+        rm.startTransaction("tx3");
+        assertEquals(newVersion, rm.getResourceVersion("tx3", "/olli/Hubert"));
+        try {
+            rm.writeResourceIfMatch("tx3", "/olli/Hubert", version);
+            fail("Writing an outdated version must fail");
+        } catch (ResourceManagerException e) {
+            assertEquals(ResourceManagerException.ERR_CONFLICT, e.getStatus());
+        }
+        try {
+            rm.deleteResourceIfMatch("tx3", "/olli/Hubert", version);
+            fail("Deleting an outdated version must fail");
+        } catch (ResourceManagerException e) {
+            assertEquals(ResourceManagerException.ERR_CONFLICT, e.getStatus());
+        }
+        try {
+            rm.writeResourceIfMatch("tx3", "/olli/Hubert6", null);
+            fail("Creating an existing resource must fail");
+        } catch (ResourceManagerException e) {
+            assertEquals(ResourceManagerException.ERR_CONFLICT, e.getStatus());
+        }
+        rm.writeResourceIfMatch("tx3", "/olli/Hubert7", null).close();
+        rm.deleteResourceIfMatch("tx3", "/olli/Hubert", newVersion);
+        rm.commitTransaction("tx3");
+
+        assertTrue(rm.stop(ResourceManager.SHUTDOWN_MODE_NORMAL));
+        checkExactlyContains(STORE + "/olli", new String[] { "Hubert6", "Hubert7" });
+        checkIsEmpty(WORK);
+    }
+
+    public void testResourceMetadata() throws Throwable {
+        sLogger.logInfo("Checking resource metadata");
+        reset();
+        createInitialFiles();
+        createFiles(new String[] { STORE + "/olli/Hubert" }, new String[] { "old" });
+
+        FileResourceManager rm = createFRM();
+        rm.start();
+
+        rm.startTransaction("tx1");
+        ResourceMetadata metadata = rm.getResourceMetadata("tx1", "/olli/Hubert");
+        assertEquals(3, metadata.getSize());
+        assertFalse(metadata.isDirectory());
+        assertEquals(new File(STORE + "/olli/Hubert").lastModified(), metadata.getLastModified());
+        assertEquals(rm.getResourceVersion("tx1", "/olli/Hubert"), metadata.getVersion());
+        // committed metadata is cached
+        assertSame(metadata, rm.getResourceMetadata("tx1", "/olli/Hubert"));
+        assertTrue(rm.getResourceMetadata("tx1", "/olli").isDirectory());
+        assertNull(rm.getResourceMetadata("tx1", "/olli/Hubert7"));
+        rm.commitTransaction("tx1");
+
+        rm.startTransaction("tx2");
+        OutputStream out = rm.writeResource("tx2", "/olli/Hubert");
+        out.write("newer".getBytes(ENCODING));
+        out.close();
+        rm.deleteResource("tx2", "/olli/Hubert6");
+        // own changes count
+        assertEquals(5, rm.getResourceMetadata("tx2", "/olli/Hubert").getSize());
+        assertNull(rm.getResourceMetadata("tx2", "/olli/Hubert6"));
+        rm.commitTransaction("tx2");
+
+        // commit invalidated the cache
+        rm.startTransaction("tx3");
+        ResourceMetadata newMetadata = rm.getResourceMetadata("tx3", "/olli/Hubert");
+        assertEquals(5, newMetadata.getSize());
+        assertFalse(metadata.getVersion().equals(newMetadata.getVersion()));
+        assertNull(rm.getResourceMetadata("tx3", "/olli/Hubert6"));
+        rm.commitTransaction("tx3");
+
+        // no caching at all
+        rm.setMetadataCacheSize(0);
+        rm.startTransaction("tx4");
+        metadata = rm.getResourceMetadata("tx4", "/olli/Hubert");
+        assertNotSame(metadata, rm.getResourceMetadata("tx4", "/olli/Hubert"));
+        rm.commitTransaction("tx4");
+        assertTrue(rm.stop(ResourceManager.SHUTDOWN_MODE_NORMAL));
+
+        // old versions seen by snapshots are not cached
+        rm = createFRM();
+        rm.setSnapshotIsolation(true);
+        rm.start();
+        rm.startTransaction("tx5");
+        rm.startTransaction("tx6");
+        out = rm.writeResource("tx6", "/olli/Hubert");
+        out.write("newest".getBytes(ENCODING));
+        out.close();
+        rm.commitTransaction("tx6");
+        assertEquals(5, rm.getResourceMetadata("tx5", "/olli/Hubert").getSize());
+        rm.commitTransaction("tx5");
+        rm.startTransaction("tx7");
+        assertEquals(6, rm.getResourceMetadata("tx7", "/olli/Hubert").getSize());
+        rm.commitTransaction("tx7");
+
+        assertTrue(rm.stop(ResourceManager.SHUTDOWN_MODE_NORMAL));
+        checkExactlyContains(STORE + "/olli", new String[] { "Hubert" });
+        checkIsEmpty(WORK);
+    }
+
+    protected Set toSet(Iterator it) {
+        Set set = new HashSet();
+        while (it.hasNext()) {
+            assertTrue(set.add(it.next()));
+        }
+        return set;
+    }
+
+    public void testListResources() throws Throwable {
+        sLogger.logInfo("Checking listing of collections");
+        reset();
+        createInitialFiles();
+
+        FileResourceManager rm = createFRM();
+        rm.setCollectionLocking(true);
+        rm.setLockTimeout(100);
+        rm.start();
+
+        rm.startTransaction("tx1");
+        rm.createResource("tx1", "/olli/Hubert7");
+        rm.deleteResource("tx1", "/olli/Hubert6");
+        rm.writeResource("tx1", "/olli/sub/Hubert").close();
+        Set members = toSet(rm.listResources("tx1", "/olli"));
+        assertEquals(new HashSet(Arrays.asList(new String[] { "/olli/Hubert", "/olli/Hubert7",
+                "/olli/sub" })), members);
+        assertEquals(Collections.singleton("/olli/sub/Hubert"), toSet(rm.listResources("tx1",
+                "olli/sub")));
+        assertEquals(Collections.singleton("/olli"), toSet(rm.listResources("tx1", "/")));
+
+        // others only see committed members
+        rm.startTransaction("tx2");
+        try {
+            rm.listResources("tx2", "/olli");
+            fail("Listing must wait for creates and deletes");
+        } catch (ResourceManagerException e) {
+            assertEquals(ResourceManagerException.ERR_NO_LOCK, e.getStatus());
+        }
+        try {
+            rm.listResources("tx2", "/olli/sub2");
+            fail("Collection must not exist");
+        } catch (ResourceManagerException e) {
+            assertEquals(ResourceManagerException.ERR_NO_SUCH_RESOURCE, e.getStatus());
+        }
+        rm.rollbackTransaction("tx2");
+        rm.commitTransaction("tx1");
+
+        rm.startTransaction("tx3");
+        assertEquals(new HashSet(Arrays.asList(new String[] { "/olli/Hubert", "/olli/Hubert7",
+                "/olli/sub" })), toSet(rm.listResources("tx3", "/olli")));
+        // listing keeps creates out
+        rm.startTransaction("tx4");
+        try {
+            rm.createResource("tx4", "/olli/Hubert8");
+            fail("Create must wait for listing");
+        } catch (ResourceManagerException e) {
+            assertEquals(ResourceManagerException.ERR_NO_LOCK, e.getStatus());
+        }
+        rm.rollbackTransaction("tx4");
+        // changing existing members is fine
+        rm.startTransaction("tx5");
+        rm.writeResource("tx5", "/olli/Hubert").close();
+        rm.commitTransaction("tx5");
+        rm.commitTransaction("tx3");
+
+        assertTrue(rm.stop(ResourceManager.SHUTDOWN_MODE_NORMAL));
+        checkExactlyContains(STORE + "/olli", new String[] { "Hubert", "Hubert7", "sub" });
+        checkIsEmpty(WORK);
+    }
+
     public void testCopyRec() throws Throwable {
         sLogger.logInfo("Checking file copy");
         reset();
@@ -778,6 +778,194 @@ public class GenericLockTest extends TestCase {
 
     }
 
+    public void testOptimisticRead() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking optimistic reads\n\n");
+
+        final String owner1 = "owner1";
+        final String owner2 = "owner2";
+
+        final String res1 = "res1";
+
+        ReadWriteLockManager manager = new ReadWriteLockManager(sLogger, TIMEOUT);
+
+        // nobody writes, so the read is valid
+        long stamp = manager.tryOptimisticRead(res1);
+        assertTrue(stamp != 0);
+        assertTrue(manager.validate(res1, stamp));
+
+        // optimistic reads do not block writers and read locks do not invalidate them
+        manager.readLock(owner2, res1);
+        assertTrue(manager.validate(res1, stamp));
+        manager.releaseAll(owner2);
+        assertTrue(manager.tryWriteLock(owner1, res1));
+        assertFalse(manager.validate(res1, stamp));
+
+        // while there is a writer there is no optimistic read
+        assertEquals(0, manager.tryOptimisticRead(res1));
+        manager.releaseAll(owner1);
+
+        // even if the writer is gone, the intervention must be detected
+        stamp = manager.tryOptimisticRead(res1);
+        assertTrue(manager.validate(res1, stamp));
+        manager.writeLock(owner1, res1);
+        manager.releaseAll(owner1);
+        assertFalse(manager.validate(res1, stamp));
+        assertTrue(manager.validate(res1, manager.tryOptimisticRead(res1)));
+
+        // the same is true for upgrade locks
+        ReadWriteUpgradeLockManager upgradeManager = new ReadWriteUpgradeLockManager(sLogger,
+                TIMEOUT);
+        stamp = upgradeManager.tryOptimisticRead(res1);
+        upgradeManager.upgradeLock(owner1, res1);
+        assertTrue(upgradeManager.validate(res1, stamp));
+        upgradeManager.writeLock(owner1, res1);
+        assertFalse(upgradeManager.validate(res1, stamp));
+        upgradeManager.releaseAll(owner1);
+    }
+
+    public void testLockListener() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking lock events\n\n");
+
+        final String owner1 = "owner1";
+        final String owner2 = "owner2";
+
+        final String res1 = "res1";
+
+        final int[] events = new int[4];
+
+        GenericLockManager manager = new GenericLockManager(1, sLogger, TIMEOUT, -1);
+        manager.setLockListener(new LockListener() {
+            public void lockWaiting(Object ownerId, Object resourceId, int targetLockLevel,
+                    int heldLockLevel) {
+                events[0]++;
+            }
+
+            public void lockGranted(Object ownerId, Object resourceId, int targetLockLevel,
+                    int heldLockLevel, long durationMSecs) {
+                events[1]++;
+            }
+
+            public void lockTimedOut(Object ownerId, Object resourceId, int targetLockLevel,
+                    int heldLockLevel, long durationMSecs) {
+                assertEquals(owner2, ownerId);
+                assertEquals(res1, resourceId);
+                assertTrue(durationMSecs >= 100);
+                events[2]++;
+            }
+
+            public void deadlockDetected(Object ownerId, Object resourceId,
+                    int targetLockLevel, int heldLockLevel, long durationMSecs) {
+                events[3]++;
+            }
+        });
+
+        manager.lock(owner1, res1, 1, true);
+        assertEquals(1, events[1]);
+
+        boolean timedOut = false;
+        try {
+            manager.lock(owner2, res1, 1, true, 100);
+        } catch (LockException le) {
+            assertEquals(LockException.CODE_TIMED_OUT, le.getCode());
+            timedOut = true;
+        }
+        assertTrue(timedOut);
+        assertEquals(1, events[0]);
+        assertEquals(1, events[2]);
+        assertEquals(0, events[3]);
+        manager.releaseAll(owner1);
+    }
+
+    public void testOwnerCache() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking cached reentrant locks\n\n");
+
+        final String owner1 = "owner1";
+        final String owner2 = "owner2";
+
+        final String res1 = "res1";
+
+        final ReadWriteLockManager manager = new ReadWriteLockManager(sLogger, TIMEOUT);
+
+        // re-acquiring a level already held comes from the cache
+        manager.readLock(owner1, res1);
+        manager.readLock(owner1, res1);
+        assertEquals(ReadWriteLock.READ_LOCK, manager.getLevel(owner1, res1));
+        manager.writeLock(owner1, res1);
+        manager.readLock(owner1, res1);
+        assertEquals(ReadWriteLock.WRITE_LOCK, manager.getLevel(owner1, res1));
+
+        // a release must really be redone after a release in the same thread
+        manager.release(owner1, res1);
+        manager.readLock(owner1, res1);
+        assertEquals(ReadWriteLock.READ_LOCK, manager.getLevel(owner1, res1));
+
+        // and in other threads
+        Thread releaser = new Thread(new Runnable() {
+            public void run() {
+                manager.releaseAll(owner1);
+            }
+        }, "Releaser");
+        releaser.start();
+        releaser.join();
+        assertEquals(0, manager.getLevel(owner1, res1));
+        manager.readLock(owner1, res1);
+        assertEquals(ReadWriteLock.READ_LOCK, manager.getLevel(owner1, res1));
+        assertFalse(manager.tryWriteLock(owner2, res1));
+
+        // cached locks still time out
+        manager.startGlobalTimeout(owner1, 100);
+        Thread.sleep(200);
+        boolean timedOut = false;
+        try {
+            manager.readLock(owner1, res1);
+        } catch (LockException le) {
+            assertEquals(LockException.CODE_TIMED_OUT, le.getCode());
+            timedOut = true;
+        }
+        assertTrue(timedOut);
+        assertTrue(manager.tryWriteLock(owner2, res1));
+        manager.releaseAll(owner1);
+        manager.releaseAll(owner2);
+    }
+
+    public void testOwnerCacheCleanup() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking cached reentrant locks are cleaned up\n\n");
+
+        final String owner1 = "owner1";
+        final String owner2 = "owner2";
+
+        final String res1 = "res1";
+        final String res2 = "res2";
+
+        final ReadWriteLockManager manager = new ReadWriteLockManager(sLogger, TIMEOUT);
+
+        // failed requests leave no cache behind
+        manager.writeLock(owner1, res1);
+        assertFalse(manager.tryWriteLock(owner2, res1));
+        boolean timedOut = false;
+        try {
+            manager.lock(owner2, res1, ReadWriteLock.WRITE_LOCK, true, 100);
+        } catch (LockException le) {
+            assertEquals(LockException.CODE_TIMED_OUT, le.getCode());
+            timedOut = true;
+        }
+        assertTrue(timedOut);
+        assertEquals(1, manager.ownerCaches.size());
+        assertTrue(manager.ownerCaches.containsKey(owner1));
+
+        // releasing the last lock resource by resource drops the cache
+        manager.readLock(owner1, res2);
+        manager.release(owner1, res1);
+        assertEquals(1, manager.ownerCaches.size());
+        manager.release(owner1, res2);
+        assertTrue(manager.ownerCaches.isEmpty());
+        assertNull(manager.threadOwnerCache.get());
+    }
+
     public void testStress() throws Throwable {
 
         sLogger.logInfo("\n\nStress checking locks\n\n");
@@ -934,6 +1122,12 @@ public class GenericLockTest extends TestCase {
                 }
             } catch (InterruptedException ie) {
             }
+
+            // a late thread of this round must not reset the barriers for the next one
+            t1.join();
+            t2.join();
+            t3.join();
+            t4.join();
         }
 
     }
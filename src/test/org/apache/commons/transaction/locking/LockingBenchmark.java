@@ -0,0 +1,462 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.locking;
+
+import java.io.PrintWriter;
+import java.util.HashSet;
+
+import org.apache.commons.transaction.util.LoggerFacade;
+import org.apache.commons.transaction.util.PrintWriterLogger;
+
+/**
+ * Throughput benchmarks for the locking package. This is not a unit test, but
+ * meant to be started manually to judge changes to the locking code on numbers:
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes \
+ *     org.apache.commons.transaction.locking.LockingBenchmark [scenario...]
+ * </pre>
+ *
+ * Every scenario is run against {@link GenericLock},
+ * {@link GenericLockManager}, {@link ReadWriteLockManager} and
+ * {@link ReadWriteUpgradeLockManager} with 1 up to 64 threads and reports
+ * operations per second. Warm up and measurement time per run can be set
+ * using the system properties <code>benchmark.warmup</code> and
+ * <code>benchmark.time</code> in milliseconds. Names of scenarios to run can
+ * be passed as arguments, otherwise all of them are run.
+ *
+ * @version $Id$
+ */
+public class LockingBenchmark {
+
+    private static final LoggerFacade sLogger = new PrintWriterLogger(new PrintWriter(System.out),
+            LockingBenchmark.class.getName(), false);
+
+    private static final int[] THREADS = new int[] { 1, 2, 4, 8, 16, 32, 64 };
+
+    private static final int[] TABLE_SIZES = new int[] { 1000, 100000 };
+
+    private static final long TIMEOUT = 1000000;
+
+    private static final long WARMUP_MSECS = Long.getLong("benchmark.warmup", 500).longValue();
+
+    private static final long MEASURE_MSECS = Long.getLong("benchmark.time", 2000).longValue();
+
+    public static void main(String[] args) throws Exception {
+        Target[] targets = new Target[] { new GenericLockTarget(), new ManagerTarget(
+                "GenericLockManager") {
+            protected GenericLockManager createManager() {
+                return new GenericLockManager(2, sLogger, TIMEOUT);
+            }
+        }, new ManagerTarget("ReadWriteLockManager") {
+            protected GenericLockManager createManager() {
+                return new ReadWriteLockManager(sLogger, TIMEOUT);
+            }
+        }, new ManagerTarget("ReadWriteUpgradeLockManager") {
+            protected GenericLockManager createManager() {
+                return new ReadWriteUpgradeLockManager(sLogger, TIMEOUT);
+            }
+        } };
+
+        Scenario[] scenarios = new Scenario[] { new UncontendedScenario(),
+                new ReentrantScenario(), new SharedFanInScenario(), new ExclusivePingPongScenario() };
+
+        for (int i = 0; i < scenarios.length; i++) {
+            Scenario scenario = scenarios[i];
+            if (!selected(args, scenario.name)) {
+                continue;
+            }
+            for (int j = 0; j < targets.length; j++) {
+                for (int k = 0; k < THREADS.length; k++) {
+                    report(scenario.name, targets[j].name, THREADS[k], run(scenario, targets[j],
+                            THREADS[k]));
+                }
+            }
+        }
+
+        if (selected(args, "growth")) {
+            for (int t = 0; t < TABLE_SIZES.length; t++) {
+                Scenario scenario = new TableGrowthScenario(TABLE_SIZES[t]);
+                // the plain lock has no lock table
+                for (int j = 1; j < targets.length; j++) {
+                    for (int k = 0; k < THREADS.length; k++) {
+                        report(scenario.name, targets[j].name, THREADS[k], run(scenario,
+                                targets[j], THREADS[k]));
+                    }
+                }
+            }
+        }
+
+        if (selected(args, "deadlock")) {
+            for (int j = 1; j < targets.length; j++) {
+                for (int k = 0; k < THREADS.length; k++) {
+                    report("deadlock detection", targets[j].name, THREADS[k],
+                            deadlockDetection((ManagerTarget) targets[j], THREADS[k]));
+                }
+            }
+        }
+    }
+
+    protected static boolean selected(String[] args, String name) {
+        if (args.length == 0) {
+            return true;
+        }
+        for (int i = 0; i < args.length; i++) {
+            if (name.startsWith(args[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected static void report(String scenario, String target, int threads, double opsPerSec) {
+        StringBuffer buf = new StringBuffer();
+        pad(buf, scenario, 28);
+        pad(buf, target, 30);
+        pad(buf, Integer.toString(threads), 4);
+        buf.append(" threads: ").append((long) opsPerSec).append(" ops/s");
+        System.out.println(buf.toString());
+    }
+
+    protected static void pad(StringBuffer buf, String value, int width) {
+        buf.append(value);
+        for (int i = value.length(); i < width; i++) {
+            buf.append(' ');
+        }
+    }
+
+    /**
+     * Runs a scenario with a number of threads until warm up and measurement
+     * time are over.
+     *
+     * @return operations per second during measurement
+     */
+    protected static double run(final Scenario scenario, Target target, int threads)
+            throws Exception {
+        target.reset();
+        scenario.setUp(target, threads);
+
+        final long[] counts = new long[threads];
+        final boolean[] measuring = new boolean[1];
+        final boolean[] stopped = new boolean[1];
+        final Throwable[] failure = new Throwable[1];
+
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int thread = i;
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        long count = 0;
+                        long iteration = 0;
+                        while (!stopped[0]) {
+                            scenario.operation(thread, iteration++);
+                            if (measuring[0]) {
+                                count++;
+                            }
+                        }
+                        counts[thread] = count;
+                    } catch (Throwable t) {
+                        failure[0] = t;
+                    }
+                }
+            }, "Benchmark #" + i);
+        }
+        for (int i = 0; i < threads; i++) {
+            workers[i].start();
+        }
+        Thread.sleep(WARMUP_MSECS);
+        long start = System.currentTimeMillis();
+        measuring[0] = true;
+        Thread.sleep(MEASURE_MSECS);
+        measuring[0] = false;
+        long end = System.currentTimeMillis();
+        stopped[0] = true;
+        for (int i = 0; i < threads; i++) {
+            workers[i].join();
+        }
+        scenario.tearDown(threads);
+        if (failure[0] != null) {
+            throw new RuntimeException(scenario.name + " failed: " + failure[0]);
+        }
+
+        long total = 0;
+        for (int i = 0; i < threads; i++) {
+            total += counts[i];
+        }
+        return total * 1000.0 / Math.max(1, end - start);
+    }
+
+    /**
+     * Measures the cost of deadlock detection while a number of owners are
+     * waiting for a lock held by a single owner.
+     *
+     * @return deadlock checks per second
+     */
+    protected static double deadlockDetection(ManagerTarget target, int waiters) throws Exception {
+        target.reset();
+        final GenericLockManager manager = target.manager;
+        final Object hot = "hot";
+        final int level = manager.maxLockLevel;
+        manager.lock("holder", hot, level, true);
+
+        Thread[] threads = new Thread[waiters];
+        for (int i = 0; i < waiters; i++) {
+            final String owner = "waiter" + i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    // every waiter holds a lock of its own which makes the graph wider
+                    manager.lock(owner, owner, level, true);
+                    manager.lock(owner, hot, level, true);
+                    manager.releaseAll(owner);
+                }
+            }, "Waiter #" + i);
+            threads[i].start();
+        }
+        GenericLock lock = (GenericLock) manager.getLock(hot);
+        while (lock.waiters < waiters) {
+            Thread.sleep(10);
+        }
+
+        long end = System.currentTimeMillis() + WARMUP_MSECS;
+        while (System.currentTimeMillis() < end) {
+            manager.wouldDeadlock("holder", new HashSet());
+        }
+        long count = 0;
+        long start = System.currentTimeMillis();
+        end = start + MEASURE_MSECS;
+        long now = start;
+        while (now < end) {
+            manager.wouldDeadlock("holder", new HashSet());
+            count++;
+            now = System.currentTimeMillis();
+        }
+
+        manager.releaseAll("holder");
+        for (int i = 0; i < waiters; i++) {
+            threads[i].join();
+        }
+        return count * 1000.0 / Math.max(1, now - start);
+    }
+
+    /**
+     * Uniform access to plain locks and lock managers.
+     */
+    protected static abstract class Target {
+        protected final String name;
+
+        protected Target(String name) {
+            this.name = name;
+        }
+
+        protected abstract void reset();
+
+        /** Gets something identifying the i-th resource to be passed to lock and release. */
+        protected abstract Object resource(Object resourceId);
+
+        protected abstract void lock(Object ownerId, Object resource, boolean exclusive)
+                throws Exception;
+
+        protected abstract void release(Object ownerId, Object resource);
+    }
+
+    protected static class GenericLockTarget extends Target {
+
+        protected GenericLockTarget() {
+            super("GenericLock");
+        }
+
+        protected void reset() {
+        }
+
+        protected Object resource(Object resourceId) {
+            return new GenericLock(resourceId, 2, sLogger);
+        }
+
+        protected void lock(Object ownerId, Object resource, boolean exclusive) throws Exception {
+            ((GenericLock) resource).acquire(ownerId, exclusive ? 2 : 1, true, true, TIMEOUT);
+        }
+
+        protected void release(Object ownerId, Object resource) {
+            ((GenericLock) resource).release(ownerId);
+        }
+    }
+
+    protected static abstract class ManagerTarget extends Target {
+        protected GenericLockManager manager;
+
+        protected ManagerTarget(String name) {
+            super(name);
+        }
+
+        protected abstract GenericLockManager createManager();
+
+        protected void reset() {
+            manager = createManager();
+        }
+
+        protected Object resource(Object resourceId) {
+            return resourceId;
+        }
+
+        protected void lock(Object ownerId, Object resource, boolean exclusive) throws Exception {
+            manager.lock(ownerId, resource, exclusive ? manager.maxLockLevel : 1, true);
+        }
+
+        protected void release(Object ownerId, Object resource) {
+            manager.release(ownerId, resource);
+        }
+    }
+
+    protected static abstract class Scenario {
+        protected final String name;
+        protected Target target;
+        protected Object[] owners;
+
+        protected Scenario(String name) {
+            this.name = name;
+        }
+
+        protected void setUp(Target target, int threads) throws Exception {
+            this.target = target;
+            owners = new Object[threads];
+            for (int i = 0; i < threads; i++) {
+                owners[i] = "owner" + i;
+            }
+        }
+
+        protected abstract void operation(int thread, long iteration) throws Exception;
+
+        protected void tearDown(int threads) throws Exception {
+        }
+    }
+
+    /** Every thread locks and releases a resource of its own. */
+    protected static class UncontendedScenario extends Scenario {
+        protected Object[] resources;
+
+        protected UncontendedScenario() {
+            this("uncontended acquire/release");
+        }
+
+        protected UncontendedScenario(String name) {
+            super(name);
+        }
+
+        protected void setUp(Target target, int threads) throws Exception {
+            super.setUp(target, threads);
+            resources = new Object[threads];
+            for (int i = 0; i < threads; i++) {
+                resources[i] = target.resource("res" + i);
+            }
+        }
+
+        protected void operation(int thread, long iteration) throws Exception {
+            target.lock(owners[thread], resources[thread], true);
+            target.release(owners[thread], resources[thread]);
+        }
+    }
+
+    /** Every thread acquires a lock it already holds over and over again. */
+    protected static class ReentrantScenario extends UncontendedScenario {
+
+        protected ReentrantScenario() {
+            super("reentrant re-acquire");
+        }
+
+        protected void setUp(Target target, int threads) throws Exception {
+            super.setUp(target, threads);
+            for (int i = 0; i < threads; i++) {
+                target.lock(owners[i], resources[i], true);
+            }
+        }
+
+        protected void operation(int thread, long iteration) throws Exception {
+            target.lock(owners[thread], resources[thread], true);
+        }
+
+        protected void tearDown(int threads) throws Exception {
+            for (int i = 0; i < threads; i++) {
+                target.release(owners[i], resources[i]);
+            }
+        }
+    }
+
+    /** All threads share read locks on a single hot resource. */
+    protected static class SharedFanInScenario extends Scenario {
+        protected Object hot;
+
+        protected SharedFanInScenario() {
+            this("shared fan-in");
+        }
+
+        protected SharedFanInScenario(String name) {
+            super(name);
+        }
+
+        protected void setUp(Target target, int threads) throws Exception {
+            super.setUp(target, threads);
+            hot = target.resource("hot");
+        }
+
+        protected void operation(int thread, long iteration) throws Exception {
+            target.lock(owners[thread], hot, false);
+            target.release(owners[thread], hot);
+        }
+    }
+
+    /** All threads compete for an exclusive lock on a single hot resource. */
+    protected static class ExclusivePingPongScenario extends SharedFanInScenario {
+
+        protected ExclusivePingPongScenario() {
+            super("exclusive ping-pong");
+        }
+
+        protected void operation(int thread, long iteration) throws Exception {
+            target.lock(owners[thread], hot, true);
+            target.release(owners[thread], hot);
+        }
+    }
+
+    /** Threads lock distinct resources of a lock table of a given size. */
+    protected static class TableGrowthScenario extends Scenario {
+        protected final int tableSize;
+        protected Object[] resources;
+
+        protected TableGrowthScenario(int tableSize) {
+            super("lock table (" + tableSize + ")");
+            this.tableSize = tableSize;
+        }
+
+        protected void setUp(Target target, int threads) throws Exception {
+            super.setUp(target, threads);
+            resources = new Object[tableSize];
+            for (int i = 0; i < tableSize; i++) {
+                resources[i] = target.resource("res" + i);
+                target.lock("prefill", resources[i], true);
+                target.release("prefill", resources[i]);
+            }
+        }
+
+        protected void operation(int thread, long iteration) throws Exception {
+            // spread threads over the table so they hardly ever collide
+            Object resource = resources[(int) ((iteration * owners.length + thread) % tableSize)];
+            target.lock(owners[thread], resource, true);
+            target.release(owners[thread], resource);
+        }
+    }
+}